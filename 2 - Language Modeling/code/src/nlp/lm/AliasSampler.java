@@ -0,0 +1,409 @@
+package nlp.lm;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Generates sentences by sampling from P(next | word) with Walker alias tables
+ *
+ * Every draw from an alias table is O(1). Words that generateSamplingSentence rejects
+ * (<unk>, %NUMBER%, <s>, </s>, and "." in the first 3 words) are left out of the tables
+ * when they are built, which gives the same distribution as rejecting them but never
+ * loops on them. A context word therefore has two tables: with and without ".".
+ *
+ * For models with a backoff form (LMBase.hasBackoffForm) the distribution of a context is
+ * split into its seen successors and the shared backoff distribution:
+ * - the seen successors get a small alias table per context (O(successors) to build),
+ *   kept in an LRU cache of bounded size
+ * - unseen words are drawn from one alias table over the backoff distribution shared by
+ *   all contexts, redrawing when a seen successor comes up. If the successors hold most of
+ *   the backoff mass the context gets its own table over the unseen words instead.
+ * Other models get one table over the whole vocabulary per context.
+ *
+ * A sampler is not thread safe (the cache and the random are not locked), use one per thread
+ * or lock it.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class AliasSampler {
+
+	// default number of context tables kept in the cache
+	public static final int DEFAULT_CACHE_SIZE = 4096;
+
+	// sentences stop at a period or after this many words
+	private static final int MAX_WORDS = 10;
+
+	// a period is not allowed before this many words
+	private static final int MIN_WORDS_BEFORE_PERIOD = 3;
+
+	// build an explicit table over the unseen words once redrawing would reject more than this
+	private static final double MAX_REJECTION = 0.75;
+
+	private final LMBase model;
+	private final BigramCounts counts;
+	private final SplittableRandom random;
+	private final WordIndex index;
+	private final int period;
+	private final int number;
+
+	// word IDs that may be sampled, with and without the period
+	private final int[] outcomesWithPeriod;
+	private final int[] outcomesWithoutPeriod;
+
+	// shared backoff tables (null if the model has no backoff form), with and without the period
+	private final AliasTable backoffWithPeriod;
+	private final AliasTable backoffWithoutPeriod;
+
+	// (context ID, period allowed) -> context table, least recently used first
+	private final LinkedHashMap<Long, ContextTable> cache;
+
+	/**
+	 * Alias table over a set of word IDs
+	 */
+	private static class AliasTable {
+		final int[] outcomes;
+		final double[] prob;
+		final int[] alias;
+
+		// sum of the weights the table was built from
+		final double total;
+
+		/**
+		 * Vose's method: split the columns into those below and above the average weight
+		 * and fill each small column up with a large one
+		 */
+		AliasTable(int[] outcomes, double[] weights){
+			int n = outcomes.length;
+			this.outcomes = outcomes;
+			prob = new double[n];
+			alias = new int[n];
+
+			double sum = 0;
+			for (double weight : weights){
+				sum += weight;
+			}
+			total = sum;
+
+			double[] scaled = new double[n];
+			int[] small = new int[n];
+			int[] large = new int[n];
+			int numSmall = 0;
+			int numLarge = 0;
+			for (int i = 0; i < n; i++){
+				scaled[i] = total > 0 ? weights[i] * n / total : 1.0;
+				if (scaled[i] < 1.0){
+					small[numSmall++] = i;
+				}
+				else {
+					large[numLarge++] = i;
+				}
+			}
+			while (numSmall > 0 && numLarge > 0){
+				int less = small[--numSmall];
+				int more = large[--numLarge];
+				prob[less] = scaled[less];
+				alias[less] = more;
+				scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+				if (scaled[more] < 1.0){
+					small[numSmall++] = more;
+				}
+				else {
+					large[numLarge++] = more;
+				}
+			}
+			// whatever is left is (up to rounding) exactly full
+			while (numLarge > 0){
+				prob[large[--numLarge]] = 1.0;
+			}
+			while (numSmall > 0){
+				prob[small[--numSmall]] = 1.0;
+			}
+		}
+
+		/**
+		 * @param random
+		 * @return a word ID drawn from the table
+		 */
+		int sample(SplittableRandom random){
+			int column = random.nextInt(prob.length);
+			return random.nextDouble() < prob[column] ? outcomes[column] : outcomes[alias[column]];
+		}
+	}
+
+	/**
+	 * Everything needed to sample the next word after one context word
+	 */
+	private static class ContextTable {
+		// seen successors (or the whole vocabulary for models without a backoff form)
+		AliasTable seen;
+		double seenMass;
+
+		// unseen words: drawn from the shared backoff table unless unseen is set
+		double backoffMass;
+		AliasTable unseen;
+	}
+
+	/**
+	 * @param model a trained model
+	 * @param seed seed of the random numbers, the same seed gives the same sentences
+	 */
+	public AliasSampler(LMBase model, long seed){
+		this(model, seed, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param model a trained model
+	 * @param seed seed of the random numbers, the same seed gives the same sentences
+	 * @param cacheSize maximum number of context tables kept
+	 * @throws IllegalArgumentException for a model backed by approximate counts, which do not list
+	 * every seen bigram, so some would get neither the seen nor the backoff mass
+	 */
+	public AliasSampler(LMBase model, long seed, final int cacheSize){
+		this.model = model;
+		this.counts = model.getIdCounts();
+		if (counts instanceof SketchBigramCounts){
+			throw new IllegalArgumentException("approximate counts do not list every seen bigram");
+		}
+		this.random = new SplittableRandom(seed);
+
+		index = counts.getWordIndex();
+		period = index.getId(".");
+		number = index.getId("%NUMBER%");
+
+		// every vocabulary word except the ones generateSamplingSentence rejects
+		int numOutcomes = 0;
+		int[] outcomes = new int[index.size()];
+		for (int id = WordIndex.END + 1; id < index.size(); id++){
+			if (isAllowed(id, true)){
+				outcomes[numOutcomes++] = id;
+			}
+		}
+		outcomesWithPeriod = Arrays.copyOf(outcomes, numOutcomes);
+
+		numOutcomes = 0;
+		for (int id : outcomesWithPeriod){
+			if (id != period){
+				outcomes[numOutcomes++] = id;
+			}
+		}
+		outcomesWithoutPeriod = Arrays.copyOf(outcomes, numOutcomes);
+
+		if (model.hasBackoffForm()){
+			backoffWithPeriod = new AliasTable(outcomesWithPeriod, backoffWeights(outcomesWithPeriod));
+			backoffWithoutPeriod = new AliasTable(outcomesWithoutPeriod, backoffWeights(outcomesWithoutPeriod));
+		}
+		else {
+			backoffWithPeriod = null;
+			backoffWithoutPeriod = null;
+		}
+
+		cache = new LinkedHashMap<Long, ContextTable>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, ContextTable> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Generate sentence by sampling from a conditional probability distribution,
+	 * with the same rules as LMBase.generateSamplingSentence
+	 * @return sentence
+	 */
+	public String generateSentence(){
+		return generateSentence(random);
+	}
+
+	/**
+	 * Same as above with the given random numbers instead of the sampler's own, so one sampler
+	 * (and its cache) can generate reproducible sentences for several seeds (see BulkGenerator)
+	 * @param random
+	 * @return sentence
+	 */
+	public String generateSentence(SplittableRandom random){
+		StringBuilder sentence = new StringBuilder();
+		int word = WordIndex.START;
+		int h = 0;
+		while (word != period && h < MAX_WORDS){
+			word = sampleNext(word, h >= MIN_WORDS_BEFORE_PERIOD, random);
+			if (sentence.length() > 0){
+				sentence.append(' ');
+			}
+			sentence.append(index.getWord(word));
+			h++;
+		}
+		return sentence.toString();
+	}
+
+	/**
+	 * @return number of context tables in the cache
+	 */
+	public int cacheSize(){
+		return cache.size();
+	}
+
+	/**
+	 * Draw the word after context
+	 * @param context
+	 * @param allowPeriod
+	 * @param random
+	 * @return word ID
+	 */
+	private int sampleNext(int context, boolean allowPeriod, SplittableRandom random){
+		ContextTable table = getTable(context, allowPeriod);
+		double u = random.nextDouble() * (table.seenMass + table.backoffMass);
+		if (u < table.seenMass){
+			return table.seen.sample(random);
+		}
+		if (table.unseen != null){
+			return table.unseen.sample(random);
+		}
+
+		// redraw until we get a word that was never seen after the context
+		AliasTable backoff = allowPeriod ? backoffWithPeriod : backoffWithoutPeriod;
+		int word = backoff.sample(random);
+		while (counts.getBigramCount(context, word) > 0){
+			word = backoff.sample(random);
+		}
+		return word;
+	}
+
+	/**
+	 * Get the table of a context word from the cache, building it if needed
+	 * @param context
+	 * @param allowPeriod
+	 * @return context table
+	 */
+	private ContextTable getTable(int context, boolean allowPeriod){
+		Long key = ((long) context << 1) | (allowPeriod ? 1 : 0);
+		ContextTable table = cache.get(key);
+		if (table == null){
+			table = model.hasBackoffForm() ? buildBackoffTable(context, allowPeriod) : buildFullTable(context, allowPeriod);
+			if (!(table.seenMass + table.backoffMass > 0)){
+				throw new IllegalStateException("no probability mass to sample from after " + index.getWord(context));
+			}
+			cache.put(key, table);
+		}
+		return table;
+	}
+
+	/**
+	 * One table over every allowed word, O(V)
+	 */
+	private ContextTable buildFullTable(int context, boolean allowPeriod){
+		int[] outcomes = allowPeriod ? outcomesWithPeriod : outcomesWithoutPeriod;
+		double[] weights = new double[outcomes.length];
+		for (int i = 0; i < outcomes.length; i++){
+			weights[i] = weight(model.getBigramProb(context, outcomes[i]));
+		}
+		ContextTable table = new ContextTable();
+		table.seen = new AliasTable(outcomes, weights);
+		table.seenMass = table.seen.total;
+		return table;
+	}
+
+	/**
+	 * A table over the allowed seen successors, plus the mass of the unseen words
+	 */
+	private ContextTable buildBackoffTable(int context, boolean allowPeriod){
+		int numSuccessors = counts.getNumSuccessors(context);
+		int[] successors = new int[numSuccessors];
+		double[] weights = new double[numSuccessors];
+		double successorBackoff = 0;
+		int n = 0;
+		for (int k = 0; k < numSuccessors; k++){
+			int word = counts.getSuccessor(context, k);
+			if (isAllowed(word, allowPeriod)){
+				successors[n] = word;
+				weights[n] = weight(model.getBigramProb(context, word));
+				successorBackoff += weight(model.getBackoffProb(word));
+				n++;
+			}
+		}
+
+		ContextTable table = new ContextTable();
+		table.seen = new AliasTable(Arrays.copyOf(successors, n), Arrays.copyOf(weights, n));
+		table.seenMass = table.seen.total;
+
+		// the unseen words get backoff weight * (backoff mass of all allowed words - of the seen ones)
+		AliasTable backoff = allowPeriod ? backoffWithPeriod : backoffWithoutPeriod;
+		double unseenBackoff = Math.max(0, backoff.total - successorBackoff);
+		table.backoffMass = weight(model.getBackoffWeight(context)) * unseenBackoff;
+
+		// too many redraws: list the unseen words explicitly
+		if (table.backoffMass > 0 && successorBackoff > MAX_REJECTION * backoff.total){
+			int[] outcomes = allowPeriod ? outcomesWithPeriod : outcomesWithoutPeriod;
+			int[] unseen = new int[outcomes.length];
+			int m = 0;
+			for (int word : outcomes){
+				if (counts.getBigramCount(context, word) == 0){
+					unseen[m++] = word;
+				}
+			}
+			unseen = Arrays.copyOf(unseen, m);
+			table.unseen = new AliasTable(unseen, backoffWeights(unseen));
+		}
+		return table;
+	}
+
+	/**
+	 * @param words
+	 * @return backoff probability of each word
+	 */
+	private double[] backoffWeights(int[] words){
+		double[] weights = new double[words.length];
+		for (int i = 0; i < words.length; i++){
+			weights[i] = weight(model.getBackoffProb(words[i]));
+		}
+		return weights;
+	}
+
+	/**
+	 * @param id
+	 * @param allowPeriod
+	 * @return true if the word may be generated
+	 */
+	private boolean isAllowed(int id, boolean allowPeriod){
+		return id > WordIndex.END && counts.isInVocabulary(id) && id != number && (allowPeriod || id != period);
+	}
+
+	/**
+	 * A NaN or negative probability can never be drawn
+	 * @param prob
+	 * @return prob, or 0
+	 */
+	private static double weight(double prob){
+		return prob > 0 ? prob : 0;
+	}
+
+	/**
+	 * Time how many sentences per second the sampler generates
+	 * Usage: AliasSampler [training file] [number of sentences]
+	 * @param args
+	 */
+	public static void main(String[] args){
+		String filename = args.length > 0 ? args[0] : "src/sentences.development";
+		int numSentences = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+		DiscountLMModel model = new DiscountLMModel(filename, 0.5, true);
+		model.compile();
+		AliasSampler sampler = new AliasSampler(model, 159);
+
+		long startTime = System.nanoTime();
+		for (int i = 0; i < numSentences; i++){
+			String sentence = sampler.generateSentence();
+			if (i < 5){
+				System.out.println(sentence);
+			}
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		System.out.println(numSentences + " sentences in " + String.format("%.2f", seconds) + "s = "
+				+ String.format("%.0f", numSentences / seconds) + " sentences/sec (" + sampler.cacheSize() + " tables cached)");
+	}
+}
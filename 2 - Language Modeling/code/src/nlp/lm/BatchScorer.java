@@ -0,0 +1,135 @@
+package nlp.lm;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scores a batch of sentences given as word IDs on the common fork/join pool
+ *
+ * The batch is either an int[][] (one array per sentence) or one flat token buffer
+ * where sentence i is tokens[offsets[i] .. offsets[i+1]-1]. Sentences do NOT contain
+ * <s> or </s>. The batch is split in halves until a piece is small enough to score
+ * on one thread, and every result is written to its own slot of the caller's array.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+class BatchScorer {
+
+	// sentences scored on one thread without splitting further
+	private static final int MIN_SPLIT = 64;
+
+	/**
+	 * Something that can score one sentence of word IDs
+	 */
+	interface SentenceScorer {
+		/**
+		 * @param ids
+		 * @param from first word of the sentence
+		 * @param to one past the last word of the sentence
+		 * @return log probability of the sentence, including </s>
+		 */
+		double logProb(int[] ids, int from, int to);
+	}
+
+	/**
+	 * @param model
+	 * @return scorer that turns the IDs back into words and scores them with
+	 * getBigramProb(String, String), for models that only score word strings
+	 */
+	static SentenceScorer wordScorer(final LMModel model){
+		final WordIndex index = model.getWordIndex();
+		final String unk = index.getWord(WordIndex.UNK);
+		return new SentenceScorer(){
+			@Override
+			public double logProb(int[] ids, int from, int to) {
+				double logProb = 0;
+				String previous = index.getWord(WordIndex.START);
+				for (int i = from; i < to; i++){
+					String word = ids[i] >= 0 && ids[i] < index.size() ? index.getWord(ids[i]) : unk;
+					logProb += Math.log10(model.getBigramProb(previous, word));
+					previous = word;
+				}
+				return logProb + Math.log10(model.getBigramProb(previous, index.getWord(WordIndex.END)));
+			}
+		};
+	}
+
+	/**
+	 * Score the flat batch
+	 * @param scorer
+	 * @param tokens
+	 * @param offsets numSentences + 1 offsets into tokens
+	 * @param results one slot per sentence
+	 * @param perplexity write the perplexity of each sentence instead of its log probability
+	 */
+	static void score(SentenceScorer scorer, int[] tokens, int[] offsets, double[] results, boolean perplexity){
+		if (results.length < offsets.length - 1){
+			throw new IllegalArgumentException("results holds " + results.length + " values for " + (offsets.length - 1) + " sentences");
+		}
+		ForkJoinPool.commonPool().invoke(new Task(scorer, null, tokens, offsets, results, perplexity, 0, offsets.length - 1));
+	}
+
+	/**
+	 * Score the batch of sentence arrays
+	 * @param scorer
+	 * @param sentences
+	 * @param results one slot per sentence
+	 * @param perplexity write the perplexity of each sentence instead of its log probability
+	 */
+	static void score(SentenceScorer scorer, int[][] sentences, double[] results, boolean perplexity){
+		if (results.length < sentences.length){
+			throw new IllegalArgumentException("results holds " + results.length + " values for " + sentences.length + " sentences");
+		}
+		ForkJoinPool.commonPool().invoke(new Task(scorer, sentences, null, null, results, perplexity, 0, sentences.length));
+	}
+
+	/**
+	 * Scores sentences low .. high-1, splitting the range while it is large
+	 */
+	private static class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final SentenceScorer scorer;
+		private final int[][] sentences;
+		private final int[] tokens;
+		private final int[] offsets;
+		private final double[] results;
+		private final boolean perplexity;
+		private final int low;
+		private final int high;
+
+		Task(SentenceScorer scorer, int[][] sentences, int[] tokens, int[] offsets, double[] results,
+				boolean perplexity, int low, int high){
+			this.scorer = scorer;
+			this.sentences = sentences;
+			this.tokens = tokens;
+			this.offsets = offsets;
+			this.results = results;
+			this.perplexity = perplexity;
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		protected void compute() {
+			if (high - low > MIN_SPLIT){
+				int mid = (low + high) >>> 1;
+				invokeAll(new Task(scorer, sentences, tokens, offsets, results, perplexity, low, mid),
+						new Task(scorer, sentences, tokens, offsets, results, perplexity, mid, high));
+				return;
+			}
+			for (int i = low; i < high; i++){
+				int[] ids = sentences == null ? tokens : sentences[i];
+				int from = sentences == null ? offsets[i] : 0;
+				int to = sentences == null ? offsets[i + 1] : ids.length;
+
+				double logProb = scorer.logProb(ids, from, to);
+
+				// the sentence has to - from words plus </s>
+				results[i] = perplexity ? Math.pow(10, -logProb/(to - from + 1)) : logProb;
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package nlp.lm;
+
+/**
+ * Blocked Bloom filter over the (first, second) word ID pairs of the trained bigrams
+ *
+ * mightContain is false only for bigrams that were never seen, so a model can skip the
+ * count lookup and go straight to its unseen formula; true means the bigram was probably
+ * seen and the count has to be looked up. The filter is split into blocks of 512 bits
+ * (one cache line): a bigram picks one block with the high bits of its hash and sets or
+ * tests all its bits inside that block, so a query touches one cache line instead of k.
+ * That costs a little false positive rate over a plain Bloom filter of the same size.
+ *
+ * The filter is built from finished counts and does not change, so it cannot be used with
+ * counts that are still updated (LMBase drops it then, see LMBase.useBloomFilter).
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class BigramBloomFilter {
+
+	// longs per block, 8 * 64 = 512 bits
+	private static final int BLOCK_LONGS = 8;
+	private static final int BLOCK_BITS = BLOCK_LONGS * Long.SIZE;
+	private static final int MAX_HASHES = 16;
+
+	private final long[] bits;
+	private final int numBlocks;
+	private final int numHashes;
+	private final long numBigrams;
+
+	/**
+	 * Put every bigram of the counts into a filter of about bitsPerBigram bits per bigram
+	 * (10 bits give about 1% false positives)
+	 * @param counts finished counts
+	 * @param bitsPerBigram
+	 * @throws IllegalArgumentException for approximate counts, which do not list every seen bigram
+	 */
+	public BigramBloomFilter(BigramCounts counts, double bitsPerBigram){
+		if (counts instanceof SketchBigramCounts){
+			throw new IllegalArgumentException("approximate counts do not list every seen bigram");
+		}
+		int numWords = counts.getWordIndex().size();
+		long bigrams = 0;
+		for (int first = 0; first < numWords; first++){
+			bigrams += counts.getNumSuccessors(first);
+		}
+		numBigrams = bigrams;
+		numBlocks = (int) Math.max(1, Math.ceil(bigrams * bitsPerBigram / BLOCK_BITS));
+		numHashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerBigram * Math.log(2))));
+		bits = new long[numBlocks * BLOCK_LONGS];
+
+		for (int first = 0; first < numWords; first++){
+			for (int k = 0; k < counts.getNumSuccessors(first); k++){
+				add(first, counts.getSuccessor(first, k));
+			}
+		}
+	}
+
+	private void add(int first, int second){
+		long hash = BigramCountTable.mix(BigramCountTable.key(first, second));
+		int base = blockOf(hash) * BLOCK_LONGS;
+		int h1 = (int) hash;
+		int h2 = secondHash(hash);
+		for (int i = 0; i < numHashes; i++){
+			int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+			bits[base + (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @param first
+	 * @param second
+	 * @return false if the bigram was certainly not seen, true if it probably was
+	 */
+	public boolean mightContain(int first, int second){
+		long hash = BigramCountTable.mix(BigramCountTable.key(first, second));
+		int base = blockOf(hash) * BLOCK_LONGS;
+		int h1 = (int) hash;
+		int h2 = secondHash(hash);
+		for (int i = 0; i < numHashes; i++){
+			int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+			if ((bits[base + (bit >>> 6)] & (1L << bit)) == 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param hash
+	 * @return block of the hash, from its high 32 bits (multiply-shift, no division)
+	 */
+	private int blockOf(long hash){
+		return (int) (((hash >>> 32) * numBlocks) >>> 32);
+	}
+
+	/**
+	 * @param hash
+	 * @return odd step for the bits inside the block, so the k bits are all different
+	 */
+	private static int secondHash(long hash){
+		return (int) ((hash * 0x9e3779b97f4a7c15L) >>> 40) | 1;
+	}
+
+	/**
+	 * @return the false positive rate of a plain Bloom filter of the same size,
+	 * the blocked one is a little higher
+	 */
+	public double expectedFalsePositiveRate(){
+		double bitsPerBigram = (double) bits.length * Long.SIZE / Math.max(1, numBigrams);
+		return Math.pow(1 - Math.exp(-numHashes / bitsPerBigram), numHashes);
+	}
+
+	/**
+	 * @return number of bigrams in the filter
+	 */
+	public long getNumBigrams(){
+		return numBigrams;
+	}
+
+	/**
+	 * @return number of bits tested per query
+	 */
+	public int getNumHashes(){
+		return numHashes;
+	}
+
+	/**
+	 * @return heap size in bytes
+	 */
+	public long memoryBytes(){
+		return (long) bits.length * Long.BYTES;
+	}
+}
@@ -0,0 +1,218 @@
+package nlp.lm;
+
+import java.util.Arrays;
+
+/**
+ * A primitive open-addressing hash table from a bigram (firstId, secondId)
+ * to its count
+ *
+ * Both IDs are packed into a single long key so there is no boxing and
+ * no inner map per context word. Collisions are resolved by linear probing.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class BigramCountTable {
+
+	// marks an unused slot (no real key since IDs are never negative)
+	private static final long EMPTY = -1L;
+
+	// grow the table once it is this full
+	private static final double MAX_LOAD = 0.6;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+	private int resizeAt;
+
+	public BigramCountTable(){
+		this(1 << 16);
+	}
+
+	/**
+	 * @param expectedBigrams number of distinct bigrams to size the table for
+	 */
+	public BigramCountTable(int expectedBigrams){
+		allocate(tableSizeFor(expectedBigrams));
+	}
+
+	/**
+	 * Pack a bigram into a single key
+	 * @param first
+	 * @param second
+	 * @return key
+	 */
+	public static long key(int first, int second){
+		return ((long) first << 32) | (second & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param key
+	 * @return the first word ID of a packed key
+	 */
+	public static int firstOf(long key){
+		return (int) (key >>> 32);
+	}
+
+	/**
+	 * @param key
+	 * @return the second word ID of a packed key
+	 */
+	public static int secondOf(long key){
+		return (int) key;
+	}
+
+	/**
+	 * Add one to the count of the bigram
+	 * @param first
+	 * @param second
+	 * @return the new count
+	 */
+	public int increment(int first, int second){
+		return add(key(first, second), 1);
+	}
+
+	/**
+	 * Add delta to the count stored under the key
+	 * @param key
+	 * @param delta
+	 * @return the new count
+	 */
+	public int add(long key, int delta){
+		int slot = slotFor(key);
+		if (keys[slot] == EMPTY){
+			keys[slot] = key;
+			values[slot] = delta;
+			size++;
+			if (size > resizeAt){
+				resize();
+			}
+			return delta;
+		}
+		return values[slot] += delta;
+	}
+
+	/**
+	 * @param first
+	 * @param second
+	 * @return the count of the bigram, 0 if it has not been seen
+	 */
+	public int get(int first, int second){
+		long key = key(first, second);
+		int slot = slotFor(key);
+		return keys[slot] == EMPTY ? 0 : values[slot];
+	}
+
+	/**
+	 * @return number of distinct bigrams
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return number of slots, used to iterate with keyAt/valueAt
+	 */
+	public int capacity(){
+		return keys.length;
+	}
+
+	/**
+	 * @param slot
+	 * @return true if the slot holds a bigram
+	 */
+	public boolean isUsed(int slot){
+		return keys[slot] != EMPTY;
+	}
+
+	public long keyAt(int slot){
+		return keys[slot];
+	}
+
+	public int valueAt(int slot){
+		return values[slot];
+	}
+
+	/**
+	 * @return approximate heap size of the table in bytes
+	 */
+	public long memoryBytes(){
+		return (long) keys.length * (Long.BYTES + Integer.BYTES);
+	}
+
+	/**
+	 * Find the slot holding the key, or the empty slot where it would go
+	 * @param key
+	 * @return slot index
+	 */
+	private int slotFor(long key){
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key){
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Double the table and re-insert every bigram
+	 */
+	private void resize(){
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(oldKeys.length * 2);
+
+		for (int i = 0; i < oldKeys.length; i++){
+			if (oldKeys[i] != EMPTY){
+				int slot = slotFor(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity){
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		mask = capacity - 1;
+		resizeAt = (int) (capacity * MAX_LOAD);
+	}
+
+	/**
+	 * @param expected
+	 * @return smallest power of two that holds expected keys under MAX_LOAD
+	 */
+	private static int tableSizeFor(int expected){
+		int capacity = 16;
+		while (capacity * MAX_LOAD < expected){
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Mix the bits of the key (murmur3 finalizer) so that consecutive IDs
+	 * do not land in consecutive slots
+	 * @param key
+	 * @return hash
+	 */
+	static int hash(long key){
+		return (int) mix(key);
+	}
+
+	/**
+	 * Same as hash with all 64 bits of the result
+	 * @param key
+	 * @return hash
+	 */
+	static long mix(long key){
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
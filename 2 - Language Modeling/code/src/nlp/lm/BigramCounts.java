@@ -0,0 +1,113 @@
+package nlp.lm;
+
+/**
+ * Read access to the counts of a trained bigram model, keyed by word ID
+ *
+ * Word IDs come from getWordIndex(). A word that has an ID but is not in
+ * the vocabulary was only seen once in training and has a unigram count of 0.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public interface BigramCounts {
+
+	/**
+	 * @return the mapping between words and IDs
+	 */
+	public WordIndex getWordIndex();
+
+	/**
+	 * @return total number of tokens seen in training (including <s> and </s>)
+	 */
+	public double getTotalNumWords();
+
+	/**
+	 * @return number of words in the vocabulary (including the special tokens)
+	 */
+	public int getVocabularySize();
+
+	/**
+	 * @param id
+	 * @return true if the word was seen often enough to be in the vocabulary
+	 */
+	public boolean isInVocabulary(int id);
+
+	/**
+	 * @param id
+	 * @return number of times the word was seen
+	 */
+	public double getUnigramCount(int id);
+
+	/**
+	 * @param first
+	 * @return number of times the word was seen as the first word in a bigram
+	 */
+	public double getBigramTotal(int first);
+
+	/**
+	 * @param first
+	 * @param second
+	 * @return number of times the bigram was seen, 0 if never
+	 */
+	public double getBigramCount(int first, int second);
+
+	/**
+	 * Bigrams dropped by a count cutoff still count in getBigramTotal(first), but are
+	 * not among the successors of first anymore
+	 * @param first
+	 * @return getBigramTotal(first) minus the counts of the successors of first, 0 if nothing was pruned
+	 */
+	public double getPrunedCount(int first);
+
+	/**
+	 * @param first
+	 * @return number of distinct words seen after first
+	 */
+	public int getNumSuccessors(int first);
+
+	/**
+	 * The order of the successors depends on the implementation: IdBigramCounts,
+	 * SketchBigramCounts and MappedBigramCounts sort them by ID, ConcurrentBigramCounts keeps
+	 * them in the order they were first seen and OffHeapBigramCounts in the order of the counts
+	 * it was copied from. Code that binary-searches them, or writes them out for something that
+	 * does, must sort them first (as MappedBigramCounts.write and QuantizedLMModel do).
+	 * @param first
+	 * @param k index between 0 and getNumSuccessors(first) - 1
+	 * @return the ID of the k-th word seen after first
+	 */
+	public int getSuccessor(int first, int k);
+
+	/**
+	 * @param first
+	 * @param k index between 0 and getNumSuccessors(first) - 1
+	 * @return the count of the bigram (first, getSuccessor(first, k))
+	 */
+	public double getSuccessorCount(int first, int k);
+
+	/**
+	 * Number of distinct words seen after first, for the discount backoff
+	 * The same as getNumSuccessors unless the counts only list some of the successors
+	 * (SketchBigramCounts estimates it)
+	 * @param first
+	 * @return number of distinct words seen after first
+	 */
+	public default int getNumDistinctSuccessors(int first){
+		return getNumSuccessors(first);
+	}
+
+	/**
+	 * Sum of the unigram probabilities of the words seen after first, for the discount backoff
+	 * (SketchBigramCounts estimates it)
+	 * @param first
+	 * @return sum of getUnigramCount(successor)/getTotalNumWords() over the successors of first
+	 */
+	public default double getSuccessorMass(int first){
+		double totalNumWords = getTotalNumWords();
+		double mass = 0.0;
+		for (int k = 0; k < getNumSuccessors(first); k++){
+			mass += getUnigramCount(getSuccessor(first, k))/totalNumWords;
+		}
+		return mass;
+	}
+}
@@ -0,0 +1,181 @@
+package nlp.lm;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates a large number of sampled sentences on several threads and streams them to a file,
+ * one sentence per line
+ *
+ * The sentences are cut into blocks of BLOCK_SENTENCES, and every block gets its own
+ * SplittableRandom, split off a master SplittableRandom(seed) in block order. A worker thread
+ * generates a whole block with that random and its own AliasSampler (the alias table caches
+ * are not thread-safe), and the blocks are written in order. So the random numbers belong to
+ * the block and not to the thread that happens to run it, and a seed gives the same file
+ * whatever the number of threads. At most twice as many blocks as threads are generated or
+ * waiting to be written at a time, so memory does not grow with the number of sentences.
+ *
+ * Files ending in .gz are written gzipped (CorpusReader reads them back as they are).
+ *
+ * Usage: BulkGenerator [training file] [number of sentences] [seed] [threads] [output file]
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class BulkGenerator {
+
+	// sentences generated with one random, the unit of work of the threads
+	public static final int BLOCK_SENTENCES = 1024;
+
+	private final LMBase model;
+	private final int threads;
+
+	// each worker thread samples with its own sampler, only its random numbers come from the block
+	private final ThreadLocal<AliasSampler> samplers = new ThreadLocal<AliasSampler>(){
+		@Override
+		protected AliasSampler initialValue(){
+			return new AliasSampler(model, 0);
+		}
+	};
+
+	/**
+	 * @param model trained model, must not be updated while generating
+	 * @param threads number of worker threads
+	 */
+	public BulkGenerator(LMBase model, int threads){
+		if (threads < 1){
+			throw new IllegalArgumentException("threads must be at least 1: " + threads);
+		}
+		this.model = model;
+		this.threads = threads;
+	}
+
+	/**
+	 * Write numSentences sampled sentences to the file
+	 * @param numSentences
+	 * @param seed the same seed gives the same file for any number of threads
+	 * @param filename
+	 * @return number of sentences written
+	 * @throws IOException
+	 */
+	public long generate(long numSentences, long seed, String filename) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "BulkGenerator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Writer writer = openWriter(filename);
+		try {
+			SplittableRandom master = new SplittableRandom(seed);
+			ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+			for (long start = 0; start < numSentences; start += BLOCK_SENTENCES){
+				// split here, in block order, so block b always gets the same random
+				final SplittableRandom random = master.split();
+				final int size = (int) Math.min(BLOCK_SENTENCES, numSentences - start);
+				if (pending.size() == 2 * threads){
+					writer.write(await(pending.poll()));
+				}
+				pending.add(pool.submit(new Callable<String>(){
+					@Override
+					public String call(){
+						return generateBlock(size, random);
+					}
+				}));
+			}
+			while (!pending.isEmpty()){
+				writer.write(await(pending.poll()));
+			}
+		} finally {
+			pool.shutdownNow();
+			writer.close();
+		}
+		return Math.max(0, numSentences);
+	}
+
+	/**
+	 * @param size number of sentences
+	 * @param random random numbers of the block
+	 * @return the sentences, one per line
+	 */
+	private String generateBlock(int size, SplittableRandom random){
+		AliasSampler sampler = samplers.get();
+		StringBuilder block = new StringBuilder(size * 64);
+		for (int i = 0; i < size; i++){
+			block.append(sampler.generateSentence(random)).append('\n');
+		}
+		return block.toString();
+	}
+
+	/**
+	 * @param block
+	 * @return the text of the block once it is generated
+	 * @throws IOException if generating was interrupted
+	 */
+	private static String await(Future<String> block) throws IOException {
+		try {
+			return block.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while generating");
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * @param filename
+	 * @return buffered UTF-8 writer, gzipped if the name ends in .gz
+	 * @throws IOException
+	 */
+	private static Writer openWriter(String filename) throws IOException {
+		OutputStream out = new FileOutputStream(filename);
+		if (filename.endsWith(".gz")){
+			out = new GZIPOutputStream(out, 1 << 16);
+		}
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * Train a discount model and write sampled sentences
+	 * @param args
+	 */
+	public static void main(String[] args){
+		String training = args.length > 0 ? args[0] : "src/sentences.development";
+		long numSentences = args.length > 1 ? Long.parseLong(args[1]) : 100000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 159;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		String output = args.length > 4 ? args[4] : "sentences.generated";
+
+		System.out.println("Training Discount Language Model ...");
+		DiscountLMModel model = new DiscountLMModel(training, 0.5);
+
+		try {
+			long start = System.nanoTime();
+			long written = new BulkGenerator(model, threads).generate(numSentences, seed, output);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("%d sentences to %s on %d threads in %.2f s (%.0f sentences/s)",
+					written, output, threads, seconds, written / seconds));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
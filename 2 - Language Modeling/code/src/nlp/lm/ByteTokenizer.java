@@ -0,0 +1,247 @@
+package nlp.lm;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Turns lines of UTF-8 text in a ByteBuffer (e.g. a memory-mapped file) straight into word IDs
+ *
+ * Lines end at \n (a \r before it is dropped) and words are split on spaces and tabs, in
+ * place: a word is only a byte range of the buffer, looked up in a ByteWordTable without
+ * making a String. <s> and </s> are never in the text, their IDs are put around the words
+ * of every line. On text with single spaces between the words (like the corpora here) this
+ * gives the same tokens as String.split(" ") on lines read as UTF-8.
+ *
+ * Used for training (LMBase.trainCountsMapped), perplexity (PerplexityEvaluator.evaluate(ByteBuffer))
+ * and batch scoring (tokenizeBatch).
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class ByteTokenizer {
+
+	private final ByteWordTable table;
+	private ByteBuffer buffer;
+	private int position;
+	private int limit;
+
+	// IDs of the last sentence starting with <s> and ending with </s>, valid up to length
+	// (NO_ID for words that are not in the word index)
+	int[] ids = new int[64];
+	int length;
+
+	// bytes of word i of the sentence are wordFrom[i] .. wordTo[i]-1 (i = 1 .. length-2)
+	private int[] wordFrom = new int[64];
+	private int[] wordTo = new int[64];
+
+	// number of words turned into <unk> by toVocabulary, over all sentences so far
+	long numOov;
+
+	/**
+	 * Token IDs and sentence offsets for LMModel.logProbBatch(int[], int[], double[])
+	 */
+	public static class Batch {
+		// word IDs of all the sentences, without <s> or </s>
+		public final int[] tokens;
+
+		// sentence i is tokens[offsets[i]] .. tokens[offsets[i+1]-1]
+		public final int[] offsets;
+
+		Batch(int[] tokens, int[] offsets){
+			this.tokens = tokens;
+			this.offsets = offsets;
+		}
+
+		/**
+		 * @return number of sentences
+		 */
+		public int size(){
+			return offsets.length - 1;
+		}
+	}
+
+	/**
+	 * @param table shared by every tokenizer over the same word index
+	 */
+	ByteTokenizer(ByteWordTable table){
+		this.table = table;
+	}
+
+	/**
+	 * Tokenize the lines between from and to (from is the start of a line)
+	 * @param buffer
+	 * @param from
+	 * @param to
+	 */
+	void reset(ByteBuffer buffer, int from, int to){
+		this.buffer = buffer;
+		position = from;
+		limit = to;
+	}
+
+	/**
+	 * Read the next line into ids
+	 * @return false at the end of the range
+	 */
+	boolean next(){
+		if (position >= limit){
+			return false;
+		}
+		length = 0;
+		ids[length++] = WordIndex.START;
+
+		int end = position;
+		while (end < limit && buffer.get(end) != '\n'){
+			end++;
+		}
+		int lineEnd = end > position && buffer.get(end - 1) == '\r' ? end - 1 : end;
+
+		int i = position;
+		while (i < lineEnd){
+			byte b = buffer.get(i);
+			if (b == ' ' || b == '\t'){
+				i++;
+				continue;
+			}
+			int from = i;
+			while (i < lineEnd && buffer.get(i) != ' ' && buffer.get(i) != '\t'){
+				i++;
+			}
+			if (length + 1 >= ids.length){
+				ids = Arrays.copyOf(ids, ids.length * 2);
+				wordFrom = Arrays.copyOf(wordFrom, ids.length);
+				wordTo = Arrays.copyOf(wordTo, ids.length);
+			}
+			wordFrom[length] = from;
+			wordTo[length] = i;
+			ids[length++] = table.getId(buffer, from, i);
+		}
+
+		ids[length++] = WordIndex.END;
+		position = end + 1;
+		return true;
+	}
+
+	/**
+	 * Turn the words of the sentence that are not in the vocabulary into <unk>
+	 * @param counts
+	 */
+	void toVocabulary(BigramCounts counts){
+		for (int i = 1; i < length - 1; i++){
+			if (!counts.isInVocabulary(ids[i])){
+				ids[i] = WordIndex.UNK;
+				numOov++;
+			}
+		}
+	}
+
+	/**
+	 * Give the new words of the sentence an ID, and turn the first occurrence of every
+	 * word into <unk> as LMBase.trainModel does
+	 */
+	void addNewWords(){
+		for (int i = 1; i < length - 1; i++){
+			if (ids[i] == WordIndex.NO_ID){
+				int before = table.size();
+				int id = table.add(buffer, wordFrom[i], wordTo[i]);
+
+				// the same new word later in the sentence was looked up before it had an ID
+				ids[i] = table.size() > before ? WordIndex.UNK : id;
+			}
+		}
+	}
+
+	/**
+	 * Count the lines of a buffer into new counts
+	 * @param buffer
+	 * @return finished counts
+	 */
+	static IdBigramCounts count(ByteBuffer buffer){
+		IdBigramCounts counts = new IdBigramCounts();
+		ByteTokenizer tokenizer = new ByteTokenizer(new ByteWordTable(counts.getWordIndex()));
+		tokenizer.reset(buffer, buffer.position(), buffer.limit());
+		while (tokenizer.next()){
+			tokenizer.addNewWords();
+			counts.ensureCapacity(tokenizer.table.size());
+			counts.addIds(tokenizer.ids, tokenizer.length);
+		}
+		counts.finish();
+		return counts;
+	}
+
+	/**
+	 * Turn every line of the buffer into word IDs for the batch scoring methods
+	 * Words without an ID get NO_ID, which the batch methods score as <unk>
+	 * @param buffer
+	 * @param index
+	 * @return the tokens and sentence offsets
+	 */
+	public static Batch tokenizeBatch(ByteBuffer buffer, WordIndex index){
+		ByteTokenizer tokenizer = new ByteTokenizer(new ByteWordTable(index));
+		tokenizer.reset(buffer, buffer.position(), buffer.limit());
+		int[] tokens = new int[1024];
+		int[] offsets = new int[64];
+		int numTokens = 0;
+		int numSentences = 0;
+		while (tokenizer.next()){
+			int words = tokenizer.length - 2;
+			if (numTokens + words > tokens.length){
+				tokens = Arrays.copyOf(tokens, Math.max(numTokens + words, tokens.length * 2));
+			}
+			System.arraycopy(tokenizer.ids, 1, tokens, numTokens, words);
+			numTokens += words;
+			if (numSentences + 2 > offsets.length){
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			}
+			offsets[++numSentences] = numTokens;
+		}
+		return new Batch(Arrays.copyOf(tokens, numTokens), Arrays.copyOf(offsets, numSentences + 1));
+	}
+
+	/**
+	 * @param buffer
+	 * @param linesPerRange
+	 * @return start of every range of linesPerRange lines, followed by the end of the buffer
+	 */
+	static int[] splitLines(ByteBuffer buffer, int linesPerRange){
+		int[] starts = new int[16];
+		int n = 0;
+		starts[n++] = buffer.position();
+		int lines = 0;
+		for (int i = buffer.position(); i < buffer.limit(); i++){
+			if (buffer.get(i) == '\n' && ++lines % linesPerRange == 0 && i + 1 < buffer.limit()){
+				if (n == starts.length){
+					starts = Arrays.copyOf(starts, n * 2);
+				}
+				starts[n++] = i + 1;
+			}
+		}
+		starts = Arrays.copyOf(starts, n + 1);
+		starts[n] = buffer.limit();
+		return starts;
+	}
+
+	/**
+	 * Map a whole file read-only
+	 * @param filename
+	 * @return the mapped file
+	 * @throws IOException if the file cannot be read or is 2 GB or more
+	 */
+	public static ByteBuffer map(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE){
+				throw new IOException(filename + " is too big to map at once, use ParallelTrainer");
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// the mapping stays valid after the channel is closed
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package nlp.lm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Looks up word IDs by the UTF-8 bytes of the word, without making a String
+ *
+ * The bytes of every word are kept one after the other in one byte[] (word w is
+ * wordBytes[wordStart[w] .. wordStart[w+1]-1]), and an open-addressing table of word IDs
+ * is keyed by a hash of those bytes. A lookup hashes the bytes straight out of the
+ * ByteBuffer and compares them with the stored bytes.
+ *
+ * The table mirrors a WordIndex and gives the same IDs. Lookups may run on several threads
+ * at once, add() may not run alongside them.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+class ByteWordTable {
+
+	// grow the table once it is this full
+	private static final double MAX_LOAD = 0.5;
+
+	private final WordIndex index;
+
+	private byte[] wordBytes;
+	private int[] wordStart;
+	private int[] wordHash;
+	private int numWords;
+
+	// word ID + 1 per slot, 0 is empty
+	private int[] slots;
+	private int mask;
+
+	/**
+	 * Table with every word of the index
+	 * @param index
+	 */
+	ByteWordTable(WordIndex index){
+		this.index = index;
+		wordBytes = new byte[1 << 16];
+		wordStart = new int[1024 + 1];
+		wordHash = new int[1024];
+		allocate(2048);
+		sync();
+	}
+
+	/**
+	 * Add the words that were added to the index since the table was built
+	 */
+	void sync(){
+		for (int id = numWords; id < index.size(); id++){
+			byte[] word = index.getWord(id).getBytes(StandardCharsets.UTF_8);
+			append(ByteBuffer.wrap(word), 0, word.length);
+		}
+	}
+
+	/**
+	 * @param buffer
+	 * @param from first byte of the word
+	 * @param to one past the last byte of the word
+	 * @return the ID of the word or WordIndex.NO_ID if it has none
+	 */
+	int getId(ByteBuffer buffer, int from, int to){
+		int hash = hash(buffer, from, to);
+		for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask){
+			int id = slots[slot] - 1;
+			if (wordHash[id] == hash && matches(id, buffer, from, to)){
+				return id;
+			}
+		}
+		return WordIndex.NO_ID;
+	}
+
+	/**
+	 * Give the word an ID in the index and in the table if it has none yet
+	 * Only a new word is turned into a String, for the index
+	 * @param buffer
+	 * @param from first byte of the word
+	 * @param to one past the last byte of the word
+	 * @return word ID
+	 */
+	int add(ByteBuffer buffer, int from, int to){
+		int id = getId(buffer, from, to);
+		if (id != WordIndex.NO_ID){
+			return id;
+		}
+		sync();
+		byte[] word = new byte[to - from];
+		for (int i = 0; i < word.length; i++){
+			word[i] = buffer.get(from + i);
+		}
+		index.add(new String(word, StandardCharsets.UTF_8));
+		sync();
+		return getId(buffer, from, to);
+	}
+
+	/**
+	 * @return number of words in the table
+	 */
+	int size(){
+		return numWords;
+	}
+
+	/**
+	 * Store the bytes of the next word ID and put it in the hash table
+	 */
+	private void append(ByteBuffer buffer, int from, int to){
+		int length = to - from;
+		int start = wordStart[numWords];
+		if (start + length > wordBytes.length){
+			wordBytes = Arrays.copyOf(wordBytes, Math.max(start + length, wordBytes.length * 2));
+		}
+		if (numWords == wordHash.length){
+			wordHash = Arrays.copyOf(wordHash, wordHash.length * 2);
+			wordStart = Arrays.copyOf(wordStart, wordHash.length + 1);
+		}
+		for (int i = 0; i < length; i++){
+			wordBytes[start + i] = buffer.get(from + i);
+		}
+		wordStart[numWords + 1] = start + length;
+		wordHash[numWords] = hash(buffer, from, to);
+		numWords++;
+
+		if (numWords > MAX_LOAD * slots.length){
+			allocate(slots.length * 2);
+		}
+		else {
+			insert(numWords - 1);
+		}
+	}
+
+	private void allocate(int capacity){
+		slots = new int[capacity];
+		mask = capacity - 1;
+		for (int id = 0; id < numWords; id++){
+			insert(id);
+		}
+	}
+
+	private void insert(int id){
+		int slot = wordHash[id] & mask;
+		while (slots[slot] != 0){
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = id + 1;
+	}
+
+	private boolean matches(int id, ByteBuffer buffer, int from, int to){
+		int start = wordStart[id];
+		if (wordStart[id + 1] - start != to - from){
+			return false;
+		}
+		for (int i = from; i < to; i++){
+			if (wordBytes[start++] != buffer.get(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * FNV-1a over the bytes, then mixed so the low bits (used for the slot) depend on all of them
+	 */
+	private static int hash(ByteBuffer buffer, int from, int to){
+		int hash = 0x811C9DC5;
+		for (int i = from; i < to; i++){
+			hash = (hash ^ (buffer.get(i) & 0xFF)) * 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+}
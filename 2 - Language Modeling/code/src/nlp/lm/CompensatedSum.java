@@ -0,0 +1,49 @@
+package nlp.lm;
+
+/**
+ * Running sum of doubles with Neumaier (improved Kahan) compensation
+ *
+ * Adding many small log probabilities to a large total loses the low bits of each
+ * term. Keeping the lost bits in a separate compensation term makes the total
+ * accurate to about one rounding error, no matter how many values are added.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class CompensatedSum {
+
+	private double sum;
+	private double compensation;
+
+	/**
+	 * Add a value to the sum
+	 * @param value
+	 */
+	public void add(double value){
+		double total = sum + value;
+		if (Math.abs(sum) >= Math.abs(value)){
+			compensation += (sum - total) + value;
+		}
+		else {
+			compensation += (value - total) + sum;
+		}
+		sum = total;
+	}
+
+	/**
+	 * Add another sum to this one
+	 * @param other
+	 */
+	public void add(CompensatedSum other){
+		add(other.sum);
+		add(other.compensation);
+	}
+
+	/**
+	 * @return the compensated sum
+	 */
+	public double value(){
+		return sum + compensation;
+	}
+}
@@ -0,0 +1,403 @@
+package nlp.lm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Bigram counts by word ID that keep taking new sentences while other threads read them
+ *
+ * Every context word has its own cell with its unigram count, bigram total and successor
+ * list (successor IDs and counts in order of first occurrence, plus a small hash table from
+ * successor ID to position). The cells are guarded by striped StampedLocks keyed by word ID:
+ * - writers lock the stripe of one word at a time, so writers of different words never wait
+ * - readers never take a lock unless a writer was in their stripe during the read, they read
+ *   optimistically and only retry if the stamp changed
+ *
+ * Every read sees one whole update of a cell or none of it, and counts only grow. A bigram
+ * count and the total of its context change together, and the total number of words is raised
+ * before the counts of a sentence, so count <= total and sum of unigram counts <= totalNumWords
+ * whenever they are read.
+ * A probability that reads the bigram count before the bigram total (as LambdaLMModel and
+ * DiscountLMModel do) is therefore always a valid probability; it includes every update that
+ * finished before the call, and maybe part of those running during it.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class ConcurrentBigramCounts implements BigramCounts {
+
+	// number of lock stripes, a power of 2
+	private static final int STRIPES = 64;
+
+	// optimistic reads tried before a reader waits for the writer
+	private static final int OPTIMISTIC_TRIES = 3;
+
+	private final WordIndex index;
+	private final StampedLock[] locks;
+	private final LongAdder totalNumWords = new LongAdder();
+	private final AtomicInteger vocabularySize = new AtomicInteger();
+
+	// cell of every word ID, replaced by a bigger copy when new words come in
+	private volatile Cell[] cells;
+
+	/**
+	 * Counts of one context word, only changed while holding the lock of its stripe
+	 */
+	private static class Cell {
+		long unigramCount;
+		long total;
+
+		// count mass the copied counts had pruned, fixed after the constructor
+		long prunedCount;
+		int numSuccessors;
+		int[] successorIds = new int[2];
+		int[] successorCounts = new int[2];
+
+		// successor ID -> position + 1, open addressing (0 is empty)
+		int[] positions = new int[4];
+
+		/**
+		 * May be called without the lock: reads are bounds checked and the caller
+		 * validates the stamp before using the result
+		 * @param second
+		 * @return position of second in the successor list, or -1
+		 */
+		int find(int second){
+			int[] table = positions;
+			int[] ids = successorIds;
+			int mask = table.length - 1;
+			for (int probe = 0, slot = hash(second) & mask; probe < table.length; probe++, slot = (slot + 1) & mask){
+				int position = table[slot] - 1;
+				if (position < 0){
+					return -1;
+				}
+				if (position < ids.length && ids[position] == second){
+					return position;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Add one to the count of (this word, second), holding the lock
+		 * @param second
+		 * @return true if the bigram was new
+		 */
+		boolean increment(int second){
+			total++;
+			int position = find(second);
+			if (position >= 0){
+				successorCounts[position]++;
+				return false;
+			}
+
+			if (numSuccessors == successorIds.length){
+				successorIds = Arrays.copyOf(successorIds, numSuccessors * 2);
+				successorCounts = Arrays.copyOf(successorCounts, numSuccessors * 2);
+			}
+			successorIds[numSuccessors] = second;
+			successorCounts[numSuccessors] = 1;
+			numSuccessors++;
+
+			// keep the hash table at most half full
+			if (numSuccessors * 2 > positions.length){
+				int[] bigger = new int[positions.length * 2];
+				for (int p = 0; p < numSuccessors; p++){
+					insert(bigger, successorIds[p], p);
+				}
+				positions = bigger;
+			}
+			else {
+				insert(positions, second, numSuccessors - 1);
+			}
+			return true;
+		}
+
+		private static void insert(int[] table, int second, int position){
+			int mask = table.length - 1;
+			int slot = hash(second) & mask;
+			while (table[slot] != 0){
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = position + 1;
+		}
+
+		private static int hash(int id){
+			return BigramCountTable.hash(id);
+		}
+	}
+
+	/**
+	 * Copy trained counts so more sentences can be added to them
+	 * The word index is shared with the trained counts
+	 * @param counts
+	 * @throws IllegalArgumentException for approximate counts, which do not list every seen bigram
+	 */
+	public ConcurrentBigramCounts(BigramCounts counts){
+		if (counts instanceof SketchBigramCounts){
+			throw new IllegalArgumentException("approximate counts do not list every seen bigram");
+		}
+		index = counts.getWordIndex();
+		locks = new StampedLock[STRIPES];
+		for (int i = 0; i < STRIPES; i++){
+			locks[i] = new StampedLock();
+		}
+
+		int numWords = index.size();
+		Cell[] copy = new Cell[Math.max(1024, numWords)];
+		for (int id = 0; id < numWords; id++){
+			Cell cell = new Cell();
+			cell.unigramCount = (long) counts.getUnigramCount(id);
+			for (int k = 0; k < counts.getNumSuccessors(id); k++){
+				int second = counts.getSuccessor(id, k);
+				cell.increment(second);
+				cell.successorCounts[cell.find(second)] = (int) counts.getSuccessorCount(id, k);
+			}
+			cell.total = (long) counts.getBigramTotal(id);
+			cell.prunedCount = (long) counts.getPrunedCount(id);
+			copy[id] = cell;
+		}
+		for (int id = numWords; id < copy.length; id++){
+			copy[id] = new Cell();
+		}
+		cells = copy;
+		totalNumWords.add((long) counts.getTotalNumWords());
+		vocabularySize.set(counts.getVocabularySize());
+	}
+
+	/**
+	 * Count a new sentence, safe to call from several threads at once
+	 * The first occurrence of every word is counted as <unk>, as in LMBase.trainModel
+	 * @param words the sentence, starting with <s> and ending with </s>
+	 */
+	public void addSentence(String[] words){
+		int[] ids = new int[words.length];
+		ids[0] = WordIndex.START;
+		ids[words.length - 1] = WordIndex.END;
+		for (int i = 1; i < words.length - 1; i++){
+			ids[i] = getOrAdd(words[i]);
+		}
+
+		totalNumWords.add(words.length);
+		for (int i = 0; i < ids.length; i++){
+			int id = ids[i];
+			StampedLock lock = locks[id & (STRIPES - 1)];
+			long stamp = lock.writeLock();
+			try {
+				Cell cell = cells[id];
+				if (cell.unigramCount++ == 0 && id > WordIndex.END){
+					vocabularySize.incrementAndGet();
+				}
+				if (i < ids.length - 1){
+					cell.increment(ids[i + 1]);
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/**
+	 * @param word
+	 * @return the ID of the word, or <unk> if this is the first time the word is seen
+	 */
+	private int getOrAdd(String word){
+		int id = index.getId(word);
+		if (id != WordIndex.NO_ID){
+			return id;
+		}
+		synchronized (index){
+			// another writer may have added it in the meantime
+			id = index.getId(word);
+			if (id != WordIndex.NO_ID){
+				return id;
+			}
+
+			// the cell has to exist before other threads can look up the new ID
+			if (index.size() >= cells.length){
+				Cell[] bigger = Arrays.copyOf(cells, cells.length * 2);
+				for (int i = cells.length; i < bigger.length; i++){
+					bigger[i] = new Cell();
+				}
+				cells = bigger;
+			}
+			index.add(word);
+			return WordIndex.UNK;
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return the cell of the word, or null if it has no ID
+	 */
+	private Cell cell(int id){
+		Cell[] current = cells;
+		return id < 0 || id >= current.length ? null : current[id];
+	}
+
+	@Override
+	public WordIndex getWordIndex() {
+		return index;
+	}
+
+	@Override
+	public double getTotalNumWords() {
+		return totalNumWords.sum();
+	}
+
+	@Override
+	public int getVocabularySize() {
+		return vocabularySize.get();
+	}
+
+	@Override
+	public boolean isInVocabulary(int id) {
+		return id >= 0 && id < index.size() && (id <= WordIndex.END || getUnigramCount(id) > 0);
+	}
+
+	@Override
+	public double getUnigramCount(int id) {
+		Cell cell = cell(id);
+		if (cell == null){
+			return 0;
+		}
+		StampedLock lock = locks[id & (STRIPES - 1)];
+		for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++){
+			long stamp = lock.tryOptimisticRead();
+			long count = cell.unigramCount;
+			if (lock.validate(stamp)){
+				return count;
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return cell.unigramCount;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public double getBigramTotal(int first) {
+		Cell cell = cell(first);
+		if (cell == null){
+			return 0;
+		}
+		StampedLock lock = locks[first & (STRIPES - 1)];
+		for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++){
+			long stamp = lock.tryOptimisticRead();
+			long total = cell.total;
+			if (lock.validate(stamp)){
+				return total;
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return cell.total;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public double getBigramCount(int first, int second) {
+		Cell cell = cell(first);
+		if (cell == null || second < 0){
+			return 0;
+		}
+		StampedLock lock = locks[first & (STRIPES - 1)];
+		for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++){
+			long stamp = lock.tryOptimisticRead();
+			int[] counts = cell.successorCounts;
+			int position = cell.find(second);
+			int count = position >= 0 && position < counts.length ? counts[position] : 0;
+			if (lock.validate(stamp)){
+				return count;
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			int position = cell.find(second);
+			return position >= 0 ? cell.successorCounts[position] : 0;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * New sentences are never pruned, so this is whatever the copied counts had pruned
+	 */
+	@Override
+	public double getPrunedCount(int first) {
+		Cell cell = cell(first);
+		return cell == null ? 0 : cell.prunedCount;
+	}
+
+	@Override
+	public int getNumSuccessors(int first) {
+		Cell cell = cell(first);
+		if (cell == null){
+			return 0;
+		}
+		StampedLock lock = locks[first & (STRIPES - 1)];
+		for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++){
+			long stamp = lock.tryOptimisticRead();
+			int numSuccessors = cell.numSuccessors;
+			if (lock.validate(stamp)){
+				return numSuccessors;
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return cell.numSuccessors;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Successors are only ever appended, so k stays valid after getNumSuccessors returned
+	 */
+	@Override
+	public int getSuccessor(int first, int k) {
+		Cell cell = cell(first);
+		StampedLock lock = locks[first & (STRIPES - 1)];
+		for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++){
+			long stamp = lock.tryOptimisticRead();
+			int[] ids = cell.successorIds;
+			int id = k < ids.length ? ids[k] : WordIndex.NO_ID;
+			if (lock.validate(stamp)){
+				return id;
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return cell.successorIds[k];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public double getSuccessorCount(int first, int k) {
+		Cell cell = cell(first);
+		StampedLock lock = locks[first & (STRIPES - 1)];
+		for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++){
+			long stamp = lock.tryOptimisticRead();
+			int[] counts = cell.successorCounts;
+			int count = k < counts.length ? counts[k] : 0;
+			if (lock.validate(stamp)){
+				return count;
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return cell.successorCounts[k];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+}
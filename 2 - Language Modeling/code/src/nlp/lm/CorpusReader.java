@@ -0,0 +1,336 @@
+package nlp.lm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the lines of a corpus that may be split over many files, plain or gzip
+ *
+ * The corpus is given as
+ * - a file: read directly as before unless it is gzip
+ * - a directory: every file in it, in name order
+ * - a glob such as data/shard-*.gz or data/** /*.txt (without the space): every matching
+ *   file, in name order
+ * Gzip files are found by their magic number, not their name, and shards are read as UTF-8.
+ *
+ * Lines always come out in file order and in order within a file, so training on the shards
+ * gives the same counts as training on the files put together. Reader threads decompress the
+ * next few files ahead of the counter, each into its own bounded queue of line blocks; the
+ * counter only takes blocks out of the queue of the file it is on. So at most
+ * readers * QUEUE_BLOCKS * BLOCK_LINES lines are held in memory, and while the counter keeps
+ * the readers busy, training runs at the speed of counting rather than of reading.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class CorpusReader implements Closeable {
+
+	// lines handed over at once, so the queues are not touched for every line
+	private static final int BLOCK_LINES = 1024;
+
+	// blocks a reader may get ahead of the counter in one file
+	private static final int QUEUE_BLOCKS = 16;
+
+	// at most this many reader threads by default
+	private static final int MAX_DEFAULT_READERS = 4;
+
+	// end of a file
+	private static final Block END = new Block(new String[0], 0, null);
+
+	// read directly when the corpus is one plain file, else null
+	private final BufferedReader single;
+
+	private final List<Path> files;
+	private final ArrayList<ArrayBlockingQueue<Block>> queues;
+	private final ExecutorService readers;
+
+	// the file and block the lines are taken from
+	private int currentFile;
+	private Block block;
+	private int position;
+
+	/**
+	 * Some lines of a file, or the error that stopped reading it
+	 */
+	private static class Block {
+		final String[] lines;
+		final int size;
+		final IOException error;
+
+		Block(String[] lines, int size, IOException error){
+			this.lines = lines;
+			this.size = size;
+			this.error = error;
+		}
+	}
+
+	private CorpusReader(BufferedReader single){
+		this.single = single;
+		this.files = null;
+		this.queues = null;
+		this.readers = null;
+	}
+
+	private CorpusReader(List<Path> files, int numReaders){
+		this.single = null;
+		this.files = files;
+		this.queues = new ArrayList<ArrayBlockingQueue<Block>>(files.size());
+		for (int i = 0; i < files.size(); i++){
+			queues.add(new ArrayBlockingQueue<Block>(QUEUE_BLOCKS));
+		}
+		this.readers = Executors.newFixedThreadPool(numReaders, new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CorpusReader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// every reader takes the next file nobody has started yet
+		final AtomicInteger nextFile = new AtomicInteger();
+		for (int r = 0; r < numReaders; r++){
+			readers.execute(new Runnable(){
+				@Override
+				public void run(){
+					try {
+						for (int f = nextFile.getAndIncrement(); f < CorpusReader.this.files.size(); f = nextFile.getAndIncrement()){
+							readFile(f);
+						}
+					} catch (InterruptedException e) {
+						// closed before everything was read
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Open a corpus with a reader thread per core (at most 4)
+	 * @param corpus a file, a directory or a glob
+	 * @return reader over all its lines
+	 * @throws IOException if nothing matches or a directory cannot be listed
+	 */
+	public static CorpusReader open(String corpus) throws IOException {
+		int readers = Math.min(MAX_DEFAULT_READERS, Runtime.getRuntime().availableProcessors());
+		return open(corpus, readers);
+	}
+
+	/**
+	 * @param corpus a file, a directory or a glob
+	 * @param numReaders number of threads decompressing ahead
+	 * @return reader over all its lines
+	 * @throws IOException if nothing matches or a directory cannot be listed
+	 */
+	public static CorpusReader open(String corpus, int numReaders) throws IOException {
+		if (!isGlob(corpus) && Files.isRegularFile(Paths.get(corpus)) && !isGzip(Paths.get(corpus))){
+			return new CorpusReader(new BufferedReader(new InputStreamReader(new FileInputStream(corpus), StandardCharsets.UTF_8)));
+		}
+		List<Path> files = listFiles(corpus);
+		if (files.isEmpty()){
+			throw new IOException("no files match " + corpus);
+		}
+		return new CorpusReader(files, Math.max(1, Math.min(numReaders, files.size())));
+	}
+
+	/**
+	 * @param corpus a file, a directory or a glob
+	 * @return every file of the corpus, in name order
+	 * @throws IOException if a directory cannot be listed
+	 */
+	public static List<Path> listFiles(String corpus) throws IOException {
+		final ArrayList<Path> files = new ArrayList<Path>();
+		if (!isGlob(corpus)){
+			Path path = Paths.get(corpus);
+			if (Files.isDirectory(path)){
+				DirectoryStream<Path> stream = Files.newDirectoryStream(path);
+				try {
+					for (Path file : stream){
+						if (Files.isRegularFile(file)){
+							files.add(file);
+						}
+					}
+				} finally {
+					stream.close();
+				}
+			}
+			else if (Files.isRegularFile(path)){
+				files.add(path);
+			}
+		}
+		else {
+			// walk from the deepest directory without a wildcard, only as deep as the glob goes
+			Path glob = Paths.get(corpus);
+			Path base = glob.isAbsolute() ? glob.getRoot() : null;
+			int depth = 0;
+			for (Path part : glob){
+				if (depth > 0 || isGlob(part.toString())){
+					depth++;
+				}
+				else {
+					base = base == null ? part : base.resolve(part);
+				}
+			}
+			if (base == null){
+				base = Paths.get("");
+			}
+			if (corpus.contains("**")){
+				depth = Integer.MAX_VALUE;
+			}
+			final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + corpus);
+			if (Files.isDirectory(base)){
+				Files.walkFileTree(base, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<Path>(){
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						if (attrs.isRegularFile() && matcher.matches(file)){
+							files.add(file);
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * @return the next line of the corpus, or null at the end of the last file
+	 * @throws IOException if a file could not be read
+	 */
+	public String readLine() throws IOException {
+		if (single != null){
+			return single.readLine();
+		}
+		while (block == null || position == block.size){
+			if (currentFile == files.size()){
+				return null;
+			}
+			try {
+				block = queues.get(currentFile).take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while reading " + files.get(currentFile), e);
+			}
+			position = 0;
+			if (block.error != null){
+				throw block.error;
+			}
+			if (block == END){
+				// let the queue go, the file is done
+				queues.set(currentFile, null);
+				currentFile++;
+			}
+		}
+		return block.lines[position++];
+	}
+
+	/**
+	 * Stop the reader threads
+	 */
+	@Override
+	public void close() throws IOException {
+		if (single != null){
+			single.close();
+		}
+		else {
+			readers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Read one file into its queue (on a reader thread)
+	 * @param f
+	 * @throws InterruptedException if the reader was closed
+	 */
+	private void readFile(int f) throws InterruptedException {
+		ArrayBlockingQueue<Block> queue = queues.get(f);
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(openStream(files.get(f)), StandardCharsets.UTF_8), 1 << 16);
+			try {
+				String[] lines = new String[BLOCK_LINES];
+				int size = 0;
+				for (String line = br.readLine(); line != null; line = br.readLine()){
+					lines[size++] = line;
+					if (size == BLOCK_LINES){
+						queue.put(new Block(lines, size, null));
+						lines = new String[BLOCK_LINES];
+						size = 0;
+					}
+				}
+				if (size > 0){
+					queue.put(new Block(lines, size, null));
+				}
+			} finally {
+				br.close();
+			}
+			queue.put(END);
+		} catch (IOException e) {
+			queue.put(new Block(null, 0, new IOException("could not read " + files.get(f), e)));
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return the bytes of the file, decompressed if it is gzip
+	 * @throws IOException
+	 */
+	private static InputStream openStream(Path file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file.toFile()), 1 << 16);
+		in.mark(2);
+		boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+		in.reset();
+		return gzip ? new GZIPInputStream(in, 1 << 16) : in;
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file starts with the gzip magic number
+	 * @throws IOException
+	 */
+	private static boolean isGzip(Path file) throws IOException {
+		InputStream in = new FileInputStream(file.toFile());
+		try {
+			return in.read() == 0x1f && in.read() == 0x8b;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean isGlob(String text){
+		for (int i = 0; i < text.length(); i++){
+			char c = text.charAt(i);
+			if (c == '*' || c == '?' || c == '[' || c == '{'){
+				return true;
+			}
+		}
+		return false;
+	}
+}
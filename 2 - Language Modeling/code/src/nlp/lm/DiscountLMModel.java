@@ -1,5 +1,8 @@
 package nlp.lm;
 
+import java.io.IOException;
+import java.util.Collection;
+
 /**
  * Class for bigram language model with absolute discount smoothing
  * 
@@ -11,50 +14,178 @@ public class DiscountLMModel extends LMBase implements LMModel {
 
 	private double discount;
 	
+	// precomputed probabilities, set by compile() and dropped when the counts are updated
+	private volatile DiscountScoreTable compiled;
+	
 	public DiscountLMModel(String filename, double discount){
 		trainModel(filename);
 		this.discount = discount;
 
 	}
+	
+	/**
+	 * Same as above, but if useIds is true the counts are kept by word ID in primitive tables
+	 * @param filename
+	 * @param discount
+	 * @param useIds
+	 */
+	public DiscountLMModel(String filename, double discount, boolean useIds){
+		trainModel(filename, useIds);
+		this.discount = discount;
+	}
+	
+	/**
+	 * Use counts that are already trained (e.g. a snapshot from LMBase.loadCounts) instead of a corpus
+	 * @param counts
+	 * @param discount
+	 */
+	public DiscountLMModel(BigramCounts counts, double discount){
+		useCounts(counts);
+		this.discount = discount;
+	}
+	
+	/**
+	 * Precompute alpha for every context word, the unigram probabilities and the
+	 * probabilities of all seen bigrams (see DiscountScoreTable)
+	 * After this every getBigramProb call is O(1) instead of O(successors of first)
+	 * If the counts change while the tables are built (see LMBase.getCountsVersion) they are
+	 * dropped, as they would be by countsChanged()
+	 */
+	public void compile(){
+		getIdCounts();
+		long version = getCountsVersion();
+		DiscountScoreTable table = new DiscountScoreTable(idCounts, discount);
+		synchronized (this){
+			if (getCountsVersion() == version){
+				compiled = table;
+			}
+		}
+	}
 
 	/**
 	 * Given a bigram, return its probability
 	 * If the bigram has been seen, P(a | b) = (C(ab) - D)/C(b)
 	 * Else, P(a | b) = alpha(b) * P(a)
+	 * where alpha(b) spreads the discounted mass, plus the mass of pruned bigrams, over the unseen words
 	 * @param first
 	 * @param second
 	 * @return probability
 	 */
 	@Override
 	public double getBigramProb(String first, String second) {
+		DiscountScoreTable table = compiled;
+		if (table != null || idCounts instanceof SketchBigramCounts){
+			WordIndex index = idCounts.getWordIndex();
+			return getBigramProb(index.getId(first), index.getId(second));
+		}
+		
 		double bigramProb = 0.0;
+		double count = getBigramCount(first, second);
+		LMMetrics.bigram(count > 0);
+		LMMetrics.discountLookup(count <= 0);
 		
 		// if we have seen the bigram (i.e. count(xy) > 0)
-		if (bigramCounts.containsKey(first) && bigramCounts.get(first).containsKey(second)){
-			bigramProb = (bigramCounts.get(first).get(second) - discount)/(bigramTotals.get(first));
+		if (count > 0){
+			bigramProb = SmoothingFormulas.discountProb(count, getBigramTotal(first), discount);
 		}
 		// alpha (x) * P_absolute(y)
 		else {
 			// calculate reserved mass
 		
 			// all words at this point are either seen or have prev. been replaced by <unk>
-			double options = bigramCounts.get(first).size();
-			double total = bigramTotals.get(first);
-			double reserved_mass = (options*discount)/total;
+			Collection<String> successors = getSuccessors(first);
+			
+			// bigrams cut by a count cutoff are unseen now, so their count goes to the reserved mass too
+			double reserved_mass = SmoothingFormulas.reservedMass(successors.size(), getPrunedCount(first), getBigramTotal(first), discount);
 			
 			// calculate denominator (1 - sum of P > 0)
 			// for each second word bigram option from first 
 			double positiveProbs = 0.0;	
-			for (String possibleSecond : bigramCounts.get(first).keySet()){
-				positiveProbs += unigramCounts.get(possibleSecond)/totalNumWords;
+			double totalNumWords = getTotalNumWords();
+			for (String possibleSecond : successors){
+				positiveProbs += getUnigramCount(possibleSecond)/totalNumWords;
 			}
 
 			double alpha =  reserved_mass/(1 - positiveProbs);	
-			bigramProb = alpha * unigramCounts.get(second)/totalNumWords;
+			bigramProb = alpha * getUnigramCount(second)/totalNumWords;
 		}
 		return bigramProb;
 	}
 	
+	/**
+	 * Same as getBigramProb(String, String) for word IDs
+	 * @param first
+	 * @param second
+	 * @return probability
+	 */
+	@Override
+	public double getBigramProb(int first, int second) {
+		DiscountScoreTable table = compiled;
+		if (table != null){
+			return mightBeSeen(first, second) ? table.getBigramProb(first, second) : table.getUnseenProb(first, second);
+		}
+		
+		BigramCounts counts = getIdCounts();
+		double count = getBigramCount(counts, first, second);
+		double total = counts.getBigramTotal(first);
+		LMMetrics.bigram(count > 0);
+		LMMetrics.discountLookup(count <= 0);
+		
+		if (count > 0){
+			return SmoothingFormulas.discountProb(count, total, discount);
+		}
+		
+		// alpha (x) * P_absolute(y)
+		return getBackoffWeight(first) * getBackoffProb(second);
+	}
+	
+	/**
+	 * Unseen bigrams get alpha(first) * P(second)
+	 */
+	@Override
+	public boolean hasBackoffForm(){
+		return true;
+	}
+	
+	/**
+	 * @param first
+	 * @return alpha(first)
+	 */
+	@Override
+	public double getBackoffWeight(int first){
+		DiscountScoreTable table = compiled;
+		if (table != null){
+			return table.getAlpha(first);
+		}
+		
+		BigramCounts counts = getIdCounts();
+		
+		// approximate counts only list the heavy hitters, so these use their estimates of all successors
+		return SmoothingFormulas.reservedMass(counts, first, discount)/SmoothingFormulas.unseenMass(counts, first);
+	}
+	
+	/**
+	 * @param second
+	 * @return P(second)
+	 */
+	@Override
+	public double getBackoffProb(int second){
+		return SmoothingFormulas.unigramProb(getIdCounts(), second);
+	}
+	
+	/**
+	 * The compiled tables no longer match the counts, so go back to computing alpha
+	 * until compile() is called again
+	 */
+	@Override
+	protected void countsChanged(){
+		// the version goes up first, so a compile() that stores after this sees the change
+		super.countsChanged();
+		synchronized (this){
+			compiled = null;
+		}
+	}
+	
 	/**
 	 * ABSOLUTE DISCOUNTING LANGUAGE MODEL
 	 * Main method used for testing, training and evaluating! 
@@ -66,12 +197,16 @@ public class DiscountLMModel extends LMBase implements LMModel {
 		// train the models
 		double[] discounts = {.99, .9, .75, .5, .25, .1};
 		
-		for (int i = 0; i < discounts.length; i++) {
-			System.out.println("Training Discount Language Model with discount = " + discounts[i] + " ...");
-			DiscountLMModel model = new DiscountLMModel("src/sentences", discounts[i]);
-			
-			// get perplexity
-			System.out.println("Perplexity: " + model.getPerplexity("src/sentences"));
+		// train once and get the perplexity for every discount in one pass
+		System.out.println("Training Discount Language Model ...");
+		IdBigramCounts counts = trainCounts("src/sentences");
+		try {
+			PerplexityEvaluator.Result[] results = new SmoothingSweep(counts, Runtime.getRuntime().availableProcessors()).discounts("src/sentences", discounts);
+			for (int i = 0; i < discounts.length; i++) {
+				System.out.println("Discount = " + discounts[i] + " Perplexity: " + results[i].perplexity);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 		
 		// generate sentences with best discount model
@@ -0,0 +1,117 @@
+package nlp.lm;
+
+/**
+ * Class for n-gram language model of any order with absolute discount smoothing
+ *
+ * If the n-gram has been seen, P(w | h) = (C(h w) - D)/C(h .)
+ * Else, P(w | h) = alpha(h) * P(w | h without its first word), down to P(w) = C(w)/N.
+ * A history that was never seen before another word backs off with weight 1.
+ * alpha(h) is computed for every history once after training, so a query costs
+ * at most order lookups per backoff step. With order 2 this is DiscountLMModel.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class DiscountNGramModel extends NGramLMBase {
+
+	private final double discount;
+
+	// alpha of every node of levels 1..order-1, stored at [level - 1]
+	private double[][] alpha;
+
+	/**
+	 * DiscountNGramModel Constructor
+	 * @param filename
+	 * @param order
+	 * @param discount
+	 */
+	public DiscountNGramModel(String filename, int order, double discount){
+		this.discount = discount;
+		trainModel(filename, order);
+		computeAlphas();
+	}
+
+	@Override
+	public double getNGramProb(int[] ids, int from, int to) {
+		int word = ids[to - 1];
+		if (to - from == 1){
+			return word < 0 ? 0 : trie.getCount(1, word)/trie.getTotalNumWords();
+		}
+
+		int level = to - 1 - from;
+		int node = trie.find(ids, from, to - 1);
+		if (node < 0 || trie.getContextTotal(level, node) == 0){
+			return getNGramProb(ids, from + 1, to);
+		}
+
+		// if we have seen the n-gram
+		int child = word < 0 ? -1 : trie.findChild(level, node, word);
+		if (child >= 0){
+			return (trie.getCount(level + 1, child) - discount)/trie.getContextTotal(level, node);
+		}
+		return alpha[level - 1][node] * getNGramProb(ids, from + 1, to);
+	}
+
+	/**
+	 * Compute alpha for every history, one level at a time since alpha of a level
+	 * needs the probabilities (and so the alphas) of the levels below it
+	 */
+	private void computeAlphas(){
+		int order = trie.getOrder();
+		alpha = new double[Math.max(order - 1, 0)][];
+		int[] path = new int[order + 1];
+		for (int level = 1; level < order; level++){
+			alpha[level - 1] = new double[trie.numNodes(level)];
+			for (int word = 0; word < trie.numNodes(1); word++){
+				path[0] = word;
+				computeAlphas(1, word, path, level);
+			}
+		}
+	}
+
+	/**
+	 * Walk down to the nodes of the target level and compute their alpha
+	 * @param level level of node
+	 * @param node
+	 * @param path the words of the n-gram of node in path[0 .. level-1]
+	 * @param target level whose alphas are computed
+	 */
+	private void computeAlphas(int level, int node, int[] path, int target){
+		int options = trie.getNumChildren(level, node);
+		int firstChild = options == 0 ? 0 : trie.getFirstChild(level, node);
+		if (level < target){
+			for (int k = 0; k < options; k++){
+				path[level] = trie.getWord(level + 1, firstChild + k);
+				computeAlphas(level + 1, firstChild + k, path, target);
+			}
+			return;
+		}
+
+		double total = trie.getContextTotal(level, node);
+		if (total == 0){
+			alpha[level - 1][node] = 1.0;
+			return;
+		}
+
+		// calculate denominator (1 - sum of the lower order P of the seen words)
+		double reserved_mass = (options*discount)/total;
+		double positiveProbs = 0.0;
+		for (int k = 0; k < options; k++){
+			path[level] = trie.getWord(level + 1, firstChild + k);
+			positiveProbs += getNGramProb(path, 1, level + 1);
+		}
+		alpha[level - 1][node] = reserved_mass/(1 - positiveProbs);
+	}
+
+	/**
+	 * @return approximate heap size of the alphas in bytes
+	 */
+	public long alphaMemoryBytes(){
+		long bytes = 0;
+		for (double[] levelAlpha : alpha){
+			bytes += (long) levelAlpha.length * Double.BYTES;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,137 @@
+package nlp.lm;
+
+/**
+ * Precomputed absolute discount probabilities for a trained DiscountLMModel
+ *
+ * alpha(first) only depends on the successors of first, so it is computed once per
+ * context word instead of once per unseen bigram. Together with the unigram
+ * probabilities and the discounted probabilities of all seen bigrams this makes
+ * every query O(1) and allocation free:
+ * seen:   P(second | first) = seenProb[position of (first, second)]
+ * unseen: P(second | first) = alpha[first] * unigramProb[second]
+ *
+ * Probabilities are stored (rather than log probabilities) because getBigramProb and
+ * the perplexity evaluator both work on probabilities.
+ *
+ * For SketchBigramCounts only the heavy hitters are in the table, other bigrams are looked
+ * up in the sketch and alpha comes from its estimates of the distinct successors
+ * (BigramCounts.getNumDistinctSuccessors and getSuccessorMass).
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class DiscountScoreTable {
+
+	private final int numWords;
+	private final double[] alpha;
+	private final double[] unigramProb;
+
+	// (first, second) -> 1 + index into seenProb
+	private final BigramCountTable seenPosition;
+	private final double[] seenProb;
+
+	// approximate counts to look up the bigrams that are not in the table, or null
+	private final SketchBigramCounts sketch;
+	private final double discount;
+
+	/**
+	 * Compute the tables for the counts and discount
+	 * @param counts
+	 * @param discount
+	 */
+	public DiscountScoreTable(BigramCounts counts, double discount){
+		numWords = counts.getWordIndex().size();
+		sketch = counts instanceof SketchBigramCounts ? (SketchBigramCounts) counts : null;
+		this.discount = discount;
+
+		unigramProb = new double[numWords];
+		for (int id = 0; id < numWords; id++){
+			unigramProb[id] = SmoothingFormulas.unigramProb(counts, id);
+		}
+
+		int numBigrams = 0;
+		for (int first = 0; first < numWords; first++){
+			numBigrams += counts.getNumSuccessors(first);
+		}
+
+		alpha = new double[numWords];
+		seenPosition = new BigramCountTable(numBigrams);
+		seenProb = new double[numBigrams];
+		int position = 0;
+		for (int first = 0; first < numWords; first++){
+			double total = counts.getBigramTotal(first);
+
+			// an update may have added bigrams since they were counted, the table is then
+			// dropped anyway (see DiscountLMModel.compile) so they are left out
+			int numSuccessors = Math.min(counts.getNumSuccessors(first), numBigrams - position);
+			for (int k = 0; k < numSuccessors; k++){
+				int second = counts.getSuccessor(first, k);
+				seenProb[position] = SmoothingFormulas.discountProb(counts.getSuccessorCount(first, k), total, discount);
+				seenPosition.add(BigramCountTable.key(first, second), position + 1);
+				position++;
+			}
+
+			// same formula as DiscountLMModel.getBackoffWeight
+			alpha[first] = SmoothingFormulas.reservedMass(counts, first, discount)/SmoothingFormulas.unseenMass(counts, first);
+		}
+	}
+
+	/**
+	 * @param first
+	 * @param second
+	 * @return P(second | first), 0 if either word has no ID
+	 */
+	public double getBigramProb(int first, int second){
+		if (first < 0 || second < 0 || first >= numWords || second >= numWords){
+			return 0;
+		}
+		int position = seenPosition.get(first, second);
+		if (position > 0){
+			LMMetrics.bigram(true);
+			LMMetrics.discountLookup(false);
+			return seenProb[position - 1];
+		}
+		if (sketch != null){
+			double count = sketch.getBigramCount(first, second);
+			if (count > 0){
+				LMMetrics.bigram(true);
+				LMMetrics.discountLookup(false);
+				return SmoothingFormulas.discountProb(count, sketch.getBigramTotal(first), discount);
+			}
+		}
+		LMMetrics.bigram(false);
+		LMMetrics.discountLookup(true);
+		return alpha[first] * unigramProb[second];
+	}
+
+	/**
+	 * Same as getBigramProb for a bigram known to be unseen (e.g. ruled out by a Bloom filter)
+	 * @param first
+	 * @param second
+	 * @return alpha(first) * P(second), 0 if either word has no ID
+	 */
+	public double getUnseenProb(int first, int second){
+		if (first < 0 || second < 0 || first >= numWords || second >= numWords){
+			return 0;
+		}
+		LMMetrics.bigram(false);
+		LMMetrics.discountLookup(true);
+		return alpha[first] * unigramProb[second];
+	}
+
+	/**
+	 * @param first
+	 * @return the backoff weight alpha(first)
+	 */
+	public double getAlpha(int first){
+		return alpha[first];
+	}
+
+	/**
+	 * @return approximate heap size of the tables in bytes
+	 */
+	public long memoryBytes(){
+		return (long) (alpha.length + unigramProb.length + seenProb.length) * Double.BYTES + seenPosition.memoryBytes();
+	}
+}
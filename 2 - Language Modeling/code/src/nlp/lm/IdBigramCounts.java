@@ -0,0 +1,420 @@
+package nlp.lm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bigram counts stored by word ID in primitive arrays
+ *
+ * Words are mapped to dense IDs once (WordIndex), unigram counts and bigram totals
+ * live in long[] indexed by ID and bigram counts live in a BigramCountTable.
+ * Once training is done, finish() builds a sorted successor list for every
+ * context word so the successors of a word can be walked without scanning the table.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class IdBigramCounts implements BigramCounts {
+
+	private final WordIndex index;
+	private BigramCountTable bigrams;
+
+	private long[] unigramCounts;
+	private long[] bigramTotals;
+	private long totalNumWords;
+	private int vocabularySize;
+
+	// reusable buffer holding the IDs of the sentence being counted
+	private int[] sentIds;
+
+	// successors of word w are successorIds[successorStart[w] .. successorStart[w+1]-1]
+	private int[] successorStart;
+	private int[] successorIds;
+	private int[] successorCounts;
+
+	// count mass of the bigrams dropped by prune() per context word, null if nothing was dropped
+	private long[] prunedCounts;
+
+	// Kneser-Ney counts, kept up to date by addIds after countKneserNey(),
+	// null if they were not asked for or merge or prune made them stale
+	private KneserNeyStats kneserNeyStats;
+
+	public IdBigramCounts(){
+		this(new WordIndex());
+	}
+
+	/**
+	 * Counts over an existing word index, used when several shards are counted
+	 * with the same (already built) index and merged afterwards
+	 * @param index
+	 */
+	IdBigramCounts(WordIndex index){
+		this.index = index;
+		bigrams = new BigramCountTable();
+		unigramCounts = new long[Math.max(1024, index.size())];
+		bigramTotals = new long[Math.max(1024, index.size())];
+		sentIds = new int[64];
+	}
+
+	/**
+	 * Gather the Kneser-Ney counts while counting, so KneserNeyLMModel does not need another
+	 * pass over the bigrams (call before the first sentence)
+	 * Other models do not use them, so they are not kept unless asked for
+	 */
+	void countKneserNey(){
+		kneserNeyStats = new KneserNeyStats(unigramCounts.length);
+	}
+
+	/**
+	 * Count a training sentence
+	 * The first occurrence of every word is counted as <unk>, as in LMBase.trainModel
+	 * @param words the sentence, starting with <s> and ending with </s>
+	 */
+	public void addSentence(String[] words){
+		if (sentIds.length < words.length){
+			sentIds = new int[Math.max(words.length, sentIds.length * 2)];
+		}
+
+		sentIds[0] = WordIndex.START;
+		sentIds[words.length - 1] = WordIndex.END;
+
+		// go through all the words (not including start and end)
+		for (int i = 1; i < words.length - 1; i++){
+			int id = index.getId(words[i]);
+
+			// first time we see the word so it counts as <unk>
+			if (id == WordIndex.NO_ID){
+				id = index.add(words[i]);
+				ensureCapacity(id + 1);
+				sentIds[i] = WordIndex.UNK;
+			}
+			else {
+				sentIds[i] = id;
+			}
+		}
+		addIds(sentIds, words.length);
+	}
+
+	/**
+	 * Count a sentence whose words have already been turned into IDs
+	 * (including <s> and </s>, with first occurrences already replaced by <unk>)
+	 * @param ids
+	 * @param length number of IDs in the sentence
+	 */
+	void addIds(int[] ids, int length){
+		totalNumWords += length;
+		for (int i = 0; i < length; i++){
+			unigramCounts[ids[i]]++;
+		}
+
+		// count the bigrams of the sentence
+		KneserNeyStats stats = kneserNeyStats;
+		for (int i = 0; i < length - 1; i++){
+			int count = bigrams.increment(ids[i], ids[i+1]);
+			bigramTotals[ids[i]]++;
+			if (stats != null){
+				stats.add(ids[i], ids[i+1], count);
+			}
+		}
+	}
+
+	/**
+	 * Add the counts of other (counted over the same word index) to these counts
+	 * @param other
+	 */
+	void merge(IdBigramCounts other){
+		ensureCapacity(index.size());
+		kneserNeyStats = null;
+		totalNumWords += other.totalNumWords;
+		for (int id = 0; id < index.size() && id < other.unigramCounts.length; id++){
+			unigramCounts[id] += other.unigramCounts[id];
+			bigramTotals[id] += other.bigramTotals[id];
+		}
+		BigramCountTable otherBigrams = other.bigrams;
+		for (int slot = 0; slot < otherBigrams.capacity(); slot++){
+			if (otherBigrams.isUsed(slot)){
+				bigrams.add(otherBigrams.keyAt(slot), otherBigrams.valueAt(slot));
+			}
+		}
+	}
+
+	/**
+	 * Build ID counts out of the HashMap counts of LMBase
+	 * @param allWords every word seen in training
+	 * @param unigramCounts
+	 * @param bigramCounts
+	 * @param totalNumWords
+	 * @return finished counts
+	 */
+	public static IdBigramCounts fromMaps(Set<String> allWords, Map<String, Double> unigramCounts,
+			Map<String, HashMap<String, Double>> bigramCounts, double totalNumWords){
+		IdBigramCounts counts = new IdBigramCounts();
+		WordIndex index = counts.index;
+		for (String word : allWords){
+			index.add(word);
+		}
+		counts.ensureCapacity(index.size());
+		counts.totalNumWords = (long) totalNumWords;
+
+		for (Map.Entry<String, Double> unigram : unigramCounts.entrySet()){
+			counts.unigramCounts[index.add(unigram.getKey())] = unigram.getValue().longValue();
+		}
+		for (Map.Entry<String, HashMap<String, Double>> firstWord : bigramCounts.entrySet()){
+			int first = index.getId(firstWord.getKey());
+			for (Map.Entry<String, Double> bigram : firstWord.getValue().entrySet()){
+				int count = bigram.getValue().intValue();
+				counts.bigrams.add(BigramCountTable.key(first, index.getId(bigram.getKey())), count);
+				counts.bigramTotals[first] += count;
+			}
+		}
+		counts.finish();
+		return counts;
+	}
+
+	/**
+	 * Called once all the sentences have been added
+	 * Builds the successor lists and the vocabulary size
+	 */
+	public void finish(){
+		int numWords = index.size();
+
+		// words seen more than once (count > 0) and the special tokens are in the vocabulary
+		vocabularySize = 0;
+		for (int id = 0; id < numWords; id++){
+			if (isInVocabulary(id)){
+				vocabularySize++;
+			}
+		}
+
+		// sorting the packed keys orders them by first word and then second word
+		long[] keys = new long[bigrams.size()];
+		int k = 0;
+		for (int slot = 0; slot < bigrams.capacity(); slot++){
+			if (bigrams.isUsed(slot)){
+				keys[k++] = bigrams.keyAt(slot);
+			}
+		}
+		Arrays.sort(keys);
+
+		successorStart = new int[numWords + 1];
+		successorIds = new int[keys.length];
+		successorCounts = new int[keys.length];
+		for (int i = 0; i < keys.length; i++){
+			int first = BigramCountTable.firstOf(keys[i]);
+			int second = BigramCountTable.secondOf(keys[i]);
+			successorStart[first + 1]++;
+			successorIds[i] = second;
+			successorCounts[i] = bigrams.get(first, second);
+		}
+		for (int id = 0; id < numWords; id++){
+			successorStart[id + 1] += successorStart[id];
+		}
+	}
+
+	/**
+	 * Copy of the finished counts with count cutoffs applied
+	 *
+	 * A word seen fewer than minUnigramCount times (after its first occurrence, which is
+	 * always <unk>) leaves the vocabulary: its count is added to <unk> and its bigrams
+	 * become bigrams with <unk>. Then every bigram seen fewer than minBigramCount times is
+	 * dropped from the successor lists, but its count stays in the bigram total of its
+	 * context word (see getPrunedCount) so the models can give that mass to unseen bigrams.
+	 * Cutoffs of 1 keep everything.
+	 * The word index is shared with these counts.
+	 * @param minUnigramCount
+	 * @param minBigramCount
+	 * @return the pruned counts
+	 */
+	public IdBigramCounts prune(int minUnigramCount, int minBigramCount){
+		int numWords = index.size();
+		IdBigramCounts pruned = new IdBigramCounts(index);
+		pruned.ensureCapacity(numWords);
+		pruned.totalNumWords = totalNumWords;
+		pruned.prunedCounts = new long[numWords];
+
+		// the words that are cut go to <unk>, the special tokens always stay
+		int[] newId = new int[numWords];
+		boolean wordsCut = false;
+		for (int id = 0; id < numWords; id++){
+			newId[id] = id;
+			if (id > WordIndex.END && unigramCounts[id] > 0 && unigramCounts[id] < minUnigramCount){
+				newId[id] = WordIndex.UNK;
+				wordsCut = true;
+			}
+			pruned.unigramCounts[newId[id]] += unigramCounts[id];
+			pruned.bigramTotals[newId[id]] += bigramTotals[id];
+			pruned.prunedCounts[newId[id]] += (long) getPrunedCount(id);
+		}
+
+		// bigrams that now share a word are added up before the bigram cutoff
+		BigramCountTable merged = bigrams;
+		if (wordsCut){
+			merged = new BigramCountTable(successorIds.length);
+			for (int first = 0; first < numWords; first++){
+				for (int k = successorStart[first]; k < successorStart[first + 1]; k++){
+					merged.add(BigramCountTable.key(newId[first], newId[successorIds[k]]), successorCounts[k]);
+				}
+			}
+		}
+
+		int kept = 0;
+		for (int slot = 0; slot < merged.capacity(); slot++){
+			if (merged.isUsed(slot) && merged.valueAt(slot) >= minBigramCount){
+				kept++;
+			}
+		}
+		BigramCountTable keptBigrams = new BigramCountTable(kept);
+		for (int slot = 0; slot < merged.capacity(); slot++){
+			if (!merged.isUsed(slot)){
+				continue;
+			}
+			long key = merged.keyAt(slot);
+			int count = merged.valueAt(slot);
+			if (count >= minBigramCount){
+				keptBigrams.add(key, count);
+			}
+			else {
+				pruned.prunedCounts[BigramCountTable.firstOf(key)] += count;
+			}
+		}
+		pruned.bigrams = keptBigrams;
+		pruned.finish();
+		return pruned;
+	}
+
+	/**
+	 * Prune the counts until they fit in the given memory (see memoryBytes)
+	 * The bigram cutoff goes up first and the unigram cutoff follows one step behind:
+	 * (1, 1), (1, 2), (2, 2), (2, 3), (3, 3) ... and by a quarter at a time once they are large
+	 * @param memoryBytes
+	 * @return the counts with the lowest cutoffs tried that fit
+	 * @throws IllegalArgumentException if the counts do not fit even without any bigrams
+	 */
+	public IdBigramCounts pruneToFit(long memoryBytes){
+		int minUnigramCount = 1;
+		int minBigramCount = 1;
+		while (true){
+			IdBigramCounts pruned = prune(minUnigramCount, minBigramCount);
+			if (pruned.memoryBytes() <= memoryBytes){
+				return pruned;
+			}
+			if (pruned.bigrams.size() == 0){
+				throw new IllegalArgumentException("the counts need at least " + pruned.memoryBytes() + " bytes");
+			}
+			if (minUnigramCount < minBigramCount){
+				minUnigramCount = minBigramCount;
+			}
+			else {
+				minBigramCount = Math.max(minBigramCount + 1, minBigramCount + minBigramCount/4);
+			}
+		}
+	}
+
+	/**
+	 * @return approximate heap size of the counts in bytes (not including the word strings)
+	 */
+	public long memoryBytes(){
+		long bytes = bigrams.memoryBytes();
+		bytes += (long) (unigramCounts.length + bigramTotals.length) * Long.BYTES;
+		if (successorIds != null){
+			bytes += (long) (successorStart.length + successorIds.length + successorCounts.length) * Integer.BYTES;
+		}
+		if (prunedCounts != null){
+			bytes += (long) prunedCounts.length * Long.BYTES;
+		}
+		if (kneserNeyStats != null){
+			bytes += kneserNeyStats.memoryBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the Kneser-Ney counts gathered while counting, or worked out from the
+	 * successor lists if they were not gathered or merge or prune made them stale (call after finish())
+	 */
+	KneserNeyStats getKneserNeyStats(){
+		if (kneserNeyStats == null){
+			kneserNeyStats = KneserNeyStats.fromCounts(this);
+		}
+		return kneserNeyStats;
+	}
+
+	@Override
+	public WordIndex getWordIndex() {
+		return index;
+	}
+
+	@Override
+	public double getTotalNumWords() {
+		return totalNumWords;
+	}
+
+	@Override
+	public int getVocabularySize() {
+		return vocabularySize;
+	}
+
+	@Override
+	public boolean isInVocabulary(int id) {
+		return id >= 0 && id < index.size() && (id <= WordIndex.END || unigramCounts[id] > 0);
+	}
+
+	@Override
+	public double getUnigramCount(int id) {
+		return id < 0 || id >= index.size() ? 0 : unigramCounts[id];
+	}
+
+	@Override
+	public double getBigramTotal(int first) {
+		return first < 0 || first >= index.size() ? 0 : bigramTotals[first];
+	}
+
+	@Override
+	public double getBigramCount(int first, int second) {
+		if (first < 0 || second < 0){
+			return 0;
+		}
+		return bigrams.get(first, second);
+	}
+
+	@Override
+	public double getPrunedCount(int first) {
+		return prunedCounts == null || first < 0 || first >= prunedCounts.length ? 0 : prunedCounts[first];
+	}
+
+	@Override
+	public int getNumSuccessors(int first) {
+		if (first < 0 || first >= index.size()){
+			return 0;
+		}
+		return successorStart[first + 1] - successorStart[first];
+	}
+
+	@Override
+	public int getSuccessor(int first, int k) {
+		return successorIds[successorStart[first] + k];
+	}
+
+	@Override
+	public double getSuccessorCount(int first, int k) {
+		return successorCounts[successorStart[first] + k];
+	}
+
+	/**
+	 * Grow the per-word arrays so they hold at least size IDs
+	 * @param size
+	 */
+	void ensureCapacity(int size){
+		if (size > unigramCounts.length){
+			int newLength = Math.max(size, unigramCounts.length * 2);
+			unigramCounts = Arrays.copyOf(unigramCounts, newLength);
+			bigramTotals = Arrays.copyOf(bigramTotals, newLength);
+		}
+		if (kneserNeyStats != null){
+			kneserNeyStats.ensureCapacity(unigramCounts.length);
+		}
+	}
+}
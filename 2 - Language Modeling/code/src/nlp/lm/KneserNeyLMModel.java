@@ -0,0 +1,246 @@
+package nlp.lm;
+
+/**
+ * Class for bigram language model with interpolated modified Kneser-Ney smoothing
+ *
+ * P(w | v) = max(C(vw) - D(C(vw)), 0)/C(v) + gamma(v) * Pcont(w)
+ * - D(c) is one of three discounts, for counts of 1, 2 and 3+, estimated from the
+ *   count-of-counts n1 .. n4 (Chen and Goodman):
+ *   Y = n1/(n1 + 2 n2), D1 = 1 - 2Y n2/n1, D2 = 2 - 3Y n3/n2, D3+ = 3 - 4Y n4/n3
+ * - gamma(v) = (D1 N1(v.) + D2 N2(v.) + D3+ N3+(v.) + pruned count of v)/C(v) is the mass
+ *   taken off the bigrams of v (all of it if v was never a context)
+ * - Pcont(w) is based on the number of distinct words seen before w rather than on C(w),
+ *   discounted the same way and interpolated with the uniform distribution over the
+ *   vocabulary, so it is never 0 even if pruning dropped every bigram ending in w
+ *
+ * The count-of-counts and the continuation counts are gathered while the corpus is counted
+ * (see KneserNeyStats), and gamma, 1/C(v) and Pcont are precomputed, so getBigramProb is one
+ * count lookup and a few array reads.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class KneserNeyLMModel extends LMBase implements LMModel {
+
+	// used when the count-of-counts do not give sensible discounts (e.g. after pruning)
+	private static final double DEFAULT_DISCOUNT = 0.75;
+
+	// precomputed from the counts, computed again once the counts version changes
+	private volatile Tables tables;
+
+	/**
+	 * Everything getBigramProb needs apart from the bigram count
+	 */
+	private static class Tables {
+		// counts version (see LMBase.getCountsVersion) read before the tables were computed
+		final long version;
+		final double discount1;
+		final double discount2;
+		final double discount3;
+		final double[] gamma;
+		final double[] inverseTotal;
+		final double[] continuationProb;
+
+		Tables(long version, BigramCounts counts, KneserNeyStats stats){
+			this.version = version;
+			long[] n = stats.countOfCounts;
+			double y = (double) n[1]/(n[1] + 2*n[2]);
+			double d1 = 1 - 2*y*n[2]/n[1];
+			double d2 = 2 - 3*y*n[3]/n[2];
+			double d3 = 3 - 4*y*n[4]/n[3];
+			boolean sensible = d1 > 0 && d1 < 1 && d2 > 0 && d2 < 2 && d3 > 0 && d3 < 3;
+			discount1 = sensible ? d1 : DEFAULT_DISCOUNT;
+			discount2 = sensible ? d2 : DEFAULT_DISCOUNT;
+			discount3 = sensible ? d3 : DEFAULT_DISCOUNT;
+
+			// an update may have added words since the stats were worked out
+			int numWords = Math.min(counts.getWordIndex().size(), stats.continuationCounts.length);
+			gamma = new double[numWords];
+			inverseTotal = new double[numWords];
+			for (int v = 0; v < numWords; v++){
+				double total = counts.getBigramTotal(v);
+				if (total > 0){
+					inverseTotal[v] = 1/total;
+					gamma[v] = (discount1*stats.onceAfter[v] + discount2*stats.twiceAfter[v]
+							+ discount3*stats.threePlusAfter[v] + counts.getPrunedCount(v))/total;
+				}
+				else {
+					gamma[v] = 1;
+				}
+			}
+
+			// the continuation counts are discounted too and the mass goes to the uniform distribution
+			// over the words that can follow something (every vocabulary word but <s>)
+			int numPredicted = 0;
+			double uniformMass = 0;
+			for (int w = 0; w < numWords; w++){
+				if (w != WordIndex.START && counts.isInVocabulary(w)){
+					numPredicted++;
+				}
+				uniformMass += discount(stats.continuationCounts[w]);
+			}
+			double numBigramTypes = stats.numBigramTypes;
+			double uniformProb = uniformMass/numBigramTypes/numPredicted;
+			continuationProb = new double[numWords];
+			for (int w = 0; w < numWords; w++){
+				int continuation = stats.continuationCounts[w];
+				if (w != WordIndex.START && counts.isInVocabulary(w)){
+					continuationProb[w] = (continuation - discount(continuation))/numBigramTypes + uniformProb;
+				}
+			}
+		}
+
+		/**
+		 * @param count
+		 * @return the discount for a count
+		 */
+		double discount(double count){
+			if (count >= 3){
+				return discount3;
+			}
+			if (count >= 2){
+				return discount2;
+			}
+			return count > 0 ? discount1 : 0;
+		}
+	}
+
+	/**
+	 * Train on a corpus, by word ID so the Kneser-Ney counts are gathered in the same pass
+	 * @param filename
+	 */
+	public KneserNeyLMModel(String filename){
+		useCounts(trainCounts(filename, true));
+	}
+
+	/**
+	 * Use counts that are already trained (e.g. a snapshot from LMBase.loadCounts) instead of a corpus
+	 * The Kneser-Ney counts are worked out from them in one pass
+	 * @param counts
+	 * @throws IllegalArgumentException for approximate counts, which only list their heavy hitters,
+	 * so the continuation and distinct successor counts would be biased
+	 */
+	public KneserNeyLMModel(BigramCounts counts){
+		if (counts instanceof SketchBigramCounts){
+			throw new IllegalArgumentException("approximate counts do not list every seen bigram");
+		}
+		useCounts(counts);
+	}
+
+	/**
+	 * @return the discounts for counts of 1, 2 and 3+
+	 */
+	public double[] getDiscounts(){
+		Tables table = getTables();
+		return new double[]{table.discount1, table.discount2, table.discount3};
+	}
+
+	/**
+	 * Given a bigram, return its probability (see the class comment)
+	 * @param first
+	 * @param second
+	 * @return probability
+	 */
+	@Override
+	public double getBigramProb(String first, String second) {
+		WordIndex index = getIdCounts().getWordIndex();
+		return getBigramProb(index.getId(first), index.getId(second));
+	}
+
+	/**
+	 * Same as getBigramProb(String, String) for word IDs
+	 * @param first
+	 * @param second
+	 * @return probability, 0 if either word has no ID
+	 */
+	@Override
+	public double getBigramProb(int first, int second) {
+		Tables table = getTables();
+		if (first < 0 || second < 0 || first >= table.gamma.length || second >= table.gamma.length){
+			return 0;
+		}
+		double count = getBigramCount(getIdCounts(), first, second);
+		LMMetrics.bigram(count > 0);
+
+		double bigramProb = table.gamma[first] * table.continuationProb[second];
+		if (count > 0){
+			bigramProb += (count - table.discount(count)) * table.inverseTotal[first];
+		}
+		return bigramProb;
+	}
+
+	/**
+	 * Unseen bigrams get gamma(first) * Pcont(second)
+	 */
+	@Override
+	public boolean hasBackoffForm(){
+		return true;
+	}
+
+	/**
+	 * @param first
+	 * @return gamma(first)
+	 */
+	@Override
+	public double getBackoffWeight(int first){
+		return getTables().gamma[first];
+	}
+
+	/**
+	 * @param second
+	 * @return Pcont(second)
+	 */
+	@Override
+	public double getBackoffProb(int second){
+		return getTables().continuationProb[second];
+	}
+
+	/**
+	 * Tables computed while an update was changing the counts carry the version from before
+	 * its last countsChanged(), so they are computed again on the next query once it is done
+	 * @return the precomputed tables, computing them first if the counts changed
+	 */
+	private Tables getTables(){
+		Tables table = tables;
+		long version = getCountsVersion();
+		if (table == null || table.version != version){
+			BigramCounts counts = getIdCounts();
+			KneserNeyStats stats = counts instanceof IdBigramCounts
+					? ((IdBigramCounts) counts).getKneserNeyStats() : KneserNeyStats.fromCounts(counts);
+			table = new Tables(version, counts, stats);
+			tables = table;
+		}
+		return table;
+	}
+
+	/**
+	 * KNESER-NEY LANGUAGE MODEL
+	 * Main method used for testing, training and evaluating!
+	 * compares the perplexity with the best lambda and discount models
+	 * generates sentences
+	 * @param args
+	 */
+	public static void main(String[] args){
+		String training = args.length > 0 ? args[0] : "src/sentences.development";
+		String testing = args.length > 1 ? args[1] : "src/sentences.testing";
+
+		System.out.println("Training Kneser-Ney Language Model ...");
+		IdBigramCounts counts = trainCounts(training, true);
+		KneserNeyLMModel model = new KneserNeyLMModel(counts);
+		double[] discounts = model.getDiscounts();
+		System.out.println(String.format("Discounts: D1 = %.4f D2 = %.4f D3+ = %.4f", discounts[0], discounts[1], discounts[2]));
+
+		System.out.println("Kneser-Ney Perplexity: " + model.getPerplexity(testing));
+		System.out.println("Discount = 0.5 Perplexity: " + new DiscountLMModel(counts, 0.5).getPerplexity(testing));
+		System.out.println("Lambda = 0.01 Perplexity: " + new LambdaLMModel(counts, 0.01).getPerplexity(testing));
+
+		// generate greedy sentence
+		System.out.println(model.generateGreedySentence());
+
+		// generate sampled sentences
+		for (int k = 0; k < 5; k++) {
+			System.out.println(model.generateSamplingSentence());
+		}
+	}
+}
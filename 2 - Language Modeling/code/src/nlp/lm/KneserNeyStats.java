@@ -0,0 +1,129 @@
+package nlp.lm;
+
+import java.util.Arrays;
+
+/**
+ * The counts a Kneser-Ney model needs on top of the bigram counts
+ * - count-of-counts n1 .. n4: how many distinct bigrams were seen exactly 1 .. 4 times,
+ *   which give the three discounts
+ * - per context word, how many distinct words followed it once, twice and 3+ times
+ *   (N1(v.), N2(v.), N3+(v.)), which give the backoff weight of the context
+ * - per word, how many distinct words came before it (N1+(.w)), the continuation count
+ *
+ * When IdBigramCounts.countKneserNey was called they are kept up to date one bigram at a time
+ * while counting (IdBigramCounts.addIds calls add with the new count of every bigram), so
+ * training a KneserNeyLMModel gathers them in the same pass.
+ * Counts that were built some other way (merged shards, pruning, snapshots) get them from
+ * one walk over their successor lists instead (fromCounts).
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+class KneserNeyStats {
+
+	// countOfCounts[c] = number of distinct bigrams seen exactly c times, c = 1 .. 4
+	final long[] countOfCounts = new long[5];
+
+	// number of distinct bigrams, N1+(..)
+	long numBigramTypes;
+
+	int[] continuationCounts;
+	int[] onceAfter;
+	int[] twiceAfter;
+	int[] threePlusAfter;
+
+	KneserNeyStats(int size){
+		continuationCounts = new int[size];
+		onceAfter = new int[size];
+		twiceAfter = new int[size];
+		threePlusAfter = new int[size];
+	}
+
+	/**
+	 * The count of the bigram (first, second) just went up by one
+	 * @param first
+	 * @param second
+	 * @param count the new count
+	 */
+	void add(int first, int second, int count){
+		if (count <= 5){
+			if (count > 1){
+				countOfCounts[count - 1]--;
+			}
+			if (count <= 4){
+				countOfCounts[count]++;
+			}
+		}
+		if (count == 1){
+			numBigramTypes++;
+			continuationCounts[second]++;
+			onceAfter[first]++;
+		}
+		else if (count == 2){
+			onceAfter[first]--;
+			twiceAfter[first]++;
+		}
+		else if (count == 3){
+			twiceAfter[first]--;
+			threePlusAfter[first]++;
+		}
+	}
+
+	/**
+	 * Grow the per-word arrays so they hold at least size IDs
+	 * @param size
+	 */
+	void ensureCapacity(int size){
+		if (size > continuationCounts.length){
+			int newLength = Math.max(size, continuationCounts.length * 2);
+			continuationCounts = Arrays.copyOf(continuationCounts, newLength);
+			onceAfter = Arrays.copyOf(onceAfter, newLength);
+			twiceAfter = Arrays.copyOf(twiceAfter, newLength);
+			threePlusAfter = Arrays.copyOf(threePlusAfter, newLength);
+		}
+	}
+
+	/**
+	 * Work the stats out from finished counts, one pass over the successor lists
+	 * If an update adds words meanwhile, bigrams of words that got their ID after the pass
+	 * started are left out (the stats are computed again once the update is done)
+	 * @param counts
+	 * @return stats
+	 */
+	static KneserNeyStats fromCounts(BigramCounts counts){
+		int numWords = counts.getWordIndex().size();
+		KneserNeyStats stats = new KneserNeyStats(numWords);
+		for (int first = 0; first < numWords; first++){
+			for (int k = 0; k < counts.getNumSuccessors(first); k++){
+				int second = counts.getSuccessor(first, k);
+				if (second >= numWords){
+					continue;
+				}
+				long count = (long) counts.getSuccessorCount(first, k);
+				if (count <= 4){
+					stats.countOfCounts[(int) count]++;
+				}
+				stats.numBigramTypes++;
+				stats.continuationCounts[second]++;
+				if (count == 1){
+					stats.onceAfter[first]++;
+				}
+				else if (count == 2){
+					stats.twiceAfter[first]++;
+				}
+				else {
+					stats.threePlusAfter[first]++;
+				}
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * @return heap size in bytes
+	 */
+	long memoryBytes(){
+		return (long) continuationCounts.length * 4 * Integer.BYTES + countOfCounts.length * Long.BYTES;
+	}
+}
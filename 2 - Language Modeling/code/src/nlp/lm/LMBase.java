@@ -1,12 +1,15 @@
 package nlp.lm;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An abstract class for bigram language models
@@ -41,15 +44,56 @@ public abstract class LMBase implements LMModel {
 	// total number of words
 	protected double totalNumWords;
 	
+	// counts by word ID, only used when the model is trained with useIds
+	// (the maps above are then left null)
+	// volatile because update() may swap in ConcurrentBigramCounts while other threads score
+	protected volatile BigramCounts idCounts;
+	
+	// goes up whenever the counts are replaced or an update starts or ends, see getCountsVersion
+	private final AtomicLong countsVersion = new AtomicLong();
+	
+	// optional filter of the seen bigrams, see useBloomFilter (null while it is off or the model was updated)
+	private volatile BigramBloomFilter bloomFilter;
+	private double bloomBitsPerBigram;
+	
+	// sampler used by generateSamplingSentence, created on first use
+	// its alias table cache and random are not thread safe, so it is used under its own lock
+	private volatile AliasSampler sampler;
+	
+	// generator used by generateGreedySentence and the beam / top-k / top-p generators, created on first use
+	// locked like the sampler
+	private volatile SentenceGenerator generator;
+	
 	/**
 	 * Train the model
 	 * Calculate counts!
 	 *
 	 */
 	public void trainModel(String filename){
+		trainModel(filename, false);
+	}
+	
+	/**
+	 * Train the model
+	 * If useIds is true the counts are kept by word ID in primitive tables (IdBigramCounts)
+	 * instead of the nested HashMaps, which is much smaller and faster on large corpora
+	 * The corpus may also be a directory or glob of plain or gzip files (see CorpusReader)
+	 * @param filename
+	 * @param useIds
+	 */
+	public void trainModel(String filename, boolean useIds){
 		// Initialization
 		allWords = new HashSet<String>();
 		vocabulary = new HashSet<String>();
+		totalNumWords = 0;
+		idCounts = null;
+		bloomFilter = null;
+		
+		if (useIds){
+			trainIdModel(filename);
+			return;
+		}
+		
 		unigramCounts = new HashMap<String, Double>();
 		bigramTotals = new HashMap<String, Double>();
 		bigramCounts = new HashMap<String, HashMap<String, Double>>();
@@ -65,7 +109,7 @@ public abstract class LMBase implements LMModel {
 		
 		// Read in the file and begin training
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(filename));
+			CorpusReader br = CorpusReader.open(filename);
 			
 			// read through all the sentences in the corpus
 			for (String sentence = br.readLine(); sentence != null; sentence = br.readLine()){
@@ -144,6 +188,483 @@ public abstract class LMBase implements LMModel {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		buildBloomFilter();
+	}
+	
+	/**
+	 * Train the model on several threads (see ParallelTrainer)
+	 * Gives exactly the same counts as trainModel(filename, true)
+	 * @param filename
+	 * @param threads
+	 */
+	public void trainModelParallel(String filename, int threads){
+		try {
+			useCounts(ParallelTrainer.count(filename, threads));
+			unigramCounts = null;
+			bigramTotals = null;
+			bigramCounts = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		buildBloomFilter();
+	}
+	
+	/**
+	 * Train the model into IdBigramCounts
+	 * Same counts as the HashMap version, the first occurrence of a word still turns to <unk>
+	 * @param filename
+	 */
+	private void trainIdModel(String filename){
+		unigramCounts = null;
+		bigramTotals = null;
+		bigramCounts = null;
+		useCounts(trainCounts(filename));
+		buildBloomFilter();
+	}
+	
+	/**
+	 * Count a corpus without building a model
+	 * The counts do not depend on the smoothing, so one set of counts can back any number
+	 * of LambdaLMModel / DiscountLMModel views or a SmoothingSweep
+	 * A directory or glob of plain or gzip shards is counted as if the files were put together,
+	 * with the shards decompressed ahead on background threads (see CorpusReader)
+	 * @param filename
+	 * @return the counts by word ID
+	 */
+	public static IdBigramCounts trainCounts(String filename){
+		return trainCounts(filename, false);
+	}
+	
+	/**
+	 * Same as trainCounts(filename)
+	 * @param filename
+	 * @param kneserNey also gather the Kneser-Ney counts in the same pass (see IdBigramCounts.countKneserNey)
+	 * @return the counts by word ID
+	 */
+	static IdBigramCounts trainCounts(String filename, boolean kneserNey){
+		IdBigramCounts counts = new IdBigramCounts();
+		if (kneserNey){
+			counts.countKneserNey();
+		}
+		try {
+			CorpusReader br = CorpusReader.open(filename);
+			
+			for (String sentence = br.readLine(); sentence != null; sentence = br.readLine()){
+				sentence = "<s> " + sentence + " </s>";
+				counts.addSentence(sentence.split(" "));
+			}
+			br.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		counts.finish();
+		return counts;
+	}
+	
+	/**
+	 * Same counts as trainCounts, but the file is memory-mapped and tokenized in place
+	 * as UTF-8 bytes, so no String is made except one per distinct word (see ByteTokenizer)
+	 * @param filename
+	 * @return the counts by word ID, or null if the file could not be read
+	 */
+	public static IdBigramCounts trainCountsMapped(String filename){
+		try {
+			return ByteTokenizer.count(ByteTokenizer.map(filename));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Count a corpus and drop the rare words and bigrams (see IdBigramCounts.prune)
+	 * Words seen fewer than minUnigramCount times become <unk>, bigrams seen fewer than
+	 * minBigramCount times become unseen bigrams and their mass goes to the backoff
+	 * @param filename
+	 * @param minUnigramCount
+	 * @param minBigramCount
+	 * @return the pruned counts by word ID
+	 */
+	public static IdBigramCounts trainCounts(String filename, int minUnigramCount, int minBigramCount){
+		return trainCounts(filename).prune(minUnigramCount, minBigramCount);
+	}
+
+	/**
+	 * Count a corpus and raise the count cutoffs until the counts fit in the given memory
+	 * @param filename
+	 * @param megabytes memory for the counts, not including the word strings
+	 * @return the pruned counts by word ID
+	 */
+	public static IdBigramCounts trainCountsToFit(String filename, double megabytes){
+		return trainCounts(filename).pruneToFit((long) (megabytes * 1024 * 1024));
+	}
+
+	/**
+	 * Count a corpus in a fixed amount of memory (see SketchBigramCounts)
+	 * Bigram counts are approximate except for the most frequent bigrams
+	 * @param filename
+	 * @param memoryBytes memory for the bigrams
+	 * @return the approximate counts, or null if the file could not be read
+	 */
+	public static SketchBigramCounts trainSketchCounts(String filename, long memoryBytes){
+		try {
+			return SketchBigramCounts.train(filename, memoryBytes);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Back the model with the given counts instead of the HashMaps
+	 * The word sets are rebuilt from the word index so vocabulary based code keeps working
+	 * @param counts
+	 */
+	protected void useCounts(BigramCounts counts){
+		// under the lock buildBloomFilter installs with, so a filter of the old counts cannot slip in
+		synchronized (this){
+			bloomFilter = null;
+			idCounts = counts;
+			countsVersion.incrementAndGet();
+		}
+		totalNumWords = counts.getTotalNumWords();
+		
+		WordIndex index = counts.getWordIndex();
+		allWords = new HashSet<String>();
+		vocabulary = new HashSet<String>();
+		for (int id = 0; id < index.size(); id++){
+			String word = index.getWord(id);
+			if (id > WordIndex.END){
+				allWords.add(word);
+			}
+			if (counts.isInVocabulary(id)){
+				vocabulary.add(word);
+			}
+		}
+	}
+	
+	/**
+	 * @return the counts by word ID, moving a model trained with the HashMaps onto word IDs first
+	 * (under the model's lock, so two threads calling it first do not both convert the maps)
+	 */
+	public BigramCounts getIdCounts(){
+		BigramCounts counts = idCounts;
+		if (counts == null){
+			synchronized (this){
+				if (idCounts == null){
+					useCounts(IdBigramCounts.fromMaps(allWords, unigramCounts, bigramCounts, totalNumWords));
+					unigramCounts = null;
+					bigramTotals = null;
+					bigramCounts = null;
+				}
+				counts = idCounts;
+			}
+		}
+		return counts;
+	}
+	
+	/**
+	 * Add more training sentences to the trained model
+	 * Other threads may keep calling getBigramProb while this runs, and several threads may
+	 * update at once. The first update moves the counts into ConcurrentBigramCounts.
+	 * The first occurrence of a new word still turns to <unk>.
+	 * This turns off the Bloom filter (see useBloomFilter).
+	 * @param sentences sentences WITHOUT <s> or </s>
+	 * @throws IllegalStateException if the model is backed by approximate counts (SketchBigramCounts)
+	 */
+	public void update(List<String> sentences){
+		ConcurrentBigramCounts counts = getConcurrentCounts();
+		countsChanged();
+		try {
+			for (String sentence : sentences){
+				counts.addSentence((start + " " + sentence + " " + end).split(" "));
+			}
+		} finally {
+			countsChanged();
+		}
+	}
+	
+	/**
+	 * Add the sentences of a file to the trained model (see update(List))
+	 * @param filename
+	 * @throws IOException if the file could not be read, the sentences read before
+	 * the error stay in the model
+	 * @throws IllegalStateException if the model is backed by approximate counts (SketchBigramCounts)
+	 */
+	public void update(String filename) throws IOException {
+		ConcurrentBigramCounts counts = getConcurrentCounts();
+		CorpusReader br = CorpusReader.open(filename);
+		countsChanged();
+		try {
+			for (String sentence = br.readLine(); sentence != null; sentence = br.readLine()){
+				counts.addSentence((start + " " + sentence + " " + end).split(" "));
+			}
+		} finally {
+			countsChanged();
+			br.close();
+		}
+	}
+	
+	/**
+	 * Approximate counts cannot be copied: only their heavy hitters are listed, the sketch and the
+	 * successor estimates would be lost and the probabilities would no longer add up to 1
+	 * @return the counts as ConcurrentBigramCounts, copying them over on the first call
+	 */
+	private synchronized ConcurrentBigramCounts getConcurrentCounts(){
+		BigramCounts counts = getIdCounts();
+		if (counts instanceof SketchBigramCounts){
+			throw new IllegalStateException("approximate counts (SketchBigramCounts) cannot be updated");
+		}
+		if (!(counts instanceof ConcurrentBigramCounts)){
+			counts = new ConcurrentBigramCounts(counts);
+			useCounts(counts);
+		}
+		return (ConcurrentBigramCounts) counts;
+	}
+	
+	/**
+	 * Called when update() starts and when it is done changing the counts
+	 * Subclasses drop whatever they precomputed from the old counts
+	 */
+	protected void countsChanged(){
+		countsVersion.incrementAndGet();
+		sampler = null;
+		generator = null;
+		bloomFilter = null;
+	}
+	
+	/**
+	 * Something precomputed from the counts is only current if the version read before computing
+	 * it is still the version when it is used: an update that was running, or started, meanwhile
+	 * changed the version
+	 * @return the version of the counts
+	 */
+	protected long getCountsVersion(){
+		return countsVersion.get();
+	}
+	
+	/**
+	 * Put a Bloom filter of the seen bigrams in front of the bigram counts, so an unseen bigram
+	 * (most of them, when scoring new text) goes straight to the unseen formula without looking
+	 * up its count. The filter is built now from the trained counts, and built again whenever
+	 * the model is trained. Once the model is updated the counts are ConcurrentBigramCounts,
+	 * which may gain a bigram at any time, so the filter is dropped and the counts are looked up
+	 * as before (building a filter for every update would cost a full pass over the counts).
+	 * A model trained with the HashMaps is moved onto word IDs first (see getIdCounts).
+	 * Approximate counts (SketchBigramCounts) cannot have a filter.
+	 * @param bitsPerBigram size of the filter, 10 bits give about 1% false positives, 0 turns it off
+	 */
+	public void useBloomFilter(double bitsPerBigram){
+		bloomBitsPerBigram = bitsPerBigram;
+		bloomFilter = null;
+		buildBloomFilter();
+	}
+	
+	/**
+	 * @return the filter in front of the counts, or null
+	 */
+	public BigramBloomFilter getBloomFilter(){
+		return bloomFilter;
+	}
+	
+	/**
+	 * Build the filter for the current counts if it is on and they cannot be updated
+	 * It is only installed if the counts did not change while it was built (see getCountsVersion),
+	 * so a build that raced with useCounts or an update is dropped
+	 */
+	private void buildBloomFilter(){
+		if (bloomBitsPerBigram <= 0){
+			return;
+		}
+		getIdCounts();
+		long version = getCountsVersion();
+		BigramCounts counts = idCounts;
+		if (counts instanceof ConcurrentBigramCounts){
+			return;
+		}
+		BigramBloomFilter filter = new BigramBloomFilter(counts, bloomBitsPerBigram);
+		synchronized (this){
+			if (getCountsVersion() == version){
+				bloomFilter = filter;
+			}
+		}
+	}
+	
+	/**
+	 * @param first
+	 * @param second
+	 * @return false if the Bloom filter says the bigram was never seen, true if it may have been
+	 * (or there is no filter)
+	 */
+	protected final boolean mightBeSeen(int first, int second){
+		BigramBloomFilter filter = bloomFilter;
+		if (filter == null){
+			return true;
+		}
+		boolean maybe = filter.mightContain(first, second);
+		LMMetrics.bloomFilter(!maybe);
+		return maybe;
+	}
+	
+	/**
+	 * The bigram count by word ID, 0 without a lookup if the Bloom filter rules the bigram out
+	 * @param counts
+	 * @param first
+	 * @param second
+	 * @return number of times the bigram was seen
+	 */
+	protected final double getBigramCount(BigramCounts counts, int first, int second){
+		return mightBeSeen(first, second) ? counts.getBigramCount(first, second) : 0;
+	}
+	
+	/**
+	 * Write the trained counts to a binary snapshot (see MappedBigramCounts)
+	 * so later models can be loaded without retraining
+	 * @param filename
+	 */
+	public void saveCounts(String filename){
+		try {
+			MappedBigramCounts.write(getIdCounts(), filename);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Memory-map a snapshot written by saveCounts
+	 * @param filename
+	 * @return the mapped counts, or null if the file could not be read
+	 */
+	public static BigramCounts loadCounts(String filename){
+		try {
+			return new MappedBigramCounts(filename);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Read counts saved by OffHeapBigramCounts.save into direct memory, off the garbage collected heap
+	 * Close them once no model uses them anymore
+	 * @param filename
+	 * @return the counts, or null if the file could not be read
+	 */
+	public static OffHeapBigramCounts loadCountsOffHeap(String filename){
+		try {
+			return OffHeapBigramCounts.load(filename);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * @return number of words in the vocabulary, read from the counts so updates are seen
+	 */
+	protected double getVocabularySize(){
+		BigramCounts counts = idCounts;
+		return counts != null ? counts.getVocabularySize() : vocabulary.size();
+	}
+	
+	/**
+	 * @return total number of words seen in training, read from the counts so updates are seen
+	 */
+	protected double getTotalNumWords(){
+		BigramCounts counts = idCounts;
+		return counts != null ? counts.getTotalNumWords() : totalNumWords;
+	}
+	
+	/**
+	 * @param word
+	 * @return number of times the word was seen in training (0 if never)
+	 */
+	protected double getUnigramCount(String word){
+		HashMap<String, Double> unigrams = unigramCounts;
+		if (idCounts != null || unigrams == null){
+			BigramCounts counts = getIdCounts();
+			return counts.getUnigramCount(counts.getWordIndex().getId(word));
+		}
+		Double count = unigrams.get(word);
+		return count == null ? 0 : count;
+	}
+	
+	/**
+	 * @param first
+	 * @return number of times the word was seen as the first word of a bigram
+	 */
+	protected double getBigramTotal(String first){
+		HashMap<String, Double> totals = bigramTotals;
+		if (idCounts != null || totals == null){
+			BigramCounts counts = getIdCounts();
+			return counts.getBigramTotal(counts.getWordIndex().getId(first));
+		}
+		Double total = totals.get(first);
+		return total == null ? 0 : total;
+	}
+	
+	/**
+	 * @param first
+	 * @param second
+	 * @return number of times the bigram was seen (0 if never)
+	 */
+	protected double getBigramCount(String first, String second){
+		HashMap<String, HashMap<String, Double>> bigrams = bigramCounts;
+		if (idCounts != null || bigrams == null){
+			BigramCounts counts = getIdCounts();
+			WordIndex index = counts.getWordIndex();
+			return getBigramCount(counts, index.getId(first), index.getId(second));
+		}
+		HashMap<String, Double> firstWordVals = bigrams.get(first);
+		if (firstWordVals == null){
+			return 0;
+		}
+		Double count = firstWordVals.get(second);
+		return count == null ? 0 : count;
+	}
+	
+	/**
+	 * @param first
+	 * @return count mass of the bigrams of first that were pruned (0 for the HashMaps, which are never pruned)
+	 */
+	protected double getPrunedCount(String first){
+		BigramCounts counts = idCounts;
+		if (counts != null){
+			return counts.getPrunedCount(counts.getWordIndex().getId(first));
+		}
+		return 0;
+	}
+	
+	/**
+	 * @param first
+	 * @return all the words seen after the first word
+	 */
+	protected Collection<String> getSuccessors(String first){
+		HashMap<String, HashMap<String, Double>> bigrams = bigramCounts;
+		if (idCounts != null || bigrams == null){
+			final BigramCounts counts = getIdCounts();
+			final WordIndex index = counts.getWordIndex();
+			final int id = index.getId(first);
+			final int size = counts.getNumSuccessors(id);
+			
+			// view over the successor IDs so no list is built
+			return new AbstractList<String>(){
+				@Override
+				public String get(int k) {
+					return index.getWord(counts.getSuccessor(id, k));
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+		HashMap<String, Double> firstWordVals = bigrams.get(first);
+		if (firstWordVals == null){
+			return new ArrayList<String>();
+		}
+		return firstWordVals.keySet();
 	}
 	
 	
@@ -154,6 +675,7 @@ public abstract class LMBase implements LMModel {
 	 */
 	@Override
 	public double logProb(ArrayList<String> sentWords) {
+		long start = LMMetrics.start();
 		double logProb = 0;
 		
 		// sum of the logs (base 10) of the probabilities of the bigrams
@@ -161,12 +683,138 @@ public abstract class LMBase implements LMModel {
 			logProb += Math.log10(getBigramProb(sentWords.get(i), sentWords.get(i+1)));
 		}
 		
+		LMMetrics.LOG_PROB.stop(start);
+		return logProb;
+	}
+	
+	
+	/**
+	 * Returns p(second | first) for word IDs from getIdCounts().getWordIndex()
+	 * Subclasses override this to score without going through the word strings
+	 * @param first
+	 * @param second
+	 * @return probability
+	 */
+	public double getBigramProb(int first, int second){
+		WordIndex index = getIdCounts().getWordIndex();
+		return getBigramProb(index.getWord(first), index.getWord(second));
+	}
+	
+	/**
+	 * Models that give every unseen bigram P(second | first) = getBackoffWeight(first) * getBackoffProb(second)
+	 * return true, so samplers only have to build tables over the seen successors of a word
+	 * @return false unless the subclass overrides the backoff methods
+	 */
+	public boolean hasBackoffForm(){
+		return false;
+	}
+	
+	/**
+	 * @param first
+	 * @return the weight of the backoff distribution for unseen bigrams starting with first
+	 */
+	public double getBackoffWeight(int first){
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " has no backoff form");
+	}
+	
+	/**
+	 * @param second
+	 * @return the (unnormalized) backoff probability of second
+	 */
+	public double getBackoffProb(int second){
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " has no backoff form");
+	}
+	
+	/**
+	 * Log probability of a sentence given as word IDs, WITHOUT <s> or </s>
+	 * Words that are not in the vocabulary are scored as <unk>
+	 * @param ids
+	 * @param from first word of the sentence
+	 * @param to one past the last word of the sentence
+	 * @return logarithmic probability
+	 */
+	public double logProb(int[] ids, int from, int to){
+		long start = LMMetrics.start();
+		BigramCounts counts = getIdCounts();
+		double logProb = 0;
+		int previous = WordIndex.START;
+		for (int i = from; i < to; i++){
+			int id = counts.isInVocabulary(ids[i]) ? ids[i] : WordIndex.UNK;
+			logProb += Math.log10(getBigramProb(previous, id));
+			previous = id;
+		}
+		logProb += Math.log10(getBigramProb(previous, WordIndex.END));
+		LMMetrics.LOG_PROB.stop(start);
 		return logProb;
 	}
 	
+	@Override
+	public WordIndex getWordIndex(){
+		return getIdCounts().getWordIndex();
+	}
+	
+	@Override
+	public void logProbBatch(int[][] sentences, double[] results){
+		BatchScorer.score(batchScorer(), sentences, results, false);
+	}
+	
+	@Override
+	public void logProbBatch(int[] tokens, int[] offsets, double[] results){
+		BatchScorer.score(batchScorer(), tokens, offsets, results, false);
+	}
+	
+	@Override
+	public void perplexityBatch(int[][] sentences, double[] results){
+		BatchScorer.score(batchScorer(), sentences, results, true);
+	}
+	
+	@Override
+	public void perplexityBatch(int[] tokens, int[] offsets, double[] results){
+		BatchScorer.score(batchScorer(), tokens, offsets, results, true);
+	}
+	
+	/**
+	 * Score every line of UTF-8 text in the buffer (e.g. ByteTokenizer.map(filename)),
+	 * tokenized in place without making Strings
+	 * @param sentences lines WITHOUT <s> or </s>
+	 * @return the log probability of every line
+	 */
+	public double[] logProbBatch(ByteBuffer sentences){
+		ByteTokenizer.Batch batch = ByteTokenizer.tokenizeBatch(sentences, getWordIndex());
+		double[] results = new double[batch.size()];
+		logProbBatch(batch.tokens, batch.offsets, results);
+		return results;
+	}
+	
+	/**
+	 * Same as above for the perplexity of every line
+	 * @param sentences lines WITHOUT <s> or </s>
+	 * @return the perplexity of every line
+	 */
+	public double[] perplexityBatch(ByteBuffer sentences){
+		ByteTokenizer.Batch batch = ByteTokenizer.tokenizeBatch(sentences, getWordIndex());
+		double[] results = new double[batch.size()];
+		perplexityBatch(batch.tokens, batch.offsets, results);
+		return results;
+	}
+	
+	/**
+	 * @return scorer for the batch methods
+	 */
+	private BatchScorer.SentenceScorer batchScorer(){
+		// move onto word IDs before the threads start reading the counts
+		getIdCounts();
+		return new BatchScorer.SentenceScorer(){
+			@Override
+			public double logProb(int[] ids, int from, int to) {
+				return LMBase.this.logProb(ids, from, to);
+			}
+		};
+	}
 	
 	/**
 	 * Given a filename (a corpus) calculate its perplexity
+	 * Sentences are scored in parallel on all the cores (see PerplexityEvaluator)
 	 * @param filename
 	 * @return perplexity value
 	 */
@@ -175,28 +823,10 @@ public abstract class LMBase implements LMModel {
 		System.out.println("Calculating Perplexity...");
 		double perplexity = 0;
 		
-		// Read in the file and calculate perplexity
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(filename));
-			
-			// initialize counts and sentence
-			double numWords = 0;
-			double totalLogProb = 0;
-			
-			for (String sentence = br.readLine(); sentence != null; sentence = br.readLine()){
-				// convert the sentence into ArrayList<String> of words 
-				ArrayList<String> sentWords = sentenceToWords(sentence);
-				
-				// calculate logProb for the given sentence				
-				totalLogProb += logProb(sentWords);
-				numWords += sentWords.size() - 1;
-			}
-			System.out.println("LogProb: " + totalLogProb);
-			// calculate perplexity
-			perplexity = Math.pow(10, -totalLogProb/numWords);
-			
-			// close the file
-			br.close();
+			PerplexityEvaluator.Result result = evaluatePerplexity(filename, Runtime.getRuntime().availableProcessors());
+			System.out.println("LogProb: " + result.logProb);
+			perplexity = result.perplexity;
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -204,6 +834,36 @@ public abstract class LMBase implements LMModel {
 		return perplexity;
 	}
 	
+	/**
+	 * Given a filename (a corpus) calculate its perplexity along with the number of
+	 * tokens, OOV words and sentences it was computed from
+	 * @param filename
+	 * @param threads
+	 * @return result
+	 * @throws IOException
+	 */
+	public PerplexityEvaluator.Result evaluatePerplexity(String filename, int threads) throws IOException {
+		long start = LMMetrics.start();
+		PerplexityEvaluator.Result result = new PerplexityEvaluator(this, threads).evaluate(filename);
+		LMMetrics.PERPLEXITY.stop(start);
+		return result;
+	}
+	
+	/**
+	 * Same as above, but the file is memory-mapped and tokenized in place as UTF-8 bytes
+	 * A model trained with the HashMaps is moved onto word IDs first (see getIdCounts)
+	 * @param filename
+	 * @param threads
+	 * @return result
+	 * @throws IOException
+	 */
+	public PerplexityEvaluator.Result evaluatePerplexityMapped(String filename, int threads) throws IOException {
+		long start = LMMetrics.start();
+		PerplexityEvaluator.Result result = new PerplexityEvaluator(this, threads).evaluateMapped(filename);
+		LMMetrics.PERPLEXITY.stop(start);
+		return result;
+	}
+	
 	/**
 	 * Convert a single string of a sentence into an arrayList of the words with respect to the following: 
 	 * add the <s> and </s> characters 
@@ -221,41 +881,83 @@ public abstract class LMBase implements LMModel {
 		
 		// make sure each word was either seen in training or replace it with unk
 		// not checking the first or last word which is <s> and </s>
+		int numUnk = 0;
 		for (int i = 1; i < sentWords.size() - 1; i++){
-			String word = sentWords.get(i);
-			if (!vocabulary.contains(word)){
+			if (!isInVocabulary(sentWords.get(i))){
 				sentWords.set(i, unk);
+				numUnk++;
 			}
 		}
+		LMMetrics.tokenized(sentWords.size() - 2, numUnk);
 		//System.out.println(sentWords);
 		return sentWords;
 	}
 	
+	/**
+	 * @param word
+	 * @return true if the word is in the vocabulary, false if it is scored as <unk>
+	 */
+	protected boolean isInVocabulary(String word){
+		BigramCounts counts = idCounts;
+		return counts != null ? counts.isInVocabulary(counts.getWordIndex().getId(word)) : vocabulary.contains(word);
+	}
+	
 	/**
 	 * Generate greedy sentence
-	 * Takes the most likely word given the word before
+	 * Takes the most likely word given the word before (see SentenceGenerator)
 	 */
 	public String generateGreedySentence() {
-		String word = "<s>";
-		String sentence = "";
-		while (!word.equals("</s>")) {
-			double maxProb = 0.0;
-			String next = "";
-			for (String possibleWord : bigramCounts.get(word).keySet()) {
-				Double prob = getBigramProb(word, possibleWord);
-				if (prob > maxProb && possibleWord != unk && !possibleWord.equals("%NUMBER%") && !sentence.contains(possibleWord)) {
-					next = possibleWord;
-					maxProb = prob;
-				}			
-			}
-			word = next;
-			if (sentence.equals("")) {
-				sentence = word;
-			} else if (!word.equals("</s>")) {
-				sentence = sentence + " " + word;
-			}
+		SentenceGenerator generator = getGenerator();
+		synchronized (generator){
+			return generator.greedy();
+		}
+	}
+	
+	/**
+	 * Generate the most likely sentence found by a beam search
+	 * @param beamWidth number of partial sentences kept at every step
+	 * @return sentence
+	 */
+	public String generateBeamSentence(int beamWidth) {
+		SentenceGenerator generator = getGenerator();
+		synchronized (generator){
+			return generator.beamSearch(beamWidth);
+		}
+	}
+	
+	/**
+	 * Generate a sentence by sampling every word from the k most likely words
+	 * @param k
+	 * @return sentence
+	 */
+	public String generateTopKSentence(int k) {
+		SentenceGenerator generator = getGenerator();
+		synchronized (generator){
+			return generator.sampleTopK(k);
+		}
+	}
+	
+	/**
+	 * Generate a sentence by sampling every word from the most likely words
+	 * that together have probability p (nucleus sampling)
+	 * @param p
+	 * @return sentence
+	 */
+	public String generateTopPSentence(double p) {
+		SentenceGenerator generator = getGenerator();
+		synchronized (generator){
+			return generator.sampleTopP(p);
+		}
+	}
+	
+	/**
+	 * @return the generator, created once even if several threads ask at the same time
+	 */
+	private synchronized SentenceGenerator getGenerator() {
+		if (generator == null) {
+			generator = new SentenceGenerator(this, (long) (Math.random() * Long.MAX_VALUE));
 		}
-		return sentence;
+		return generator;
 	}
 	
 	/**
@@ -263,41 +965,38 @@ public abstract class LMBase implements LMModel {
 	 * probability distribution 
 	 * Words with a higher probability will have a 
 	 * higher chance of being chosen
+	 * Draws come from cached alias tables (see AliasSampler)
+	 * Threads take turns on the one sampler, use generateSamplingSentences to sample in parallel
 	 */
 	public String generateSamplingSentence() {
-		String word = "<s>";
-		String sentence = "";
-		String[] possibleWords = new String[vocabulary.size()];
-		Double[] possibleProbs = new Double[vocabulary.size()];
-		int h = 0;
-		while (!word.equals(".") && h < 10) {
-			int i = 0;
-			for (String possibleWord : vocabulary) {
-				possibleWords[i] = possibleWord;
-				possibleProbs[i] = getBigramProb(word, possibleWord);
-				i++;
-			}
-			Double[] sortProbs = possibleProbs.clone();
-			for (int j = 1; j < sortProbs.length; j++) {
-				sortProbs[j] += sortProbs[j - 1];
-			}
-			String nextWord = unk;
-			while ((nextWord.equals(unk) || nextWord.equals("%NUMBER%") || nextWord.equals(start) || nextWord.equals(end)) 
-					|| (nextWord.equals(".") && h < 3)) {
-				double p = Math.random();
-				int q = Arrays.binarySearch(sortProbs, p);
-				q = q >= 0 ? q : (-q-1);
-				nextWord = possibleWords[q];
-			}
-			word = nextWord;
-			if (sentence.equals("")) {
-				sentence = word;
-			} else if (!word.equals("</s>")){
-				sentence = sentence + " " + word;
-			}
-			h++;
+		AliasSampler sampler = getSampler();
+		synchronized (sampler){
+			return sampler.generateSentence();
 		}
-		return sentence;
 	}
 	
+	/**
+	 * @return the sampler, created once even if several threads ask at the same time
+	 */
+	private synchronized AliasSampler getSampler() {
+		if (sampler == null) {
+			sampler = new AliasSampler(this, (long) (Math.random() * Long.MAX_VALUE));
+		}
+		return sampler;
+	}
+
+	/**
+	 * Write many sampled sentences to a file, one per line, on several threads
+	 * The same seed gives the same file for any number of threads (see BulkGenerator)
+	 * @param numSentences
+	 * @param seed
+	 * @param threads
+	 * @param filename
+	 * @return number of sentences written
+	 * @throws IOException
+	 */
+	public long generateSamplingSentences(long numSentences, long seed, int threads, String filename) throws IOException {
+		return new BulkGenerator(this, threads).generate(numSentences, seed, filename);
+	}
+
 }
@@ -0,0 +1,465 @@
+package nlp.lm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Benchmark suite for the hot paths of the language model package
+ *
+ * Works like a small JMH: every benchmark is warmed up for a few timed iterations and then
+ * measured for a few more, and the mean time per operation is reported. Results are kept
+ * alive through a volatile sink so the JIT cannot drop the work. Results can be saved as a
+ * baseline and later runs compared against it, flagging anything that got slower.
+ *
+ * Covered: training (HashMaps, word IDs, parallel), getBigramProb for seen and unseen bigrams
+ * on both models (DiscountLMModel also compiled), with and without the Bloom filter of seen
+ * bigrams (whose false positive rate on the unseen test bigrams is printed), perplexity
+ * evaluation, sentenceToWords and the generators. They run on the given training/testing files, or on a synthetic corpus.
+ *
+ * Usage: LMBenchmarkSuite [-train file] [-test file] [-synthetic numSentences]
+ *                         [-filter text] [-save file] [-baseline file]
+ * Run with -Dnlp.lm.metrics=true to also print the LMMetrics of the whole run (and compare
+ * the times with a run without it to see what the metrics cost).
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class LMBenchmarkSuite {
+
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASURE_ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 500000000L;
+
+	// slower than the baseline by more than this is flagged as a regression
+	private static final double REGRESSION = 0.10;
+
+	// size of the Bloom filter in the bloom benchmarks
+	private static final double BLOOM_BITS_PER_BIGRAM = 10;
+
+	// keeps benchmark results alive
+	static volatile double sink;
+
+	/**
+	 * One benchmark: run() does some operations and returns how many
+	 */
+	private static abstract class Benchmark {
+		final String name;
+
+		Benchmark(String name){
+			this.name = name;
+		}
+
+		abstract long run();
+	}
+
+	private final String training;
+	private final String testing;
+	private final ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+	// results: benchmark name -> ns/op
+	private final LinkedHashMap<String, Double> results = new LinkedHashMap<String, Double>();
+
+	private LMBenchmarkSuite(String training, String testing){
+		this.training = training;
+		this.testing = testing;
+	}
+
+	/**
+	 * Set up every benchmark on the training and testing files
+	 * @throws IOException
+	 */
+	private void setUp() throws IOException {
+		final ArrayList<String> testSentences = readLines(testing);
+		final double trainingTokens = new LambdaLMModel(training, 0.01, true).totalNumWords;
+
+		benchmarks.add(new Benchmark("trainModel/hashmaps"){
+			long run(){
+				sink += new LambdaLMModel(training, 0.01, false).totalNumWords;
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("trainModel/ids"){
+			long run(){
+				sink += new LambdaLMModel(training, 0.01, true).totalNumWords;
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("trainModel/parallel"){
+			long run(){
+				LambdaLMModel model = new LambdaLMModel(new IdBigramCounts(), 0.01);
+				model.trainModelParallel(training, Runtime.getRuntime().availableProcessors());
+				sink += model.totalNumWords;
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("trainCounts/mapped"){
+			long run(){
+				sink += LMBase.trainCountsMapped(training).getTotalNumWords();
+				return 1;
+			}
+		});
+
+		final LambdaLMModel lambda = new LambdaLMModel(training, 0.01, false);
+		final DiscountLMModel discount = new DiscountLMModel(training, 0.5, false);
+		final DiscountLMModel compiled = new DiscountLMModel(training, 0.5, true);
+		compiled.compile();
+
+		// bigrams of the test set that were and were not seen in training
+		final ArrayList<String[]> seen = new ArrayList<String[]>();
+		final ArrayList<String[]> unseen = new ArrayList<String[]>();
+		for (String sentence : testSentences){
+			ArrayList<String> words = lambda.sentenceToWords(sentence);
+			for (int i = 0; i < words.size() - 1; i++){
+				String[] bigram = {words.get(i), words.get(i + 1)};
+				(lambda.getBigramCount(bigram[0], bigram[1]) > 0 ? seen : unseen).add(bigram);
+			}
+		}
+
+		addBigramBenchmark("getBigramProb/lambda/seen", lambda, seen);
+		addBigramBenchmark("getBigramProb/lambda/unseen", lambda, unseen);
+		addBigramBenchmark("getBigramProb/discount/seen", discount, seen);
+		addBigramBenchmark("getBigramProb/discount/unseen", discount, unseen);
+		addBigramBenchmark("getBigramProb/discount-compiled/seen", compiled, seen);
+		addBigramBenchmark("getBigramProb/discount-compiled/unseen", compiled, unseen);
+
+		// the same lookups by word ID, with and without the Bloom filter in front of the counts
+		IdBigramCounts counts = LMBase.trainCounts(training);
+		final LambdaLMModel lambdaIds = new LambdaLMModel(counts, 0.01);
+		final LambdaLMModel lambdaBloom = new LambdaLMModel(counts, 0.01);
+		lambdaBloom.useBloomFilter(BLOOM_BITS_PER_BIGRAM);
+		final DiscountLMModel compiledBloom = new DiscountLMModel(counts, 0.5);
+		compiledBloom.compile();
+		compiledBloom.useBloomFilter(BLOOM_BITS_PER_BIGRAM);
+		int[][] seenIds = toIds(seen, counts.getWordIndex());
+		int[][] unseenIds = toIds(unseen, counts.getWordIndex());
+
+		addBigramBenchmark("getBigramProb/lambda-bloom/seen", lambdaBloom, seen);
+		addBigramBenchmark("getBigramProb/lambda-bloom/unseen", lambdaBloom, unseen);
+		addBigramBenchmark("getBigramProb/discount-compiled-bloom/seen", compiledBloom, seen);
+		addBigramBenchmark("getBigramProb/discount-compiled-bloom/unseen", compiledBloom, unseen);
+		addIdBigramBenchmark("getBigramProb(int)/lambda/seen", lambdaIds, seenIds);
+		addIdBigramBenchmark("getBigramProb(int)/lambda/unseen", lambdaIds, unseenIds);
+		addIdBigramBenchmark("getBigramProb(int)/lambda-bloom/seen", lambdaBloom, seenIds);
+		addIdBigramBenchmark("getBigramProb(int)/lambda-bloom/unseen", lambdaBloom, unseenIds);
+		addIdBigramBenchmark("getBigramProb(int)/discount-compiled/unseen", compiled, toIds(unseen, compiled.getWordIndex()));
+		addIdBigramBenchmark("getBigramProb(int)/discount-compiled-bloom/seen", compiledBloom, seenIds);
+		addIdBigramBenchmark("getBigramProb(int)/discount-compiled-bloom/unseen", compiledBloom, unseenIds);
+
+		benchmarks.add(new Benchmark("getPerplexity/lambda"){
+			long run(){
+				sink += evaluate(lambda);
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("getPerplexity/discount-compiled"){
+			long run(){
+				sink += evaluate(compiled);
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("getPerplexity/discount-compiled/mapped"){
+			long run(){
+				try {
+					sink += compiled.evaluatePerplexityMapped(testing, Runtime.getRuntime().availableProcessors()).perplexity;
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("sentenceToWords"){
+			long run(){
+				for (String sentence : testSentences){
+					sink += lambda.sentenceToWords(sentence).size();
+				}
+				return testSentences.size();
+			}
+		});
+		benchmarks.add(new Benchmark("generateGreedySentence"){
+			long run(){
+				sink += compiled.generateGreedySentence().length();
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("generateBeamSentence/5"){
+			long run(){
+				sink += compiled.generateBeamSentence(5).length();
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("generateTopPSentence/0.9"){
+			long run(){
+				for (int i = 0; i < 10; i++){
+					sink += compiled.generateTopPSentence(0.9).length();
+				}
+				return 10;
+			}
+		});
+		benchmarks.add(new Benchmark("generateSamplingSentence"){
+			long run(){
+				for (int i = 0; i < 1000; i++){
+					sink += compiled.generateSamplingSentence().length();
+				}
+				return 1000;
+			}
+		});
+
+		System.out.println("training on " + training + " (" + (long) trainingTokens + " tokens), testing on " + testing);
+		System.out.println(seen.size() + " seen and " + unseen.size() + " unseen test bigrams");
+
+		// false positives: unseen test bigrams the filter lets through to the count lookup
+		BigramBloomFilter filter = lambdaBloom.getBloomFilter();
+		long falsePositives = 0;
+		for (int[] bigram : unseenIds){
+			if (filter.mightContain(bigram[0], bigram[1])){
+				falsePositives++;
+			}
+		}
+		System.out.println(String.format("bloom filter: %d bigrams in %d KB, %d hashes, false positive rate %.4f on the unseen test bigrams (%.4f expected)",
+				filter.getNumBigrams(), filter.memoryBytes() / 1024, filter.getNumHashes(),
+				(double) falsePositives / Math.max(1, unseenIds.length), filter.expectedFalsePositiveRate()));
+	}
+
+	/**
+	 * @param bigrams
+	 * @param index
+	 * @return the bigrams as word IDs
+	 */
+	private static int[][] toIds(ArrayList<String[]> bigrams, WordIndex index){
+		int[][] ids = new int[bigrams.size()][];
+		for (int i = 0; i < ids.length; i++){
+			ids[i] = new int[]{index.getId(bigrams.get(i)[0]), index.getId(bigrams.get(i)[1])};
+		}
+		return ids;
+	}
+
+	private void addIdBigramBenchmark(String name, final LMBase model, final int[][] bigrams){
+		benchmarks.add(new Benchmark(name){
+			long run(){
+				for (int[] bigram : bigrams){
+					sink += model.getBigramProb(bigram[0], bigram[1]);
+				}
+				return bigrams.length;
+			}
+		});
+	}
+
+	private void addBigramBenchmark(String name, final LMBase model, final ArrayList<String[]> bigrams){
+		benchmarks.add(new Benchmark(name){
+			long run(){
+				for (String[] bigram : bigrams){
+					sink += model.getBigramProb(bigram[0], bigram[1]);
+				}
+				return bigrams.size();
+			}
+		});
+	}
+
+	/**
+	 * The perplexity evaluation behind getPerplexity, without its printing
+	 */
+	private double evaluate(LMBase model){
+		try {
+			return model.evaluatePerplexity(testing, Runtime.getRuntime().availableProcessors()).perplexity;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Warm up and measure every benchmark whose name contains filter
+	 * @param filter
+	 */
+	private void runAll(String filter){
+		for (Benchmark benchmark : benchmarks){
+			if (filter != null && !benchmark.name.contains(filter)){
+				continue;
+			}
+			for (int i = 0; i < WARMUP_ITERATIONS; i++){
+				iteration(benchmark);
+			}
+			double[] nanosPerOp = new double[MEASURE_ITERATIONS];
+			double mean = 0;
+			for (int i = 0; i < MEASURE_ITERATIONS; i++){
+				nanosPerOp[i] = iteration(benchmark);
+				mean += nanosPerOp[i] / MEASURE_ITERATIONS;
+			}
+			double variance = 0;
+			for (double value : nanosPerOp){
+				variance += (value - mean) * (value - mean) / MEASURE_ITERATIONS;
+			}
+			results.put(benchmark.name, mean);
+			System.out.println(String.format("%-50s %14.1f ns/op  +- %5.1f%%  %14.1f ops/s",
+					benchmark.name, mean, 100 * Math.sqrt(variance) / mean, 1e9 / mean));
+		}
+	}
+
+	/**
+	 * Run the benchmark for at least ITERATION_NANOS
+	 * @param benchmark
+	 * @return nanoseconds per operation
+	 */
+	private static double iteration(Benchmark benchmark){
+		long operations = 0;
+		long startTime = System.nanoTime();
+		long elapsed;
+		do {
+			operations += benchmark.run();
+			elapsed = System.nanoTime() - startTime;
+		} while (elapsed < ITERATION_NANOS);
+		return (double) elapsed / operations;
+	}
+
+	/**
+	 * Compare the results with a baseline saved by an earlier run
+	 * @param filename
+	 * @return number of regressions
+	 * @throws IOException
+	 */
+	private int compare(String filename) throws IOException {
+		int regressions = 0;
+		System.out.println("compared with " + filename + ":");
+		for (String line : readLines(filename)){
+			String[] fields = line.split("\t");
+			Double now = results.get(fields[0]);
+			if (now == null){
+				continue;
+			}
+			double before = Double.parseDouble(fields[1]);
+			double change = (now - before) / before;
+			boolean regression = change > REGRESSION;
+			if (regression){
+				regressions++;
+			}
+			System.out.println(String.format("%-50s %+7.1f%% %s", fields[0], 100 * change, regression ? "REGRESSION" : ""));
+		}
+		return regressions;
+	}
+
+	/**
+	 * Save the results as a baseline (name, tab, ns/op per line)
+	 * @param filename
+	 * @throws IOException
+	 */
+	private void save(String filename) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8));
+		for (Map.Entry<String, Double> result : results.entrySet()){
+			writer.write(result.getKey() + "\t" + result.getValue() + "\n");
+		}
+		writer.close();
+	}
+
+	/**
+	 * Write a synthetic corpus: sentences of 5-30 words drawn from a Zipf distribution
+	 * @param filename
+	 * @param numSentences
+	 * @param vocabularySize
+	 * @param seed
+	 * @throws IOException
+	 */
+	static void writeSyntheticCorpus(String filename, int numSentences, int vocabularySize, long seed) throws IOException {
+		// cumulative Zipf weights 1/rank
+		double[] cumulative = new double[vocabularySize];
+		double total = 0;
+		for (int rank = 0; rank < vocabularySize; rank++){
+			total += 1.0 / (rank + 1);
+			cumulative[rank] = total;
+		}
+
+		SplittableRandom random = new SplittableRandom(seed);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8));
+		StringBuilder sentence = new StringBuilder();
+		for (int s = 0; s < numSentences; s++){
+			sentence.setLength(0);
+			int length = 5 + random.nextInt(26);
+			for (int i = 0; i < length; i++){
+				int rank = java.util.Arrays.binarySearch(cumulative, random.nextDouble() * total);
+				rank = rank >= 0 ? rank : -rank - 1;
+				sentence.append(i == 0 ? "" : " ").append('w').append(Math.min(rank, vocabularySize - 1));
+			}
+			writer.write(sentence.append('\n').toString());
+		}
+		writer.close();
+	}
+
+	static ArrayList<String> readLines(String filename) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8));
+		for (String line = br.readLine(); line != null; line = br.readLine()){
+			lines.add(line);
+		}
+		br.close();
+		return lines;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String training = "src/sentences.development";
+		String testing = "src/sentences.testing";
+		String filter = null;
+		String saveFile = null;
+		String baselineFile = null;
+		int synthetic = 0;
+
+		for (int i = 0; i + 1 < args.length; i += 2){
+			if (args[i].equals("-train")){
+				training = args[i + 1];
+			}
+			else if (args[i].equals("-test")){
+				testing = args[i + 1];
+			}
+			else if (args[i].equals("-synthetic")){
+				synthetic = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equals("-filter")){
+				filter = args[i + 1];
+			}
+			else if (args[i].equals("-save")){
+				saveFile = args[i + 1];
+			}
+			else if (args[i].equals("-baseline")){
+				baselineFile = args[i + 1];
+			}
+			else {
+				System.out.println("unknown option " + args[i]);
+				return;
+			}
+		}
+
+		if (synthetic > 0){
+			File trainFile = File.createTempFile("synthetic", ".train");
+			File testFile = File.createTempFile("synthetic", ".test");
+			trainFile.deleteOnExit();
+			testFile.deleteOnExit();
+			writeSyntheticCorpus(trainFile.getPath(), synthetic, 50000, 159);
+			writeSyntheticCorpus(testFile.getPath(), Math.max(1, synthetic / 10), 50000, 160);
+			training = trainFile.getPath();
+			testing = testFile.getPath();
+		}
+
+		LMBenchmarkSuite suite = new LMBenchmarkSuite(training, testing);
+		suite.setUp();
+		suite.runAll(filter);
+		if (LMMetrics.ENABLED){
+			System.out.println(LMMetrics.snapshot());
+		}
+		if (saveFile != null){
+			suite.save(saveFile);
+		}
+		if (baselineFile != null && suite.compare(baselineFile) > 0){
+			System.exit(1);
+		}
+	}
+}
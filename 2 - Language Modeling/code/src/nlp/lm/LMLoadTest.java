@@ -0,0 +1,210 @@
+package nlp.lm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test client for LMServer: many threads send one sentence per request to a server on
+ * localhost and the latency of every request is recorded
+ *
+ * Each thread sends its next request as soon as the last one is answered (closed loop), so
+ * the number of threads is the number of requests in flight. The first tenth of the
+ * requests warm up the server and are not counted. Reports requests/sec and the p50, p99
+ * and max latency.
+ *
+ * Usage: LMLoadTest [-host host] [-port port] [-endpoint logprob|perplexity|next]
+ *                   [-threads n] [-requests n] [-sentences file] [-embedded trainingFile]
+ * With -embedded a server for that training file is started in this JVM first.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class LMLoadTest {
+
+	private final String baseUrl;
+	private final String endpoint;
+	private final ArrayList<String> sentences;
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param endpoint logprob, perplexity or next
+	 * @param sentences sent one per request, in turn
+	 */
+	public LMLoadTest(String host, int port, String endpoint, ArrayList<String> sentences){
+		this.baseUrl = "http://" + host + ":" + port + "/";
+		this.endpoint = endpoint;
+		this.sentences = sentences;
+	}
+
+	/**
+	 * Send requests from threads until all are answered
+	 * @param threads
+	 * @param requests
+	 * @return latency of every request in nanoseconds, in the order they were started
+	 * @throws InterruptedException
+	 */
+	public long[] run(int threads, final int requests) throws InterruptedException {
+		final long[] latencies = new long[requests];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicLong errors = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++){
+			workers[t] = new Thread(){
+				@Override
+				public void run(){
+					int i;
+					while ((i = next.getAndIncrement()) < requests){
+						long start = System.nanoTime();
+						try {
+							send(sentences.get(i % sentences.size()));
+						} catch (IOException e) {
+							if (errors.getAndIncrement() == 0){
+								e.printStackTrace();
+							}
+						}
+						latencies[i] = System.nanoTime() - start;
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread worker : workers){
+			worker.join();
+		}
+		if (errors.get() > 0){
+			System.out.println(errors.get() + " requests failed");
+		}
+		return latencies;
+	}
+
+	/**
+	 * Send one request for the sentence
+	 * @param sentence
+	 * @return the answer
+	 * @throws IOException if the request failed
+	 */
+	String send(String sentence) throws IOException {
+		String query;
+		if (endpoint.equals("next")){
+			String[] words = sentence.split(" ");
+			query = "next?k=10&word=" + URLEncoder.encode(words[words.length - 1], "UTF-8");
+		}
+		else {
+			query = endpoint + "?sentence=" + URLEncoder.encode(sentence, "UTF-8");
+		}
+		return get(query);
+	}
+
+	/**
+	 * Send a GET request and read the whole answer (so the connection is kept alive)
+	 * @param path and query, after the host and port
+	 * @return the answer
+	 * @throws IOException if the request failed
+	 */
+	String get(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream answer = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) > 0){
+			answer.write(buffer, 0, read);
+		}
+		in.close();
+		if (status != 200){
+			throw new IOException("HTTP " + status + ": " + answer.toString("UTF-8"));
+		}
+		return answer.toString("UTF-8");
+	}
+
+	/**
+	 * @param sorted
+	 * @param p between 0 and 1
+	 * @return the value p of the sorted values are at or under
+	 */
+	static long percentile(long[] sorted, double p){
+		int rank = (int) Math.ceil(p * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	/**
+	 * Run the load test and print the results
+	 * @param args see the class comment
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String host = "localhost";
+		int port = LMServer.DEFAULT_PORT;
+		String endpoint = "logprob";
+		int threads = 16;
+		int requests = 20000;
+		String sentenceFile = "src/sentences.testing";
+		String embedded = null;
+		for (int i = 0; i + 1 < args.length; i += 2){
+			if (args[i].equals("-host")){
+				host = args[i + 1];
+			}
+			else if (args[i].equals("-port")){
+				port = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equals("-endpoint")){
+				endpoint = args[i + 1];
+			}
+			else if (args[i].equals("-threads")){
+				threads = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equals("-requests")){
+				requests = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equals("-sentences")){
+				sentenceFile = args[i + 1];
+			}
+			else if (args[i].equals("-embedded")){
+				embedded = args[i + 1];
+			}
+			else {
+				System.out.println("unknown option " + args[i]);
+				return;
+			}
+		}
+
+		LMServer server = null;
+		if (embedded != null){
+			server = new LMServer(LMServer.createModel(embedded, "lambda", Double.NaN), 0,
+					LMServer.DEFAULT_WINDOW_MICROS, LMServer.DEFAULT_MAX_BATCH);
+			server.start();
+			port = server.getPort();
+		}
+
+		LMLoadTest test = new LMLoadTest(host, port, endpoint, LMBenchmarkSuite.readLines(sentenceFile));
+		System.out.println("Load testing http://" + host + ":" + port + "/" + endpoint + " with " + threads + " threads");
+
+		// warm up
+		test.run(threads, Math.max(1, requests / 10));
+
+		long start = System.nanoTime();
+		long[] latencies = test.run(threads, requests);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Arrays.sort(latencies);
+		System.out.println(String.format("%d requests in %.2f s: %.1f requests/sec", requests, seconds, requests / seconds));
+		System.out.println(String.format("latency p50 %.3f ms, p99 %.3f ms, max %.3f ms", percentile(latencies, 0.5) / 1e6,
+				percentile(latencies, 0.99) / 1e6, latencies[latencies.length - 1] / 1e6));
+		System.out.print(test.get("metrics"));
+
+		if (server != null){
+			server.stop();
+		}
+	}
+}
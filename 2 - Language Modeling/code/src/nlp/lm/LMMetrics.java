@@ -0,0 +1,431 @@
+package nlp.lm;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the language models, to see why scoring is slow
+ * - bigram hits and misses in getBigramProb (seen vs unseen bigram)
+ * - how often DiscountLMModel backs off to alpha(first) * P(second)
+ * - how many words sentenceToWords turned into <unk>
+ * - how many bigram lookups the Bloom filter skipped (see LMBase.useBloomFilter)
+ * - how long logProb and perplexity calls take
+ *
+ * Metrics are off unless the JVM is started with -Dnlp.lm.metrics=true. ENABLED is a
+ * static final, so when it is false the JIT removes the calls below and the models run
+ * as fast as without them. When it is true the counters are LongAdders, so threads
+ * scoring in parallel do not fight over one cache line.
+ *
+ * Read them with snapshot(), or over JMX (jconsole) as nlp.lm:type=LMMetrics, which is
+ * registered as soon as the metrics are used.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class LMMetrics implements LMMetricsMBean {
+
+	public static final boolean ENABLED = Boolean.getBoolean("nlp.lm.metrics");
+
+	public static final String OBJECT_NAME = "nlp.lm:type=LMMetrics";
+
+	private static final LongAdder bigramHits = new LongAdder();
+	private static final LongAdder bigramMisses = new LongAdder();
+	private static final LongAdder discountLookups = new LongAdder();
+	private static final LongAdder discountBackoffs = new LongAdder();
+	private static final LongAdder tokenizedWords = new LongAdder();
+	private static final LongAdder unkWords = new LongAdder();
+	private static final LongAdder bloomChecks = new LongAdder();
+	private static final LongAdder bloomSkips = new LongAdder();
+
+	static final Latency LOG_PROB = new Latency();
+	static final Latency PERPLEXITY = new Latency();
+
+	static {
+		if (ENABLED){
+			registerMBean();
+		}
+	}
+
+	private LMMetrics(){
+	}
+
+	/**
+	 * Register the MBean on the platform MBean server (does nothing if it already is)
+	 */
+	public static void registerMBean(){
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(new LMMetrics(), new ObjectName(OBJECT_NAME));
+		} catch (InstanceAlreadyExistsException e) {
+			// registered before
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Count a getBigramProb call
+	 * @param seen true if the bigram was seen in training
+	 */
+	static void bigram(boolean seen){
+		if (ENABLED){
+			(seen ? bigramHits : bigramMisses).increment();
+		}
+	}
+
+	/**
+	 * Count a DiscountLMModel lookup
+	 * @param backoff true if it took the alpha(first) * P(second) branch
+	 */
+	static void discountLookup(boolean backoff){
+		if (ENABLED){
+			discountLookups.increment();
+			if (backoff){
+				discountBackoffs.increment();
+			}
+		}
+	}
+
+	/**
+	 * Count a Bloom filter check
+	 * @param skipped true if the filter ruled the bigram out, so its count was not looked up
+	 */
+	static void bloomFilter(boolean skipped){
+		if (ENABLED){
+			bloomChecks.increment();
+			if (skipped){
+				bloomSkips.increment();
+			}
+		}
+	}
+
+	/**
+	 * Count the words of a tokenized sentence
+	 * @param words number of words (without <s> and </s>)
+	 * @param unk how many of them became <unk>
+	 */
+	static void tokenized(int words, int unk){
+		if (ENABLED){
+			tokenizedWords.add(words);
+			unkWords.add(unk);
+		}
+	}
+
+	/**
+	 * @return start time for Latency.stop, or 0 if metrics are off (saves the nanoTime call)
+	 */
+	static long start(){
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Histogram of call latencies in nanoseconds
+	 * Every power of 2 is split into 4 buckets, so a percentile is within 12.5% of the true value
+	 */
+	static class Latency {
+		// values 0-3 get their own bucket, then 4 per power of 2 up to 2^63
+		private static final int NUM_BUCKETS = 4 * 62;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+		private final LongAdder totalNanos = new LongAdder();
+
+		/**
+		 * Record the time since start
+		 * @param start from LMMetrics.start()
+		 */
+		void stop(long start){
+			if (ENABLED){
+				long nanos = Math.max(0, System.nanoTime() - start);
+				buckets.incrementAndGet(bucket(nanos));
+				totalNanos.add(nanos);
+			}
+		}
+
+		static int bucket(long nanos){
+			if (nanos < 4){
+				return (int) nanos;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			return (exponent - 1) * 4 + (int) ((nanos >>> (exponent - 2)) & 3);
+		}
+
+		/**
+		 * @param bucket
+		 * @return smallest value in the bucket
+		 */
+		static long lowerBound(int bucket){
+			if (bucket < 4){
+				return bucket;
+			}
+			return (long) (4 + bucket % 4) << (bucket / 4 - 1);
+		}
+
+		LatencySnapshot snapshot(){
+			long[] counts = new long[NUM_BUCKETS];
+			for (int i = 0; i < NUM_BUCKETS; i++){
+				counts[i] = buckets.get(i);
+			}
+			return new LatencySnapshot(counts, totalNanos.sum());
+		}
+
+		void reset(){
+			for (int i = 0; i < NUM_BUCKETS; i++){
+				buckets.set(i, 0);
+			}
+			totalNanos.reset();
+		}
+	}
+
+	/**
+	 * Latencies of one kind of call at the time of the snapshot
+	 */
+	public static class LatencySnapshot {
+		private final long[] buckets;
+		public final long count;
+		public final long totalNanos;
+
+		LatencySnapshot(long[] buckets, long totalNanos){
+			this.buckets = buckets;
+			this.totalNanos = totalNanos;
+			long count = 0;
+			for (long c : buckets){
+				count += c;
+			}
+			this.count = count;
+		}
+
+		/**
+		 * @return mean latency in nanoseconds, 0 if there were no calls
+		 */
+		public double getMeanNanos(){
+			return count > 0 ? (double) totalNanos / count : 0;
+		}
+
+		/**
+		 * @param p between 0 and 1 (e.g. 0.99)
+		 * @return latency in nanoseconds that p of the calls were under (middle of its bucket)
+		 */
+		public double getPercentileNanos(double p){
+			if (count == 0){
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(p * count));
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++){
+				seen += buckets[i];
+				if (seen >= rank){
+					long low = Latency.lowerBound(i);
+					long high = i + 1 < buckets.length ? Latency.lowerBound(i + 1) : low;
+					return (low + high) / 2.0;
+				}
+			}
+			return Latency.lowerBound(buckets.length - 1);
+		}
+
+		@Override
+		public String toString(){
+			return String.format("%d calls, mean %.1f us, p50 %.1f us, p99 %.1f us", count,
+					getMeanNanos() / 1e3, getPercentileNanos(0.5) / 1e3, getPercentileNanos(0.99) / 1e3);
+		}
+	}
+
+	/**
+	 * All the metrics at one point in time
+	 */
+	public static class Snapshot {
+		public final long bigramHits;
+		public final long bigramMisses;
+		public final long discountLookups;
+		public final long discountBackoffs;
+		public final long tokenizedWords;
+		public final long unkWords;
+		public final long bloomChecks;
+		public final long bloomSkips;
+		public final LatencySnapshot logProb;
+		public final LatencySnapshot perplexity;
+
+		Snapshot(){
+			bigramHits = LMMetrics.bigramHits.sum();
+			bigramMisses = LMMetrics.bigramMisses.sum();
+			discountLookups = LMMetrics.discountLookups.sum();
+			discountBackoffs = LMMetrics.discountBackoffs.sum();
+			tokenizedWords = LMMetrics.tokenizedWords.sum();
+			unkWords = LMMetrics.unkWords.sum();
+			bloomChecks = LMMetrics.bloomChecks.sum();
+			bloomSkips = LMMetrics.bloomSkips.sum();
+			logProb = LOG_PROB.snapshot();
+			perplexity = PERPLEXITY.snapshot();
+		}
+
+		public double getBigramHitRate(){
+			return rate(bigramHits, bigramHits + bigramMisses);
+		}
+
+		public double getDiscountBackoffRate(){
+			return rate(discountBackoffs, discountLookups);
+		}
+
+		public double getUnkRate(){
+			return rate(unkWords, tokenizedWords);
+		}
+
+		public double getBloomSkipRate(){
+			return rate(bloomSkips, bloomChecks);
+		}
+
+		private static double rate(long part, long total){
+			return total > 0 ? (double) part / total : 0;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("bigrams: %d hits, %d misses (hit rate %.4f)%n"
+					+ "discount: %d lookups, %d backoffs (backoff rate %.4f)%n"
+					+ "tokenized: %d words, %d <unk> (unk rate %.4f)%n"
+					+ "bloom filter: %d checks, %d skipped lookups (skip rate %.4f)%n"
+					+ "logProb: %s%n"
+					+ "perplexity: %s",
+					bigramHits, bigramMisses, getBigramHitRate(),
+					discountLookups, discountBackoffs, getDiscountBackoffRate(),
+					tokenizedWords, unkWords, getUnkRate(),
+					bloomChecks, bloomSkips, getBloomSkipRate(), logProb, perplexity);
+		}
+	}
+
+	/**
+	 * @return the metrics so far (all 0 if they are not enabled)
+	 */
+	public static Snapshot snapshot(){
+		return new Snapshot();
+	}
+
+	/**
+	 * Set every counter and histogram back to 0
+	 */
+	public static void resetAll(){
+		bigramHits.reset();
+		bigramMisses.reset();
+		discountLookups.reset();
+		discountBackoffs.reset();
+		tokenizedWords.reset();
+		unkWords.reset();
+		bloomChecks.reset();
+		bloomSkips.reset();
+		LOG_PROB.reset();
+		PERPLEXITY.reset();
+	}
+
+	// MBean attributes
+
+	@Override
+	public boolean isEnabled(){
+		return ENABLED;
+	}
+
+	@Override
+	public long getBigramHits(){
+		return snapshot().bigramHits;
+	}
+
+	@Override
+	public long getBigramMisses(){
+		return snapshot().bigramMisses;
+	}
+
+	@Override
+	public double getBigramHitRate(){
+		return snapshot().getBigramHitRate();
+	}
+
+	@Override
+	public long getDiscountLookups(){
+		return snapshot().discountLookups;
+	}
+
+	@Override
+	public long getDiscountBackoffs(){
+		return snapshot().discountBackoffs;
+	}
+
+	@Override
+	public double getDiscountBackoffRate(){
+		return snapshot().getDiscountBackoffRate();
+	}
+
+	@Override
+	public long getTokenizedWords(){
+		return snapshot().tokenizedWords;
+	}
+
+	@Override
+	public long getUnkWords(){
+		return snapshot().unkWords;
+	}
+
+	@Override
+	public double getUnkRate(){
+		return snapshot().getUnkRate();
+	}
+
+	@Override
+	public long getBloomChecks(){
+		return snapshot().bloomChecks;
+	}
+
+	@Override
+	public long getBloomSkips(){
+		return snapshot().bloomSkips;
+	}
+
+	@Override
+	public double getBloomSkipRate(){
+		return snapshot().getBloomSkipRate();
+	}
+
+	@Override
+	public long getLogProbCalls(){
+		return LOG_PROB.snapshot().count;
+	}
+
+	@Override
+	public double getLogProbMeanMicros(){
+		return LOG_PROB.snapshot().getMeanNanos() / 1e3;
+	}
+
+	@Override
+	public double getLogProbP50Micros(){
+		return LOG_PROB.snapshot().getPercentileNanos(0.5) / 1e3;
+	}
+
+	@Override
+	public double getLogProbP99Micros(){
+		return LOG_PROB.snapshot().getPercentileNanos(0.99) / 1e3;
+	}
+
+	@Override
+	public long getPerplexityCalls(){
+		return PERPLEXITY.snapshot().count;
+	}
+
+	@Override
+	public double getPerplexityMeanMillis(){
+		return PERPLEXITY.snapshot().getMeanNanos() / 1e6;
+	}
+
+	@Override
+	public double getPerplexityP99Millis(){
+		return PERPLEXITY.snapshot().getPercentileNanos(0.99) / 1e6;
+	}
+
+	@Override
+	public void reset(){
+		resetAll();
+	}
+}
@@ -0,0 +1,60 @@
+package nlp.lm;
+
+/**
+ * JMX view of LMMetrics (registered as nlp.lm:type=LMMetrics)
+ * Every attribute is read from a fresh LMMetrics.snapshot()
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public interface LMMetricsMBean {
+
+	/**
+	 * @return true if the JVM was started with -Dnlp.lm.metrics=true
+	 */
+	public boolean isEnabled();
+
+	public long getBigramHits();
+
+	public long getBigramMisses();
+
+	public double getBigramHitRate();
+
+	public long getDiscountLookups();
+
+	public long getDiscountBackoffs();
+
+	public double getDiscountBackoffRate();
+
+	public long getTokenizedWords();
+
+	public long getUnkWords();
+
+	public double getUnkRate();
+
+	public long getBloomChecks();
+
+	public long getBloomSkips();
+
+	public double getBloomSkipRate();
+
+	public long getLogProbCalls();
+
+	public double getLogProbMeanMicros();
+
+	public double getLogProbP50Micros();
+
+	public double getLogProbP99Micros();
+
+	public long getPerplexityCalls();
+
+	public double getPerplexityMeanMillis();
+
+	public double getPerplexityP99Millis();
+
+	/**
+	 * Set every counter and histogram back to 0
+	 */
+	public void reset();
+}
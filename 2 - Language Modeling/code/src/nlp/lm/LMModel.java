@@ -33,4 +33,59 @@ public interface LMModel {
 	 * @return the probability of the second word given the first word (as a probability)
 	 */
 	public double getBigramProb(String first, String second);
+	
+	/**
+	 * Returns the mapping between words and the IDs used by the batch methods
+	 * The batches are given as word IDs, so the default batch methods below need it to turn
+	 * them back into words.
+	 * 
+	 * @return the word index of the trained model
+	 */
+	public WordIndex getWordIndex();
+	
+	/**
+	 * Given a batch of sentences as word IDs, write the log of the probability of each sentence.
+	 * Sentences are scored in parallel, so getBigramProb is called from several threads.
+	 * By default the IDs are turned back into words (IDs not in the word index as <unk>)
+	 * and scored with getBigramProb(String, String).
+	 * 
+	 * @param sentences the word IDs of each sentence. Sentences should NOT contain <s> or </s>.
+	 * @param results the log probability of sentences[i] is written to results[i]
+	 */
+	public default void logProbBatch(int[][] sentences, double[] results){
+		BatchScorer.score(BatchScorer.wordScorer(this), sentences, results, false);
+	}
+	
+	/**
+	 * Same as above for a batch stored in one token buffer
+	 * 
+	 * @param tokens the word IDs of all the sentences, without <s> or </s>
+	 * @param offsets sentence i is tokens[offsets[i]] .. tokens[offsets[i+1]-1], so there is one more offset than sentences
+	 * @param results the log probability of sentence i is written to results[i]
+	 */
+	public default void logProbBatch(int[] tokens, int[] offsets, double[] results){
+		BatchScorer.score(BatchScorer.wordScorer(this), tokens, offsets, results, false);
+	}
+	
+	/**
+	 * Given a batch of sentences as word IDs, write the perplexity of each sentence.
+	 * Sentences are scored in parallel, by default as in logProbBatch.
+	 * 
+	 * @param sentences the word IDs of each sentence. Sentences should NOT contain <s> or </s>.
+	 * @param results the perplexity of sentences[i] is written to results[i]
+	 */
+	public default void perplexityBatch(int[][] sentences, double[] results){
+		BatchScorer.score(BatchScorer.wordScorer(this), sentences, results, true);
+	}
+	
+	/**
+	 * Same as above for a batch stored in one token buffer
+	 * 
+	 * @param tokens the word IDs of all the sentences, without <s> or </s>
+	 * @param offsets sentence i is tokens[offsets[i]] .. tokens[offsets[i+1]-1], so there is one more offset than sentences
+	 * @param results the perplexity of sentence i is written to results[i]
+	 */
+	public default void perplexityBatch(int[] tokens, int[] offsets, double[] results){
+		BatchScorer.score(BatchScorer.wordScorer(this), tokens, offsets, results, true);
+	}
 }
@@ -0,0 +1,555 @@
+package nlp.lm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running HTTP server that loads a model once and scores sentences for other programs,
+ * so they do not pay for JVM startup and training on every run
+ *
+ * Endpoints (sentences are WITHOUT <s> or </s>, words separated by spaces):
+ * - /logprob?sentence=...     log probability of every sentence
+ * - /perplexity?sentence=...  perplexity of all the sentences together
+ * - /next?word=...&k=10       the k most likely next words after a word
+ * - /metrics                  LMMetrics snapshot and batching stats as text
+ * /logprob and /perplexity take the sentence parameter more than once, or a POST body with
+ * one sentence per line. Answers are JSON.
+ *
+ * Every request gets its own thread from a cached pool (one thread per request in flight).
+ * Sentences are not scored on the request thread: they go on a queue, and one batching
+ * thread takes everything that arrives within a short window (or up to maxBatch sentences)
+ * and scores it with one logProbBatch call, so many small concurrent requests become a few
+ * large batches scored on the fork/join pool.
+ *
+ * Usage: LMServer [-train file] [-model lambda|discount|kneserney] [-param value] [-port port]
+ *                 [-window micros] [-maxBatch sentences]
+ * Load test it with LMLoadTest.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class LMServer {
+
+	public static final int DEFAULT_PORT = 8159;
+
+	// how long the batching thread waits for more sentences after the first one
+	public static final long DEFAULT_WINDOW_MICROS = 500;
+	public static final int DEFAULT_MAX_BATCH = 1024;
+
+	// most words /next returns
+	private static final int MAX_NEXT_WORDS = 1000;
+
+	// longest a request waits for its sentences to be scored
+	public static final long REQUEST_TIMEOUT_SECONDS = 60;
+
+	static {
+		// the server writes the headers and the body of an answer separately, and without
+		// TCP_NODELAY the body waits for the client's delayed ACK (about 40 ms per request)
+		if (System.getProperty("sun.net.httpserver.nodelay") == null){
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final LMBase model;
+	private final WordIndex index;
+	private final SentenceGenerator generator;
+	private final HttpServer server;
+	private final ExecutorService requestThreads;
+	private final Batcher batcher;
+	private final Thread batcherThread;
+
+	/**
+	 * One sentence waiting to be scored
+	 */
+	private static class Pending {
+		final int[] ids;
+		final CompletableFuture<Double> logProb = new CompletableFuture<Double>();
+
+		Pending(int[] ids){
+			this.ids = ids;
+		}
+	}
+
+	/**
+	 * Collects the pending sentences into batches and scores them
+	 */
+	private class Batcher implements Runnable {
+		private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+		private final long windowNanos;
+		private final int maxBatch;
+		private volatile boolean running = true;
+
+		// for /metrics
+		final AtomicLong numBatches = new AtomicLong();
+		final AtomicLong numBatched = new AtomicLong();
+
+		Batcher(long windowNanos, int maxBatch){
+			this.windowNanos = windowNanos;
+			this.maxBatch = maxBatch;
+		}
+
+		@Override
+		public void run(){
+			ArrayList<Pending> batch = new ArrayList<Pending>();
+			while (running){
+				try {
+					Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (first == null){
+						continue;
+					}
+					batch.add(first);
+					long deadline = System.nanoTime() + windowNanos;
+					while (batch.size() < maxBatch){
+						long wait = deadline - System.nanoTime();
+						Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+						if (next == null){
+							break;
+						}
+						batch.add(next);
+					}
+					score(batch);
+				} catch (InterruptedException e) {
+					running = false;
+
+					// the sentences taken off the queue so far are not scored either
+					for (Pending pending : batch){
+						pending.logProb.completeExceptionally(new IllegalStateException("server stopped"));
+					}
+				} finally {
+					batch.clear();
+				}
+			}
+			failQueued();
+		}
+
+		/**
+		 * Nothing scores the sentences still queued once the batcher stopped, so fail them
+		 */
+		void failQueued(){
+			Pending left;
+			while ((left = queue.poll()) != null){
+				left.logProb.completeExceptionally(new IllegalStateException("server stopped"));
+			}
+		}
+
+		private void score(ArrayList<Pending> batch){
+			int numTokens = 0;
+			for (Pending pending : batch){
+				numTokens += pending.ids.length;
+			}
+			int[] tokens = new int[numTokens];
+			int[] offsets = new int[batch.size() + 1];
+			for (int i = 0; i < batch.size(); i++){
+				int[] ids = batch.get(i).ids;
+				System.arraycopy(ids, 0, tokens, offsets[i], ids.length);
+				offsets[i + 1] = offsets[i] + ids.length;
+			}
+			try {
+				double[] results = new double[batch.size()];
+				model.logProbBatch(tokens, offsets, results);
+				for (int i = 0; i < batch.size(); i++){
+					batch.get(i).logProb.complete(results[i]);
+				}
+			} catch (RuntimeException e) {
+				for (Pending pending : batch){
+					pending.logProb.completeExceptionally(e);
+				}
+			}
+			numBatches.incrementAndGet();
+			numBatched.addAndGet(batch.size());
+		}
+
+		/**
+		 * Queue the sentences and wait until they are scored
+		 * @param sentences word IDs of every sentence
+		 * @return log probability of every sentence
+		 * @throws IOException if the server stopped, scoring failed or took longer than REQUEST_TIMEOUT_SECONDS
+		 */
+		double[] logProbs(List<int[]> sentences) throws IOException {
+			ArrayList<Pending> pending = new ArrayList<Pending>(sentences.size());
+			for (int[] ids : sentences){
+				Pending p = new Pending(ids);
+				pending.add(p);
+				queue.add(p);
+			}
+
+			// the batcher may have stopped (and failed the queue) before these were queued
+			if (!running){
+				failQueued();
+			}
+
+			double[] results = new double[pending.size()];
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT_SECONDS);
+			try {
+				for (int i = 0; i < results.length; i++){
+					results[i] = pending.get(i).logProb.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while scoring", e);
+			} catch (ExecutionException e) {
+				throw new IOException("scoring failed", e.getCause());
+			} catch (TimeoutException e) {
+				throw new IOException("scoring took more than " + REQUEST_TIMEOUT_SECONDS + " s");
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Bad parameters, answered with 400
+	 */
+	private static class BadRequest extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		BadRequest(String message){
+			super(message);
+		}
+	}
+
+	/**
+	 * Handler that turns the answer or error of answer() into a response
+	 */
+	private abstract class JsonHandler implements HttpHandler {
+		abstract String answer(HttpExchange exchange) throws IOException, BadRequest;
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			int status = 200;
+			String body;
+			try {
+				String method = exchange.getRequestMethod();
+				if (!method.equals("GET") && !method.equals("POST")){
+					status = 405;
+					body = "{\"error\": \"use GET or POST\"}";
+				}
+				else {
+					body = answer(exchange);
+				}
+			} catch (BadRequest e) {
+				status = 400;
+				body = "{\"error\": " + quote(e.getMessage()) + "}";
+			} catch (IOException e) {
+				status = 500;
+				body = "{\"error\": " + quote(String.valueOf(e.getMessage())) + "}";
+			}
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", body.startsWith("{") ? "application/json" : "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		}
+	}
+
+	/**
+	 * Serve a trained model (call start() to begin answering)
+	 * @param model
+	 * @param port 0 for any free port
+	 * @param windowMicros how long to wait for more sentences before scoring a batch
+	 * @param maxBatch most sentences per batch
+	 * @throws IOException if the port cannot be bound
+	 */
+	public LMServer(LMBase model, int port, long windowMicros, int maxBatch) throws IOException {
+		this.model = model;
+		// move onto word IDs before requests start reading the counts
+		this.index = model.getIdCounts().getWordIndex();
+		this.generator = new SentenceGenerator(model, 159);
+		this.batcher = new Batcher(TimeUnit.MICROSECONDS.toNanos(windowMicros), maxBatch);
+		this.batcherThread = new Thread(batcher, "LMServer-batcher");
+		batcherThread.setDaemon(true);
+
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		requestThreads = Executors.newCachedThreadPool();
+		server.setExecutor(requestThreads);
+
+		server.createContext("/logprob", new JsonHandler(){
+			@Override
+			String answer(HttpExchange exchange) throws IOException, BadRequest {
+				double[] logProbs = batcher.logProbs(tokenize(readSentences(exchange)));
+				StringBuilder json = new StringBuilder("{\"logProb\": [");
+				for (int i = 0; i < logProbs.length; i++){
+					json.append(i > 0 ? ", " : "").append(logProbs[i]);
+				}
+				return json.append("]}").toString();
+			}
+		});
+		server.createContext("/perplexity", new JsonHandler(){
+			@Override
+			String answer(HttpExchange exchange) throws IOException, BadRequest {
+				List<int[]> sentences = tokenize(readSentences(exchange));
+				double[] logProbs = batcher.logProbs(sentences);
+				double logProb = 0;
+				long numTokens = 0;
+				for (int i = 0; i < logProbs.length; i++){
+					logProb += logProbs[i];
+					// every word and </s>
+					numTokens += sentences.get(i).length + 1;
+				}
+				double perplexity = Math.pow(10, -logProb/numTokens);
+				return "{\"perplexity\": " + perplexity + ", \"logProb\": " + logProb + ", \"tokens\": " + numTokens
+						+ ", \"sentences\": " + sentences.size() + "}";
+			}
+		});
+		server.createContext("/next", new JsonHandler(){
+			@Override
+			String answer(HttpExchange exchange) throws BadRequest {
+				List<String> words = getParameter(exchange, "word");
+				List<String> ks = getParameter(exchange, "k");
+				if (words.size() != 1){
+					throw new BadRequest("give one word parameter");
+				}
+				int k = 10;
+				try {
+					k = ks.isEmpty() ? k : Integer.parseInt(ks.get(0));
+				} catch (NumberFormatException e) {
+					throw new BadRequest("k must be a number");
+				}
+				if (k < 1 || k > MAX_NEXT_WORDS){
+					throw new BadRequest("k must be between 1 and " + MAX_NEXT_WORDS);
+				}
+				return nextWords(words.get(0), k);
+			}
+		});
+		server.createContext("/metrics", new JsonHandler(){
+			@Override
+			String answer(HttpExchange exchange){
+				long batches = batcher.numBatches.get();
+				long batched = batcher.numBatched.get();
+				return "batches: " + batches + ", sentences: " + batched + " (mean batch "
+						+ String.format("%.2f", batches > 0 ? (double) batched / batches : 0.0) + ")\n"
+						+ (LMMetrics.ENABLED ? LMMetrics.snapshot() + "\n" : "LMMetrics off (run with -Dnlp.lm.metrics=true)\n");
+			}
+		});
+	}
+
+	/**
+	 * Start answering requests
+	 */
+	public void start(){
+		batcherThread.start();
+		server.start();
+	}
+
+	/**
+	 * Stop answering and fail the sentences still queued
+	 */
+	public void stop(){
+		server.stop(0);
+		batcher.running = false;
+		batcherThread.interrupt();
+		requestThreads.shutdown();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort(){
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @param word
+	 * @param k
+	 * @return the k most likely words after word, as JSON
+	 */
+	private String nextWords(String word, int k){
+		int context = index.getId(word);
+		if (!model.getIdCounts().isInVocabulary(context)){
+			context = WordIndex.UNK;
+		}
+		int[] words = new int[k];
+		double[] probs = new double[k];
+		int n;
+		// the generator's cache of sorted contexts is not thread safe
+		synchronized (generator){
+			n = generator.nextWords(context, k, words, probs);
+		}
+		StringBuilder json = new StringBuilder("{\"word\": ").append(quote(index.getWord(context))).append(", \"next\": [");
+		for (int i = 0; i < n; i++){
+			json.append(i > 0 ? ", " : "").append("{\"word\": ").append(quote(index.getWord(words[i])))
+				.append(", \"prob\": ").append(probs[i]).append("}");
+		}
+		return json.append("]}").toString();
+	}
+
+	/**
+	 * Words are split on single spaces as in training and PerplexityEvaluator (see SentenceTokenizer),
+	 * so the server gives the same scores for the same text
+	 * Words without an ID get NO_ID, which logProbBatch scores as <unk>
+	 * @param sentences
+	 * @return word IDs of every sentence
+	 */
+	private List<int[]> tokenize(List<String> sentences){
+		ArrayList<int[]> result = new ArrayList<int[]>(sentences.size());
+		for (String sentence : sentences){
+			String[] words = sentence.split(" ", -1);
+			int[] ids = new int[words.length];
+			for (int i = 0; i < words.length; i++){
+				ids[i] = index.getId(words[i]);
+			}
+			result.add(ids);
+		}
+		return result;
+	}
+
+	/**
+	 * @param exchange
+	 * @return the sentence parameters, or the lines of a POST body
+	 * @throws IOException
+	 * @throws BadRequest if there are none
+	 */
+	private static List<String> readSentences(HttpExchange exchange) throws IOException, BadRequest {
+		List<String> sentences = getParameter(exchange, "sentence");
+		if (exchange.getRequestMethod().equals("POST")){
+			BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null){
+				if (!line.isEmpty()){
+					sentences.add(line);
+				}
+			}
+		}
+		if (sentences.isEmpty()){
+			throw new BadRequest("give a sentence parameter or POST one sentence per line");
+		}
+		return sentences;
+	}
+
+	/**
+	 * @param exchange
+	 * @param name
+	 * @return every value of the query parameter, URL-decoded
+	 * @throws BadRequest if the query cannot be decoded
+	 */
+	private static List<String> getParameter(HttpExchange exchange, String name) throws BadRequest {
+		ArrayList<String> values = new ArrayList<String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null){
+			return values;
+		}
+		try {
+			for (String pair : query.split("&")){
+				int equals = pair.indexOf('=');
+				if (equals > 0 && URLDecoder.decode(pair.substring(0, equals), "UTF-8").equals(name)){
+					values.add(URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+				}
+			}
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			throw new BadRequest("bad query: " + e.getMessage());
+		}
+		return values;
+	}
+
+	/**
+	 * @param text
+	 * @return text as a JSON string
+	 */
+	static String quote(String text){
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int i = 0; i < text.length(); i++){
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\'){
+				quoted.append('\\').append(c);
+			}
+			else if (c < 0x20){
+				quoted.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * Train a model and serve it until the JVM is stopped
+	 * @param args see the class comment
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		String training = "src/sentences.training";
+		String type = "lambda";
+		double param = Double.NaN;
+		int port = DEFAULT_PORT;
+		long window = DEFAULT_WINDOW_MICROS;
+		int maxBatch = DEFAULT_MAX_BATCH;
+		for (int i = 0; i + 1 < args.length; i += 2){
+			if (args[i].equals("-train")){
+				training = args[i + 1];
+			}
+			else if (args[i].equals("-model")){
+				type = args[i + 1];
+			}
+			else if (args[i].equals("-param")){
+				param = Double.parseDouble(args[i + 1]);
+			}
+			else if (args[i].equals("-port")){
+				port = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equals("-window")){
+				window = Long.parseLong(args[i + 1]);
+			}
+			else if (args[i].equals("-maxBatch")){
+				maxBatch = Integer.parseInt(args[i + 1]);
+			}
+			else {
+				System.out.println("unknown option " + args[i]);
+				return;
+			}
+		}
+
+		LMBase model = createModel(training, type, param);
+		if (model == null){
+			System.out.println("unknown model " + type + ", use lambda, discount or kneserney");
+			return;
+		}
+		LMServer server = new LMServer(model, port, window, maxBatch);
+		server.start();
+		System.out.println("Serving " + type + " model of " + training + " on http://localhost:" + server.getPort()
+				+ "/ (window " + window + " us, batches of up to " + maxBatch + ")");
+	}
+
+	/**
+	 * @param training
+	 * @param type lambda, discount or kneserney
+	 * @param param lambda or discount, NaN for the best value of the assignment (kneserney has none)
+	 * @return trained model, or null for an unknown type
+	 */
+	static LMBase createModel(String training, String type, double param){
+		IdBigramCounts counts = LMBase.trainCounts(training);
+		if (type.equals("lambda")){
+			return new LambdaLMModel(counts, Double.isNaN(param) ? 0.01 : param);
+		}
+		if (type.equals("discount")){
+			DiscountLMModel model = new DiscountLMModel(counts, Double.isNaN(param) ? 0.5 : param);
+			model.compile();
+			return model;
+		}
+		if (type.equals("kneserney")){
+			return new KneserNeyLMModel(counts);
+		}
+		return null;
+	}
+}
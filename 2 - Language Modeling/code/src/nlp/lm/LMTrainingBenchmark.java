@@ -0,0 +1,91 @@
+package nlp.lm;
+
+/**
+ * Compares training with the HashMap counts against training with word IDs
+ * (IdBigramCounts) for heap size and tokens/sec, and times loading the same
+ * counts from a memory-mapped snapshot
+ *
+ * Usage: LMTrainingBenchmark [training file] [repetitions]
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class LMTrainingBenchmark {
+
+	/**
+	 * Train the model once with each mode and report the time and the heap it holds on to
+	 * @param filename
+	 * @param useIds
+	 * @param repetitions
+	 */
+	private static void benchmark(String filename, boolean useIds, int repetitions){
+		String mode = useIds ? "word IDs" : "HashMaps";
+		double bestSeconds = Double.MAX_VALUE;
+		double tokens = 0;
+		long heapBytes = 0;
+
+		for (int r = 0; r < repetitions; r++){
+			long heapBefore = usedHeap();
+			long startTime = System.nanoTime();
+
+			LambdaLMModel model = new LambdaLMModel(filename, 0.01, useIds);
+
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+			bestSeconds = Math.min(bestSeconds, seconds);
+			tokens = model.totalNumWords;
+
+			// measure the heap while the model is still reachable
+			heapBytes = usedHeap() - heapBefore;
+			if (model.getBigramProb("<s>", "the") < 0){
+				System.out.println("negative probability");
+			}
+		}
+
+		System.out.println(mode + ": " + (long) tokens + " tokens in " + String.format("%.3f", bestSeconds) + "s = "
+				+ String.format("%.0f", tokens / bestSeconds) + " tokens/sec, heap = " + (heapBytes / 1024) + " KB");
+	}
+
+	/**
+	 * Save a snapshot of the trained counts and time how long it takes to map it back
+	 * @param filename
+	 * @param snapshot
+	 */
+	private static void benchmarkSnapshot(String filename, String snapshot){
+		LambdaLMModel trained = new LambdaLMModel(filename, 0.01, true);
+		trained.saveCounts(snapshot);
+
+		long startTime = System.nanoTime();
+		BigramCounts counts = LMBase.loadCounts(snapshot);
+		LambdaLMModel loaded = new LambdaLMModel(counts, 0.01);
+		double millis = (System.nanoTime() - startTime) / 1e6;
+
+		System.out.println("snapshot: loaded " + snapshot + " in " + String.format("%.1f", millis) + "ms, "
+				+ "p(the | <s>) = " + loaded.getBigramProb("<s>", "the") + " (trained " + trained.getBigramProb("<s>", "the") + ")");
+	}
+
+	/**
+	 * @return the heap in use after a garbage collection
+	 */
+	private static long usedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++){
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String[] args){
+		String filename = args.length > 0 ? args[0] : "src/sentences.development";
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		// warm up both paths before timing
+		benchmark(filename, false, 1);
+		benchmark(filename, true, 1);
+
+		System.out.println("Training on " + filename + " (best of " + repetitions + ")");
+		benchmark(filename, false, repetitions);
+		benchmark(filename, true, repetitions);
+		benchmarkSnapshot(filename, filename + ".counts");
+	}
+}
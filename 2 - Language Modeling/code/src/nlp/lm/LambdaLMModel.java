@@ -1,5 +1,7 @@
 package nlp.lm;
 
+import java.io.IOException;
+
 /**
  * Class for bigram language model with lambda smoothing
  * 
@@ -25,36 +27,96 @@ public class LambdaLMModel extends LMBase implements LMModel {
 		trainModel(filename);
 	}
 	
+	/**
+	 * LambdaLMModel Constructor
+	 * 
+	 * Same as above, but if useIds is true the counts are kept by word ID in primitive tables
+	 * 
+	 * @param filename
+	 * @param lambda
+	 * @param useIds
+	 */
+	public LambdaLMModel(String filename, Double lambda, boolean useIds){
+		this.lambda = lambda;
+		trainModel(filename, useIds);
+	}
+	
+	/**
+	 * LambdaLMModel Constructor
+	 * 
+	 * Use counts that are already trained (e.g. a snapshot from LMBase.loadCounts) instead of a corpus
+	 * 
+	 * @param counts
+	 * @param lambda
+	 */
+	public LambdaLMModel(BigramCounts counts, Double lambda){
+		this.lambda = lambda;
+		useCounts(counts);
+	}
+	
 
 	/**
 	 * Given a bigram, return its probability
 	 * p(a|b) = count(ab) + lambda/count (a) + (vocab size * lambda)
-	 * If a count is not found then its value is 0
+	 * If a count is not found then its value is 0 (plus a share of the pruned bigrams of b, if any)
 	 * @param first
 	 * @param second
 	 * @return probability
 	 */
 	@Override
 	public double getBigramProb(String first, String second) {
-		double bigramProb = 0;
-		double lambdaVocabSize = lambda * vocabulary.size();
-					
 		// get the total number of times this first word starts a bigram
-		double total = bigramTotals.get(first) + lambdaVocabSize;
+		// (after the count, so count <= total while the counts are updated)
+		double count = getBigramCount(first, second);
+		double total = getBigramTotal(first);
+		LMMetrics.bigram(count > 0);
 		
-		// if the total bigram has been seen 
-		if (bigramCounts.get(first).containsKey(second)){
-			
-			// just return the number of times for the bigram + lambda/total bigrams
-			bigramProb = (bigramCounts.get(first).get(second) + lambda)/total;
+		// we have seen the first word but not the second as a bigram,
+		// it gets lambda plus its share of the pruned bigrams (see SmoothingFormulas)
+		if (count == 0){
+			double prunedCount = getPrunedCount(first);
+			count = prunedCount > 0 ? SmoothingFormulas.prunedShare(prunedCount, getVocabularySize(), getSuccessors(first).size()) : 0;
 		}
+		return SmoothingFormulas.lambdaProb(count, total, lambda, getVocabularySize());
+	}
+	
+	/**
+	 * Same as getBigramProb(String, String) for word IDs
+	 * @param first
+	 * @param second
+	 * @return probability
+	 */
+	@Override
+	public double getBigramProb(int first, int second) {
+		BigramCounts counts = getIdCounts();
 		
-		// we have seen the first word but not the second as a bigram
-		else {
-			bigramProb = lambda/total;
+		// the count is read before the total so count <= total while the counts are updated
+		double count = getBigramCount(counts, first, second);
+		double total = counts.getBigramTotal(first);
+		LMMetrics.bigram(count > 0);
+		if (count == 0){
+			count = SmoothingFormulas.prunedShare(counts, first);
 		}
-		
-		return bigramProb;
+		return SmoothingFormulas.lambdaProb(count, total, lambda, getVocabularySize());
+	}
+	
+	/**
+	 * Unseen bigrams all get lambda/total, i.e. a uniform backoff distribution
+	 */
+	@Override
+	public boolean hasBackoffForm(){
+		return true;
+	}
+	
+	@Override
+	public double getBackoffWeight(int first){
+		BigramCounts counts = getIdCounts();
+		return SmoothingFormulas.lambdaProb(SmoothingFormulas.prunedShare(counts, first), counts.getBigramTotal(first), lambda, getVocabularySize());
+	}
+	
+	@Override
+	public double getBackoffProb(int second){
+		return 1.0;
 	}
 	
 
@@ -65,11 +127,25 @@ public class LambdaLMModel extends LMBase implements LMModel {
 	 */
 	public static void main(String[] args){
 		
-		// train the models
+		// train once, the counts are shared by every lambda
+		System.out.println("Training Lambda Language Model ...");
+		IdBigramCounts counts = trainCounts("src/sentences.full_training");
+		double[] lambdas = new double[8];
 		for (int l = 0; l < 8; l++) {
-			double lambda = 1/(Math.pow(10, l));
-			System.out.println("Training Lambda Language Model with lambda = " + lambda + " ...");
-			LambdaLMModel model = new LambdaLMModel("src/sentences.full_training", lambda);
+			lambdas[l] = 1/(Math.pow(10, l));
+		}
+		
+		// get perplexity for every lambda in one pass over the test file
+		PerplexityEvaluator.Result[] results = null;
+		try {
+			results = new SmoothingSweep(counts, Runtime.getRuntime().availableProcessors()).lambdas("src/sentences.testing", lambdas);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		for (int l = 0; l < 8; l++) {
+			System.out.println("Lambda Language Model with lambda = " + lambdas[l] + " ...");
+			LambdaLMModel model = new LambdaLMModel(counts, lambdas[l]);
 			
 			// generate greedy sentence
 			System.out.println(model.generateGreedySentence());
@@ -78,8 +154,9 @@ public class LambdaLMModel extends LMBase implements LMModel {
 			for (int i = 0; i < 5; i++) {
 				System.out.println(model.generateSamplingSentence());
 			}
-			// get perplexity
-			System.out.println("Perplexity: " + model.getPerplexity("src/sentences.testing"));
+			if (results != null){
+				System.out.println("Perplexity: " + results[l].perplexity);
+			}
 		}
 	}
 }
\ No newline at end of file
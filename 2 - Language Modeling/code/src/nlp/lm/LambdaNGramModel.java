@@ -0,0 +1,49 @@
+package nlp.lm;
+
+/**
+ * Class for n-gram language model of any order with lambda smoothing
+ *
+ * p(w | h) = (count(h w) + lambda)/(count(h .) + vocab size * lambda)
+ * where h is the longest part of the history (dropping words from the front)
+ * that was seen before another word. With order 2 this is LambdaLMModel.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class LambdaNGramModel extends NGramLMBase {
+
+	private final double lambda;
+
+	/**
+	 * LambdaNGramModel Constructor
+	 * @param filename
+	 * @param order
+	 * @param lambda
+	 */
+	public LambdaNGramModel(String filename, int order, double lambda){
+		this.lambda = lambda;
+		trainModel(filename, order);
+	}
+
+	@Override
+	public double getNGramProb(int[] ids, int from, int to) {
+		int word = ids[to - 1];
+		double lambdaVocabSize = lambda * trie.getVocabularySize();
+
+		// longest history first
+		for (int start = from; start < to - 1; start++){
+			int level = to - 1 - start;
+			int node = trie.find(ids, start, to - 1);
+			if (node >= 0 && trie.getContextTotal(level, node) > 0){
+				int child = word < 0 ? -1 : trie.findChild(level, node, word);
+				double count = child < 0 ? 0 : trie.getCount(level + 1, child);
+				return (count + lambda)/(trie.getContextTotal(level, node) + lambdaVocabSize);
+			}
+		}
+
+		// no history at all
+		double count = word < 0 ? 0 : trie.getCount(1, word);
+		return (count + lambda)/(trie.getTotalNumWords() + lambdaVocabSize);
+	}
+}
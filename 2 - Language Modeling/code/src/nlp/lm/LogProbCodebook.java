@@ -0,0 +1,217 @@
+package nlp.lm;
+
+import java.util.Arrays;
+
+/**
+ * Maps log probabilities to small integer codes and back, for QuantizedLMModel
+ *
+ * The centroids are found with binned k-means: the values are put into equal width bins,
+ * and Lloyd's algorithm runs on the weighted bin means instead of on every value, so one
+ * iteration costs O(bins) however many values there are. Values are weighted by how often
+ * they are used (e.g. the count of the bigram), so the frequent bigrams, which decide the
+ * perplexity, get the most accurate codes. In one dimension the clusters are
+ * intervals, so assigning the bins is a single walk over both sorted lists.
+ * If there are no more distinct values than codes, every value gets its own code.
+ *
+ * Code 0 is kept for probability 0 (log = -infinity) and for undefined values (NaN),
+ * codes 1 .. size() are the centroids in increasing order.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+class LogProbCodebook {
+
+	// Lloyd iterations, stopped earlier once no centroid moves
+	private static final int MAX_ITERATIONS = 30;
+
+	// bins per code, at least MIN_BINS in total
+	private static final int BINS_PER_CODE = 8;
+	private static final int MIN_BINS = 4096;
+
+	// centroids[code - 1] for code 1 .. size()
+	private final double[] centroids;
+
+	// 10^centroid, with probs[0] = 0 for code 0
+	private final double[] probs;
+
+	private LogProbCodebook(double[] centroids){
+		this.centroids = centroids;
+		probs = new double[centroids.length + 1];
+		for (int i = 0; i < centroids.length; i++){
+			probs[i + 1] = Math.pow(10, centroids[i]);
+		}
+	}
+
+	/**
+	 * Build a codebook for the values
+	 * @param values log probabilities, may include -infinity and NaN
+	 * @param weights weight of every value, should be positive
+	 * @param numCodes number of codes available, including code 0
+	 * @return the codebook
+	 */
+	static LogProbCodebook train(double[] values, double[] weights, int numCodes){
+		int numCentroids = numCodes - 1;
+
+		double[] finite = new double[values.length];
+		int n = 0;
+		for (double value : values){
+			if (!Double.isNaN(value) && !Double.isInfinite(value)){
+				finite[n++] = value;
+			}
+		}
+		finite = Arrays.copyOf(finite, n);
+		Arrays.sort(finite);
+
+		// few enough distinct values to store them exactly
+		int distinct = 0;
+		for (int i = 0; i < n; i++){
+			if (i == 0 || finite[i] != finite[i - 1]){
+				finite[distinct++] = finite[i];
+			}
+		}
+		if (distinct <= numCentroids){
+			return new LogProbCodebook(Arrays.copyOf(finite, distinct));
+		}
+
+		// bin the values, keeping the weight and the weighted sum of every bin
+		double min = finite[0];
+		double max = finite[distinct - 1];
+		int numBins = Math.max(MIN_BINS, numCentroids * BINS_PER_CODE);
+		double width = (max - min) / numBins;
+		double[] binWeights = new double[numBins];
+		double[] binSums = new double[numBins];
+		double totalWeight = 0;
+		for (int i = 0; i < values.length; i++){
+			double value = values[i];
+			if (!Double.isNaN(value) && !Double.isInfinite(value)){
+				int bin = Math.min(numBins - 1, (int) ((value - min) / width));
+				binWeights[bin] += weights[i];
+				binSums[bin] += value * weights[i];
+				totalWeight += weights[i];
+			}
+		}
+
+		// keep the bins that have values, as (weighted mean, weight)
+		double[] means = new double[numBins];
+		double[] meanWeights = new double[numBins];
+		int numUsed = 0;
+		for (int bin = 0; bin < numBins; bin++){
+			if (binWeights[bin] > 0){
+				means[numUsed] = binSums[bin] / binWeights[bin];
+				meanWeights[numUsed] = binWeights[bin];
+				numUsed++;
+			}
+		}
+		if (numUsed <= numCentroids){
+			return new LogProbCodebook(Arrays.copyOf(means, numUsed));
+		}
+		return new LogProbCodebook(kMeans(means, meanWeights, numUsed, numCentroids, totalWeight));
+	}
+
+	/**
+	 * Weighted one dimensional k-means over sorted points
+	 * @param points sorted
+	 * @param weights
+	 * @param numPoints
+	 * @param k
+	 * @param totalWeight
+	 * @return the sorted centroids (fewer than k if some collapsed)
+	 */
+	private static double[] kMeans(double[] points, double[] weights, int numPoints, int k, double totalWeight){
+		// start at the weighted quantiles so every centroid starts out with some weight
+		double[] centroids = new double[k];
+		double cumulative = 0;
+		int point = 0;
+		for (int c = 0; c < k; c++){
+			double target = (c + 0.5) * totalWeight / k;
+			while (point < numPoints - 1 && cumulative + weights[point] < target){
+				cumulative += weights[point];
+				point++;
+			}
+			centroids[c] = points[point];
+		}
+
+		double[] sums = new double[k];
+		double[] counts = new double[k];
+		for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++){
+			Arrays.fill(sums, 0);
+			Arrays.fill(counts, 0);
+
+			// points and centroids are both sorted, so the nearest centroid only moves up
+			int c = 0;
+			for (int p = 0; p < numPoints; p++){
+				while (c < k - 1 && points[p] > (centroids[c] + centroids[c + 1]) / 2){
+					c++;
+				}
+				sums[c] += points[p] * weights[p];
+				counts[c] += weights[p];
+			}
+
+			boolean moved = false;
+			for (c = 0; c < k; c++){
+				if (counts[c] > 0){
+					double mean = sums[c] / counts[c];
+					moved |= mean != centroids[c];
+					centroids[c] = mean;
+				}
+			}
+			if (!moved){
+				break;
+			}
+		}
+
+		// drop centroids that ended up equal
+		int size = 0;
+		for (int c = 0; c < k; c++){
+			if (size == 0 || centroids[c] != centroids[size - 1]){
+				centroids[size++] = centroids[c];
+			}
+		}
+		return Arrays.copyOf(centroids, size);
+	}
+
+	/**
+	 * @param value log probability
+	 * @return the code of the nearest centroid, 0 for -infinity and NaN
+	 */
+	int encode(double value){
+		if (Double.isNaN(value) || Double.isInfinite(value) || centroids.length == 0){
+			return 0;
+		}
+		int position = Arrays.binarySearch(centroids, value);
+		if (position >= 0){
+			return position + 1;
+		}
+		int above = -position - 1;
+		if (above == 0){
+			return 1;
+		}
+		if (above == centroids.length){
+			return centroids.length;
+		}
+		return value - centroids[above - 1] <= centroids[above] - value ? above : above + 1;
+	}
+
+	/**
+	 * @param code
+	 * @return the probability (not the log) the code stands for
+	 */
+	double getProb(int code){
+		return probs[code];
+	}
+
+	/**
+	 * @return number of centroids (codes 1 .. size())
+	 */
+	int size(){
+		return centroids.length;
+	}
+
+	/**
+	 * @return approximate heap size in bytes
+	 */
+	long memoryBytes(){
+		return (long) (centroids.length + probs.length) * Double.BYTES;
+	}
+}
@@ -0,0 +1,317 @@
+package nlp.lm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Bigram counts read straight out of a memory-mapped snapshot file
+ *
+ * The counts are never copied onto the heap: every lookup reads the mapped pages,
+ * so loading is just mapping the file and several JVMs on the same host share
+ * the same pages through the OS page cache. Only the word strings are decoded
+ * (once, to build the WordIndex).
+ *
+ * File layout (big-endian), every section starts on an 8 byte boundary:
+ * header          magic, version, numWords, numBigrams, totalNumWords, vocabularySize
+ * unigramCounts   long[numWords]
+ * bigramTotals    long[numWords]
+ * successorStart  int[numWords + 1]
+ * successorIds    int[numBigrams]   (sorted within each context word)
+ * successorCounts int[numBigrams]
+ * wordOffsets     int[numWords + 1] (into the word bytes)
+ * wordBytes       UTF-8 bytes of all words
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class MappedBigramCounts implements BigramCounts {
+
+	// "LMBC"
+	public static final int MAGIC = 0x4C4D4243;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 32;
+
+	private final WordIndex index;
+	private final int numWords;
+	private final int vocabularySize;
+	private final long totalNumWords;
+
+	private final LongBuffer unigramCounts;
+	private final LongBuffer bigramTotals;
+	private final IntBuffer successorStart;
+	private final IntBuffer successorIds;
+	private final IntBuffer successorCounts;
+
+	// bigram total minus the successor counts of every word, built on first use
+	private volatile long[] prunedCounts;
+
+	/**
+	 * Map a snapshot written by write()
+	 * @param filename
+	 * @throws IOException if the file is not a snapshot of this version
+	 */
+	public MappedBigramCounts(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			if (header.getInt() != MAGIC){
+				throw new IOException(filename + " is not a language model snapshot");
+			}
+			int version = header.getInt();
+			if (version != VERSION){
+				throw new IOException(filename + " has snapshot version " + version + ", expected " + VERSION);
+			}
+			numWords = header.getInt();
+			int numBigrams = header.getInt();
+			totalNumWords = header.getLong();
+			vocabularySize = header.getInt();
+
+			// each section is mapped on its own so no single buffer has to cover the whole file
+			long position = HEADER_BYTES;
+			unigramCounts = map(channel, position, (long) numWords * Long.BYTES).asLongBuffer();
+			position += align((long) numWords * Long.BYTES);
+			bigramTotals = map(channel, position, (long) numWords * Long.BYTES).asLongBuffer();
+			position += align((long) numWords * Long.BYTES);
+			successorStart = map(channel, position, (long) (numWords + 1) * Integer.BYTES).asIntBuffer();
+			position += align((long) (numWords + 1) * Integer.BYTES);
+			successorIds = map(channel, position, (long) numBigrams * Integer.BYTES).asIntBuffer();
+			position += align((long) numBigrams * Integer.BYTES);
+			successorCounts = map(channel, position, (long) numBigrams * Integer.BYTES).asIntBuffer();
+			position += align((long) numBigrams * Integer.BYTES);
+
+			IntBuffer wordOffsets = map(channel, position, (long) (numWords + 1) * Integer.BYTES).asIntBuffer();
+			position += align((long) (numWords + 1) * Integer.BYTES);
+			ByteBuffer wordBytes = map(channel, position, wordOffsets.get(numWords));
+
+			// the special tokens already have IDs 0-2 in a new WordIndex
+			index = new WordIndex();
+			byte[] buffer = new byte[64];
+			for (int id = WordIndex.END + 1; id < numWords; id++){
+				int length = wordOffsets.get(id + 1) - wordOffsets.get(id);
+				if (buffer.length < length){
+					buffer = new byte[length * 2];
+				}
+				wordBytes.position(wordOffsets.get(id));
+				wordBytes.get(buffer, 0, length);
+				index.add(new String(buffer, 0, length, StandardCharsets.UTF_8));
+			}
+		} finally {
+			// the mappings stay valid after the channel is closed
+			file.close();
+		}
+	}
+
+	/**
+	 * Write the counts to a snapshot file that can be opened with the constructor
+	 * The successors are sorted here, whatever order the counts list them in (see BigramCounts),
+	 * and every successor list is read once so it stays consistent if the counts are being updated.
+	 * @param counts
+	 * @param filename
+	 * @throws IOException
+	 */
+	public static void write(BigramCounts counts, String filename) throws IOException {
+		WordIndex index = counts.getWordIndex();
+		int numWords = index.size();
+
+		// successors of every word as (ID << 32 | count), sorted by ID
+		long numBigrams = 0;
+		long[][] successors = new long[numWords][];
+		byte[][] words = new byte[numWords][];
+		for (int id = 0; id < numWords; id++){
+			long[] list = new long[counts.getNumSuccessors(id)];
+			for (int k = 0; k < list.length; k++){
+				list[k] = (long) counts.getSuccessor(id, k) << 32 | ((long) counts.getSuccessorCount(id, k) & 0xFFFFFFFFL);
+			}
+			Arrays.sort(list);
+			successors[id] = list;
+			numBigrams += list.length;
+			words[id] = index.getWord(id).getBytes(StandardCharsets.UTF_8);
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numWords);
+			out.writeInt(Math.toIntExact(numBigrams));
+			out.writeLong((long) counts.getTotalNumWords());
+			out.writeInt(counts.getVocabularySize());
+			pad(out, 28);
+
+			for (int id = 0; id < numWords; id++){
+				out.writeLong((long) counts.getUnigramCount(id));
+			}
+			for (int id = 0; id < numWords; id++){
+				out.writeLong((long) counts.getBigramTotal(id));
+			}
+
+			int start = 0;
+			out.writeInt(start);
+			for (int id = 0; id < numWords; id++){
+				start += successors[id].length;
+				out.writeInt(start);
+			}
+			pad(out, (long) (numWords + 1) * Integer.BYTES);
+			for (int id = 0; id < numWords; id++){
+				for (long successor : successors[id]){
+					out.writeInt((int) (successor >>> 32));
+				}
+			}
+			pad(out, numBigrams * Integer.BYTES);
+			for (int id = 0; id < numWords; id++){
+				for (long successor : successors[id]){
+					out.writeInt((int) successor);
+				}
+			}
+			pad(out, numBigrams * Integer.BYTES);
+
+			int offset = 0;
+			out.writeInt(offset);
+			for (int id = 0; id < numWords; id++){
+				offset += words[id].length;
+				out.writeInt(offset);
+			}
+			pad(out, (long) (numWords + 1) * Integer.BYTES);
+			for (int id = 0; id < numWords; id++){
+				out.write(words[id]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public WordIndex getWordIndex() {
+		return index;
+	}
+
+	@Override
+	public double getTotalNumWords() {
+		return totalNumWords;
+	}
+
+	@Override
+	public int getVocabularySize() {
+		return vocabularySize;
+	}
+
+	@Override
+	public boolean isInVocabulary(int id) {
+		return id >= 0 && id < numWords && (id <= WordIndex.END || unigramCounts.get(id) > 0);
+	}
+
+	@Override
+	public double getUnigramCount(int id) {
+		return id < 0 || id >= numWords ? 0 : unigramCounts.get(id);
+	}
+
+	@Override
+	public double getBigramTotal(int first) {
+		return first < 0 || first >= numWords ? 0 : bigramTotals.get(first);
+	}
+
+	/**
+	 * Binary search for second among the successors of first
+	 */
+	@Override
+	public double getBigramCount(int first, int second) {
+		if (first < 0 || first >= numWords || second < 0){
+			return 0;
+		}
+		int low = successorStart.get(first);
+		int high = successorStart.get(first + 1) - 1;
+		while (low <= high){
+			int mid = (low + high) >>> 1;
+			int id = successorIds.get(mid);
+			if (id < second){
+				low = mid + 1;
+			}
+			else if (id > second){
+				high = mid - 1;
+			}
+			else {
+				return successorCounts.get(mid);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * The snapshot has no section for it, so it is worked out from the successor counts
+	 * the first time it is needed
+	 */
+	@Override
+	public double getPrunedCount(int first) {
+		if (first < 0 || first >= numWords){
+			return 0;
+		}
+		long[] pruned = prunedCounts;
+		if (pruned == null){
+			pruned = new long[numWords];
+			for (int id = 0; id < numWords; id++){
+				long seen = 0;
+				for (int k = successorStart.get(id); k < successorStart.get(id + 1); k++){
+					seen += successorCounts.get(k);
+				}
+				pruned[id] = bigramTotals.get(id) - seen;
+			}
+			prunedCounts = pruned;
+		}
+		return pruned[first];
+	}
+
+	@Override
+	public int getNumSuccessors(int first) {
+		if (first < 0 || first >= numWords){
+			return 0;
+		}
+		return successorStart.get(first + 1) - successorStart.get(first);
+	}
+
+	@Override
+	public int getSuccessor(int first, int k) {
+		return successorIds.get(successorStart.get(first) + k);
+	}
+
+	@Override
+	public double getSuccessorCount(int first, int k) {
+		return successorCounts.get(successorStart.get(first) + k);
+	}
+
+	private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+	}
+
+	/**
+	 * @param size
+	 * @return size rounded up to a multiple of 8
+	 */
+	private static long align(long size){
+		return (size + 7) & ~7L;
+	}
+
+	/**
+	 * Write zeros after a section so the next one starts on an 8 byte boundary
+	 * @param out
+	 * @param sectionBytes size of the section just written
+	 * @throws IOException
+	 */
+	private static void pad(DataOutputStream out, long sectionBytes) throws IOException {
+		for (long i = sectionBytes; i < align(sectionBytes); i++){
+			out.writeByte(0);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package nlp.lm;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Reports memory per n-gram, queries/sec and perplexity of the n-gram models for orders 2 to 5
+ *
+ * Usage: NGramBenchmark [training file] [test file]
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class NGramBenchmark {
+
+	/**
+	 * Time getNGramProb over every word of the test sentences
+	 * @param model
+	 * @param sentences test sentences as word IDs with <s> and </s>
+	 * @return queries per second
+	 */
+	private static double queriesPerSecond(NGramLMBase model, ArrayList<int[]> sentences){
+		int order = model.getTrie().getOrder();
+		long queries = 0;
+		double sum = 0;
+		long startTime = System.nanoTime();
+		for (int round = 0; round < 3; round++){
+			for (int[] ids : sentences){
+				for (int i = 1; i < ids.length; i++){
+					sum += model.getNGramProb(ids, Math.max(0, i - order + 1), i + 1);
+					queries++;
+				}
+			}
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		if (sum < 0){
+			System.out.println("negative probability");
+		}
+		return queries / seconds;
+	}
+
+	/**
+	 * @param model
+	 * @param filename
+	 * @return the sentences of the file as word IDs
+	 * @throws IOException
+	 */
+	private static ArrayList<int[]> readSentences(NGramLMBase model, String filename) throws IOException {
+		ArrayList<int[]> sentences = new ArrayList<int[]>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8));
+		for (String sentence = br.readLine(); sentence != null; sentence = br.readLine()){
+			String[] words = sentence.split(" ", -1);
+			int[] ids = new int[words.length + 2];
+			model.sentenceToIds(words, ids);
+			sentences.add(ids);
+		}
+		br.close();
+		return sentences;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String training = args.length > 0 ? args[0] : "src/sentences.development";
+		String testing = args.length > 1 ? args[1] : "src/sentences.testing";
+
+		for (int order = 2; order <= 5; order++){
+			LambdaNGramModel lambda = new LambdaNGramModel(training, order, 0.01);
+			DiscountNGramModel discount = new DiscountNGramModel(training, order, 0.5);
+
+			NGramTrie trie = discount.getTrie();
+			StringBuilder levels = new StringBuilder();
+			for (int level = 1; level <= order; level++){
+				levels.append(level == 1 ? "" : ", ").append(trie.numNodes(level));
+			}
+			double bytesPerNGram = (double) trie.memoryBytes() / trie.numNGrams();
+			double alphaBytesPerNGram = (double) discount.alphaMemoryBytes() / trie.numNGrams();
+
+			ArrayList<int[]> sentences = readSentences(discount, testing);
+			queriesPerSecond(lambda, sentences);
+			queriesPerSecond(discount, sentences);
+
+			System.out.println("order " + order + ": n-grams per level [" + levels + "], "
+					+ String.format("%.1f", bytesPerNGram) + " bytes/n-gram (+" + String.format("%.1f", alphaBytesPerNGram) + " for discount alphas)");
+			System.out.println("  lambda   = 0.01: " + String.format("%.0f", queriesPerSecond(lambda, sentences))
+					+ " queries/sec, perplexity " + lambda.getPerplexity(testing));
+			System.out.println("  discount = 0.5:  " + String.format("%.0f", queriesPerSecond(discount, sentences))
+					+ " queries/sec, perplexity " + discount.getPerplexity(testing));
+		}
+	}
+}
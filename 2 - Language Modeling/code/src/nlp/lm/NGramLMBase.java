@@ -0,0 +1,200 @@
+package nlp.lm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * An abstract class for n-gram language models of any order
+ *
+ * The counts live in an NGramTrie. Subclasses give P(w | history) for a history of
+ * up to order - 1 words; at the start of a sentence the history is shorter (only <s>).
+ * With order 2 this is the same model as LMBase.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public abstract class NGramLMBase implements LMModel {
+
+	protected NGramTrie trie;
+
+	/**
+	 * Train the model
+	 * Count all the n-grams up to the given order
+	 * @param filename
+	 * @param order
+	 */
+	public void trainModel(String filename, int order){
+		try {
+			trie = new NGramTrie(filename, order);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the trained counts
+	 */
+	public NGramTrie getTrie(){
+		return trie;
+	}
+
+	/**
+	 * Returns P(ids[to-1] | ids[from .. to-2])
+	 * @param ids word IDs
+	 * @param from first word of the history
+	 * @param to one past the predicted word, the history is at most order - 1 words
+	 * @return probability
+	 */
+	public abstract double getNGramProb(int[] ids, int from, int to);
+
+	/**
+	 * Returns p(second | first), using only one word of history
+	 * @param first
+	 * @param second
+	 * @return probability
+	 */
+	@Override
+	public double getBigramProb(String first, String second) {
+		WordIndex index = trie.getWordIndex();
+		int[] ids = {index.getId(first), index.getId(second)};
+		return getNGramProb(ids, 0, 2);
+	}
+
+	/**
+	 * Given a sentence (list of words, with <s> and </s> as from LMBase.sentenceToWords)
+	 * calculate its logProb
+	 * @param sentWords
+	 * @return logarithmic probability
+	 */
+	@Override
+	public double logProb(ArrayList<String> sentWords) {
+		WordIndex index = trie.getWordIndex();
+		int[] ids = new int[sentWords.size()];
+		for (int i = 0; i < ids.length; i++){
+			int id = index.getId(sentWords.get(i));
+			ids[i] = trie.isInVocabulary(id) ? id : WordIndex.UNK;
+		}
+		return logProb(ids, ids.length);
+	}
+
+	/**
+	 * @param ids word IDs of a sentence, with <s> and </s>
+	 * @param length number of IDs
+	 * @return logarithmic probability
+	 */
+	public double logProb(int[] ids, int length){
+		double logProb = 0;
+		int order = trie.getOrder();
+		for (int i = 1; i < length; i++){
+			logProb += Math.log10(getNGramProb(ids, Math.max(0, i - order + 1), i + 1));
+		}
+		return logProb;
+	}
+
+	/**
+	 * Log probability of a sentence given as word IDs, WITHOUT <s> or </s>
+	 * Words that are not in the vocabulary are scored as <unk>
+	 * @param ids
+	 * @param from first word of the sentence
+	 * @param to one past the last word of the sentence
+	 * @return logarithmic probability
+	 */
+	public double logProb(int[] ids, int from, int to){
+		int[] sentIds = new int[to - from + 2];
+		int length = 0;
+		sentIds[length++] = WordIndex.START;
+		for (int i = from; i < to; i++){
+			sentIds[length++] = trie.isInVocabulary(ids[i]) ? ids[i] : WordIndex.UNK;
+		}
+		sentIds[length++] = WordIndex.END;
+		return logProb(sentIds, length);
+	}
+
+	@Override
+	public WordIndex getWordIndex(){
+		return trie.getWordIndex();
+	}
+
+	@Override
+	public void logProbBatch(int[][] sentences, double[] results){
+		BatchScorer.score(batchScorer(), sentences, results, false);
+	}
+
+	@Override
+	public void logProbBatch(int[] tokens, int[] offsets, double[] results){
+		BatchScorer.score(batchScorer(), tokens, offsets, results, false);
+	}
+
+	@Override
+	public void perplexityBatch(int[][] sentences, double[] results){
+		BatchScorer.score(batchScorer(), sentences, results, true);
+	}
+
+	@Override
+	public void perplexityBatch(int[] tokens, int[] offsets, double[] results){
+		BatchScorer.score(batchScorer(), tokens, offsets, results, true);
+	}
+
+	/**
+	 * @return scorer for the batch methods
+	 */
+	private BatchScorer.SentenceScorer batchScorer(){
+		return new BatchScorer.SentenceScorer(){
+			@Override
+			public double logProb(int[] ids, int from, int to) {
+				return NGramLMBase.this.logProb(ids, from, to);
+			}
+		};
+	}
+
+	/**
+	 * Given a filename (a corpus) calculate its perplexity
+	 * @param filename
+	 * @return perplexity value
+	 */
+	@Override
+	public double getPerplexity(String filename) {
+		double perplexity = 0;
+		try {
+			CorpusReader br = CorpusReader.open(filename);
+			CompensatedSum totalLogProb = new CompensatedSum();
+			double numWords = 0;
+			int[] ids = new int[64];
+
+			for (String sentence = br.readLine(); sentence != null; sentence = br.readLine()){
+				String[] words = sentence.split(" ", -1);
+				if (ids.length < words.length + 2){
+					ids = new int[(words.length + 2) * 2];
+				}
+				int length = sentenceToIds(words, ids);
+				totalLogProb.add(logProb(ids, length));
+				numWords += length - 1;
+			}
+			br.close();
+			perplexity = Math.pow(10, -totalLogProb.value()/numWords);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return perplexity;
+	}
+
+	/**
+	 * Turn the words of a sentence into IDs between <s> and </s>, with <unk> for
+	 * words that are not in the vocabulary
+	 * @param words
+	 * @param ids buffer of at least words.length + 2
+	 * @return number of IDs
+	 */
+	public int sentenceToIds(String[] words, int[] ids){
+		WordIndex index = trie.getWordIndex();
+		int length = 0;
+		ids[length++] = WordIndex.START;
+		for (String word : words){
+			int id = index.getId(word);
+			ids[length++] = trie.isInVocabulary(id) ? id : WordIndex.UNK;
+		}
+		ids[length++] = WordIndex.END;
+		return length;
+	}
+}
@@ -0,0 +1,472 @@
+package nlp.lm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Counts of all n-grams up to a given order in a compact sorted-array trie (as in KenLM)
+ *
+ * Level 1 is indexed directly by word ID. Level k (k > 1) holds every distinct k-gram as
+ * a node with its last word and its count, sorted by (parent node, last word), so the
+ * children of a (k-1)-gram node are the contiguous range
+ * childStart[node] .. childStart[node+1]-1 of level k, sorted by word ID. A child is found
+ * by interpolation search (binary search for short ranges). There are no pointers or
+ * per-node objects: a k-gram costs 8 bytes plus 12 bytes for its child range and
+ * context total if it is not of the highest order.
+ *
+ * Training follows LMBase.trainModel: every sentence is wrapped in <s> and </s>,
+ * the first occurrence of every word turns to <unk>, and n-grams never cross sentences.
+ *
+ * The corpus (anything CorpusReader reads: a file, a directory, a glob, gzip) is read once
+ * per level, so it is never held in memory. The first pass counts the words and every
+ * later pass counts the k-grams as (parent node, last word) keys, looking the parent up in
+ * the levels already built. The keys go into a buffer that is sorted and collapsed into a
+ * run of distinct keys with counts when it is full, and runs of about the same size are
+ * merged, so counting takes memory for the distinct k-grams and one buffer.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class NGramTrie {
+
+	// below this many children a plain binary search is used
+	private static final int INTERPOLATE_ABOVE = 16;
+
+	// n-gram occurrences collected before they are sorted into a run
+	private static final int BUFFER_KEYS = 1 << 20;
+
+	private final int order;
+	private final WordIndex index;
+	private final long totalNumWords;
+	private final int vocabularySize;
+
+	// level 1, indexed by word ID
+	private final long[] unigramCounts;
+
+	// levels 2..order are stored at [level - 2]
+	private final int[][] words;
+	private final int[][] counts;
+
+	// levels 1..order-1 are stored at [level - 1]
+	// children of node i of a level are childStart[i] .. childStart[i+1]-1 of the next level
+	private final int[][] childStart;
+
+	// sum of the counts of the children of every node, i.e. C(h .)
+	private final long[][] contextTotals;
+
+	/**
+	 * Distinct n-gram keys in increasing order with their counts
+	 */
+	private static class Run {
+		final long[] keys;
+		final long[] counts;
+		final int size;
+
+		Run(long[] keys, long[] counts, int size){
+			this.keys = keys;
+			this.counts = counts;
+			this.size = size;
+		}
+
+		/**
+		 * @param a
+		 * @param b
+		 * @return one run with the keys of both, adding up the counts of the keys in both
+		 */
+		static Run merge(Run a, Run b){
+			int capacity = Math.toIntExact((long) a.size + b.size);
+			long[] keys = new long[capacity];
+			long[] counts = new long[capacity];
+			int i = 0, j = 0, size = 0;
+			while (i < a.size || j < b.size){
+				if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])){
+					keys[size] = a.keys[i];
+					counts[size++] = a.counts[i++];
+				}
+				else if (i == a.size || b.keys[j] < a.keys[i]){
+					keys[size] = b.keys[j];
+					counts[size++] = b.counts[j++];
+				}
+				else {
+					keys[size] = a.keys[i];
+					counts[size++] = a.counts[i++] + b.counts[j++];
+				}
+			}
+			return new Run(keys, counts, size);
+		}
+	}
+
+	/**
+	 * Counts the keys of one level in sorted runs
+	 */
+	private static class RunCounter {
+		private final long[] buffer = new long[BUFFER_KEYS];
+		private int size;
+		private final ArrayList<Run> runs = new ArrayList<Run>();
+
+		void add(long key){
+			if (size == buffer.length){
+				flush();
+			}
+			buffer[size++] = key;
+		}
+
+		/**
+		 * Sort the buffer into a new run, then merge the last runs while they are about the same size
+		 */
+		private void flush(){
+			if (size == 0){
+				return;
+			}
+			Arrays.sort(buffer, 0, size);
+			int distinct = 0;
+			for (int i = 1; i < size; i++){
+				if (buffer[i] != buffer[i - 1]){
+					distinct++;
+				}
+			}
+			long[] keys = new long[distinct + 1];
+			long[] counts = new long[distinct + 1];
+			int k = 0;
+			keys[0] = buffer[0];
+			for (int i = 0; i < size; i++){
+				if (buffer[i] != keys[k]){
+					keys[++k] = buffer[i];
+				}
+				counts[k]++;
+			}
+			size = 0;
+			runs.add(new Run(keys, counts, keys.length));
+
+			while (runs.size() > 1 && runs.get(runs.size() - 2).size <= 2 * runs.get(runs.size() - 1).size){
+				mergeLast();
+			}
+		}
+
+		private void mergeLast(){
+			Run last = runs.remove(runs.size() - 1);
+			Run previous = runs.remove(runs.size() - 1);
+			runs.add(Run.merge(previous, last));
+		}
+
+		/**
+		 * @return every key counted, in one run
+		 */
+		Run finish(){
+			flush();
+			while (runs.size() > 1){
+				mergeLast();
+			}
+			return runs.isEmpty() ? new Run(new long[0], new long[0], 0) : runs.get(0);
+		}
+	}
+
+	/**
+	 * Count every n-gram up to the given order in the corpus
+	 * @param filename a file, directory or glob (see CorpusReader)
+	 * @param order highest n-gram order, at least 1
+	 * @throws IOException
+	 */
+	public NGramTrie(String filename, int order) throws IOException {
+		if (order < 1){
+			throw new IllegalArgumentException("order must be at least 1");
+		}
+		this.order = order;
+		this.index = new WordIndex();
+
+		// first pass: the words
+		long[] unigrams = new long[1024];
+		long numTokens = 0;
+		CorpusReader reader = CorpusReader.open(filename);
+		try {
+			BitSet seen = new BitSet();
+			for (String sentence = reader.readLine(); sentence != null; sentence = reader.readLine()){
+				int[] ids = toIds(sentence, seen);
+				if (index.size() > unigrams.length){
+					unigrams = Arrays.copyOf(unigrams, Math.max(unigrams.length * 2, index.size()));
+				}
+				for (int id : ids){
+					unigrams[id]++;
+				}
+				numTokens += ids.length;
+			}
+		} finally {
+			reader.close();
+		}
+		totalNumWords = numTokens;
+		unigramCounts = Arrays.copyOf(unigrams, index.size());
+
+		int vocab = 0;
+		for (int id = 0; id < index.size(); id++){
+			if (id <= WordIndex.END || unigramCounts[id] > 0){
+				vocab++;
+			}
+		}
+		vocabularySize = vocab;
+
+		words = new int[Math.max(order - 1, 0)][];
+		counts = new int[Math.max(order - 1, 0)][];
+		childStart = new int[Math.max(order - 1, 0)][];
+		contextTotals = new long[Math.max(order - 1, 0)][];
+
+		// one more pass for every level
+		for (int n = 2; n <= order; n++){
+			buildLevel(filename, n);
+		}
+	}
+
+	/**
+	 * Turn a sentence into word IDs between <s> and </s>, adding new words to the index
+	 * The first occurrence of a word in the pass turns to <unk>, so every pass gets the same IDs.
+	 * @param sentence
+	 * @param seen words already seen in this pass
+	 * @return word IDs
+	 */
+	private int[] toIds(String sentence, BitSet seen){
+		String[] sentWords = ("<s> " + sentence + " </s>").split(" ");
+		int[] ids = new int[sentWords.length];
+		ids[0] = WordIndex.START;
+		ids[ids.length - 1] = WordIndex.END;
+		for (int i = 1; i < sentWords.length - 1; i++){
+			int id = index.getId(sentWords[i]);
+			if (id == WordIndex.NO_ID){
+				id = index.add(sentWords[i]);
+			}
+
+			// first time we see the word so it counts as <unk>
+			if (!seen.get(id)){
+				seen.set(id);
+				id = WordIndex.UNK;
+			}
+			ids[i] = id;
+		}
+		return ids;
+	}
+
+	/**
+	 * Count the n-grams of level n, whose parents are the nodes of level n - 1
+	 * @param filename
+	 * @param n
+	 * @throws IOException
+	 */
+	private void buildLevel(String filename, int n) throws IOException {
+		// an n-gram is (parent (n-1)-gram node, last word); sorting these keys sorts the level
+		RunCounter counter = new RunCounter();
+		CorpusReader reader = CorpusReader.open(filename);
+		try {
+			BitSet seen = new BitSet(index.size());
+			for (String sentence = reader.readLine(); sentence != null; sentence = reader.readLine()){
+				int[] ids = toIds(sentence, seen);
+
+				// the parent never ends with </s> since </s> is the last word of the sentence
+				for (int p = 0; p + n <= ids.length; p++){
+					counter.add(BigramCountTable.key(find(ids, p, p + n - 1), ids[p + n - 1]));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		Run run = counter.finish();
+
+		int numParents = numNodes(n - 1);
+		int[] levelWords = new int[run.size];
+		int[] levelCounts = new int[run.size];
+		int[] parentStart = new int[numParents + 1];
+		long[] parentTotals = new long[numParents];
+		for (int i = 0; i < run.size; i++){
+			int parent = BigramCountTable.firstOf(run.keys[i]);
+			levelWords[i] = BigramCountTable.secondOf(run.keys[i]);
+			levelCounts[i] = Math.toIntExact(run.counts[i]);
+			parentStart[parent + 1]++;
+			parentTotals[parent] += run.counts[i];
+		}
+		for (int i = 0; i < numParents; i++){
+			parentStart[i + 1] += parentStart[i];
+		}
+
+		words[n - 2] = levelWords;
+		counts[n - 2] = levelCounts;
+		childStart[n - 2] = parentStart;
+		contextTotals[n - 2] = parentTotals;
+	}
+
+	/**
+	 * @return highest n-gram order
+	 */
+	public int getOrder(){
+		return order;
+	}
+
+	public WordIndex getWordIndex(){
+		return index;
+	}
+
+	public double getTotalNumWords(){
+		return totalNumWords;
+	}
+
+	public int getVocabularySize(){
+		return vocabularySize;
+	}
+
+	/**
+	 * @param id
+	 * @return true if the word was seen more than once (or is a special token)
+	 */
+	public boolean isInVocabulary(int id){
+		return id >= 0 && id < unigramCounts.length && (id <= WordIndex.END || unigramCounts[id] > 0);
+	}
+
+	/**
+	 * @param level
+	 * @return number of distinct n-grams of the level
+	 */
+	public int numNodes(int level){
+		return level == 1 ? unigramCounts.length : words[level - 2].length;
+	}
+
+	/**
+	 * Find the node of the n-gram ids[from .. to-1]
+	 * @param ids
+	 * @param from
+	 * @param to
+	 * @return node index in level (to - from), or -1 if the n-gram was never seen
+	 */
+	public int find(int[] ids, int from, int to){
+		int node = ids[from];
+		if (node < 0 || node >= unigramCounts.length){
+			return -1;
+		}
+		for (int i = from + 1; i < to && node >= 0; i++){
+			node = findChild(i - from, node, ids[i]);
+		}
+		return node;
+	}
+
+	/**
+	 * @param level level of the parent node
+	 * @param node parent node
+	 * @param word
+	 * @return node of the child with the given last word in level + 1, or -1
+	 */
+	public int findChild(int level, int node, int word){
+		if (level >= order){
+			return -1;
+		}
+		int[] start = childStart[level - 1];
+		int[] children = words[level - 1];
+		int low = start[node];
+		int high = start[node + 1] - 1;
+
+		// children are sorted by word ID, which is spread evenly enough to interpolate
+		while (high - low > INTERPOLATE_ABOVE){
+			int lowWord = children[low];
+			int highWord = children[high];
+			if (word < lowWord || word > highWord){
+				return -1;
+			}
+			if (lowWord == highWord){
+				return lowWord == word ? low : -1;
+			}
+			int mid = low + (int) ((long) (word - lowWord) * (high - low) / (highWord - lowWord));
+			int midWord = children[mid];
+			if (midWord < word){
+				low = mid + 1;
+			}
+			else if (midWord > word){
+				high = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		while (low <= high){
+			int mid = (low + high) >>> 1;
+			int midWord = children[mid];
+			if (midWord < word){
+				low = mid + 1;
+			}
+			else if (midWord > word){
+				high = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param level
+	 * @param node
+	 * @return number of times the n-gram was seen
+	 */
+	public double getCount(int level, int node){
+		return level == 1 ? unigramCounts[node] : counts[level - 2][node];
+	}
+
+	/**
+	 * @param level
+	 * @param node
+	 * @return number of times the n-gram was seen as the history of a longer n-gram, C(h .)
+	 */
+	public double getContextTotal(int level, int node){
+		return level >= order ? 0 : contextTotals[level - 1][node];
+	}
+
+	/**
+	 * @param level
+	 * @param node
+	 * @return number of distinct words seen after the n-gram
+	 */
+	public int getNumChildren(int level, int node){
+		if (level >= order){
+			return 0;
+		}
+		return childStart[level - 1][node + 1] - childStart[level - 1][node];
+	}
+
+	/**
+	 * @param level
+	 * @param node
+	 * @return node index of the first child in level + 1
+	 */
+	public int getFirstChild(int level, int node){
+		return childStart[level - 1][node];
+	}
+
+	/**
+	 * @param level
+	 * @param node
+	 * @return the last word of the n-gram
+	 */
+	public int getWord(int level, int node){
+		return level == 1 ? node : words[level - 2][node];
+	}
+
+	/**
+	 * @return number of distinct n-grams of all orders
+	 */
+	public long numNGrams(){
+		long total = 0;
+		for (int level = 1; level <= order; level++){
+			total += numNodes(level);
+		}
+		return total;
+	}
+
+	/**
+	 * @return approximate heap size of the trie in bytes (not including the word strings)
+	 */
+	public long memoryBytes(){
+		long bytes = (long) unigramCounts.length * Long.BYTES;
+		for (int i = 0; i < words.length; i++){
+			bytes += (long) (words[i].length + counts[i].length + childStart[i].length) * Integer.BYTES;
+			bytes += (long) contextTotals[i].length * Long.BYTES;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,181 @@
+package nlp.lm;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+ * Compares the HashMap counts, IdBigramCounts and OffHeapBigramCounts behind a LambdaLMModel for
+ * - the heap the model holds on to
+ * - how long a full garbage collection takes while the model is alive (the pause a scoring
+ *   JVM sees when its old generation is collected)
+ * - the time and garbage collections while scoring the test sentences
+ * - the bytes allocated per getBigramProb(int, int) lookup
+ * and checks that all three give the same perplexity. The off-heap counts are also saved,
+ * loaded back and closed.
+ *
+ * Usage: OffHeapBenchmark [training file] [test file]
+ * Without files it trains on a synthetic corpus (see LMBenchmarkSuite.writeSyntheticCorpus).
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class OffHeapBenchmark {
+
+	private static final int FULL_GCS = 5;
+	private static final int SCORING_ROUNDS = 5;
+
+	// keeps results alive
+	static volatile double sink;
+
+	public static void main(String[] args) throws IOException {
+		String training;
+		String testing;
+		if (args.length >= 2){
+			training = args[0];
+			testing = args[1];
+		}
+		else {
+			File trainFile = File.createTempFile("offheap", ".train");
+			File testFile = File.createTempFile("offheap", ".test");
+			trainFile.deleteOnExit();
+			testFile.deleteOnExit();
+			LMBenchmarkSuite.writeSyntheticCorpus(trainFile.getPath(), 300000, 100000, 159);
+			LMBenchmarkSuite.writeSyntheticCorpus(testFile.getPath(), 20000, 100000, 160);
+			training = trainFile.getPath();
+			testing = testFile.getPath();
+		}
+		ArrayList<String> sentences = LMBenchmarkSuite.readLines(testing);
+		System.out.println("Training on " + training + ", scoring " + sentences.size() + " sentences");
+		System.out.println(String.format("%-10s %10s %12s %14s %12s %10s %12s  %s", "counts", "heap KB", "off-heap KB",
+				"full GC ms", "scoring ms", "GCs", "bytes/lookup", "perplexity"));
+
+		long baseline = usedHeap();
+		LambdaLMModel hashMaps = new LambdaLMModel(training, 0.01, false);
+		report("HashMaps", hashMaps, 0, sentences, baseline, false);
+		hashMaps = null;
+
+		baseline = usedHeap();
+		LambdaLMModel ids = new LambdaLMModel(LMBase.trainCounts(training), 0.01);
+		report("word IDs", ids, 0, sentences, baseline, true);
+		ids = null;
+
+		// train on the heap, copy off it and let the heap counts go
+		baseline = usedHeap();
+		OffHeapBigramCounts offHeap = new OffHeapBigramCounts(LMBase.trainCounts(training));
+		report("off-heap", new LambdaLMModel(offHeap, 0.01), offHeap.memoryBytes(), sentences, baseline, true);
+
+		File saved = File.createTempFile("offheap", ".counts");
+		saved.deleteOnExit();
+		long start = System.nanoTime();
+		offHeap.save(saved.getPath());
+		double saveMillis = (System.nanoTime() - start) / 1e6;
+		offHeap.close();
+
+		baseline = usedHeap();
+		start = System.nanoTime();
+		OffHeapBigramCounts loaded = OffHeapBigramCounts.load(saved.getPath());
+		double loadMillis = (System.nanoTime() - start) / 1e6;
+		report("loaded", new LambdaLMModel(loaded, 0.01), loaded.memoryBytes(), sentences, baseline, true);
+		loaded.close();
+		System.out.println(String.format("saved in %.1f ms, loaded in %.1f ms (%d KB)", saveMillis, loadMillis, saved.length() / 1024));
+	}
+
+	/**
+	 * Measure one model and print a line of the table
+	 */
+	private static void report(String name, LambdaLMModel model, long offHeapBytes, ArrayList<String> sentences,
+			long baseline, boolean ids){
+		long heap = usedHeap() - baseline;
+
+		// time full collections with the model alive
+		double gcMillis = 0;
+		for (int i = 0; i < FULL_GCS; i++){
+			long start = System.nanoTime();
+			System.gc();
+			gcMillis += (System.nanoTime() - start) / 1e6;
+		}
+		gcMillis /= FULL_GCS;
+
+		ArrayList<ArrayList<String>> words = new ArrayList<ArrayList<String>>();
+		long tokens = 0;
+		for (String sentence : sentences){
+			ArrayList<String> sentWords = model.sentenceToWords(sentence);
+			words.add(sentWords);
+			tokens += sentWords.size() - 1;
+		}
+
+		// scoring, once to warm up
+		double logProb = 0;
+		long gcsBefore = 0;
+		long scoringStart = 0;
+		for (int round = 0; round <= SCORING_ROUNDS; round++){
+			if (round == 1){
+				gcsBefore = gcCount();
+				scoringStart = System.nanoTime();
+			}
+			logProb = 0;
+			for (ArrayList<String> sentWords : words){
+				logProb += model.logProb(sentWords);
+			}
+		}
+		double scoringMillis = (System.nanoTime() - scoringStart) / 1e6 / SCORING_ROUNDS;
+		long gcs = gcCount() - gcsBefore;
+		double perplexity = Math.pow(10, -logProb / tokens);
+
+		String bytesPerLookup = "-";
+		if (ids){
+			bytesPerLookup = String.format("%.2f", allocatedPerLookup(model));
+		}
+		System.out.println(String.format("%-10s %10d %12d %14.1f %12.1f %10d %12s  %.6f", name, heap / 1024, offHeapBytes / 1024,
+				gcMillis, scoringMillis, gcs, bytesPerLookup, perplexity));
+	}
+
+	/**
+	 * @param model
+	 * @return bytes allocated per getBigramProb(int, int) call on this thread
+	 */
+	private static double allocatedPerLookup(LambdaLMModel model){
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		int numWords = model.getWordIndex().size();
+		int lookups = 2000000;
+		for (int round = 0; round < 2; round++){
+			long before = threads.getThreadAllocatedBytes(thread);
+			double sum = 0;
+			for (int i = 0; i < lookups; i++){
+				sum += model.getBigramProb(i % 64, (i * 31) % numWords);
+			}
+			sink += sum;
+			if (round == 1){
+				return (double) (threads.getThreadAllocatedBytes(thread) - before) / lookups;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return number of collections so far, over all collectors
+	 */
+	private static long gcCount(){
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * @return the heap in use after a garbage collection
+	 */
+	private static long usedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++){
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
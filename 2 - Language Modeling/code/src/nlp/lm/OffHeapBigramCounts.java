@@ -0,0 +1,490 @@
+package nlp.lm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bigram counts kept in direct (off-heap) memory, so the garbage collector never has to
+ * scan or copy them
+ *
+ * Only the WordIndex (one String per word) stays on the heap. Everything per bigram is in
+ * direct ByteBuffers of up to 1 GB each, addressed with long offsets, so the counts can be
+ * larger than one buffer:
+ * header           magic, version, numWords, vocabularySize, numBigrams, totalNumWords, capacity
+ * unigramCounts    long[numWords]
+ * bigramTotals     long[numWords]
+ * prunedCounts     long[numWords]
+ * successorStart   int[numWords + 1]
+ * successorIds     int[numBigrams]   (in the order of the counts they were copied from)
+ * successorCounts  int[numBigrams]
+ * table            capacity slots of (long key, int count), open addressing, count 0 is empty
+ * Every section starts on an 8 byte boundary. getBigramCount is one hash probe sequence
+ * instead of a binary search, and no query allocates anything.
+ *
+ * save() writes the memory as it is (little-endian) followed by the words, and load()
+ * reads it straight back into direct memory without rebuilding the table.
+ *
+ * The memory is freed by close(), not by the garbage collector. Every query after close()
+ * throws IllegalStateException, and close() must not run while other threads are querying.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class OffHeapBigramCounts implements BigramCounts, Closeable {
+
+	// "LMOH"
+	public static final int MAGIC = 0x4C4D4F48;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 64;
+
+	// key and count
+	private static final int SLOT_BYTES = 12;
+
+	// slots per bigram is at least 1 / MAX_LOAD, so unseen bigrams are found to be missing quickly
+	private static final double MAX_LOAD = 0.5;
+
+	private final WordIndex index;
+	private final int numWords;
+	private final int vocabularySize;
+	private final long numBigrams;
+	private final long totalNumWords;
+	private final long capacity;
+	private final long mask;
+
+	// where each section starts in the memory
+	private final long unigramStart;
+	private final long totalStart;
+	private final long prunedStart;
+	private final long successorStartStart;
+	private final long successorIdStart;
+	private final long successorCountStart;
+	private final long tableStart;
+
+	// null once closed
+	private volatile Memory memory;
+
+	/**
+	 * Direct buffers of up to 1 GB, addressed as one array of bytes
+	 * Sections are 8 byte aligned and chunks are a power of 2 long, so no value crosses two chunks
+	 */
+	private static class Memory {
+		private static final int CHUNK_BITS = 30;
+		private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+		final ByteBuffer[] chunks;
+		final long size;
+
+		Memory(long size){
+			this.size = size;
+			chunks = new ByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+			for (int i = 0; i < chunks.length; i++){
+				long chunkSize = Math.min(CHUNK_MASK + 1, size - ((long) i << CHUNK_BITS));
+				chunks[i] = ByteBuffer.allocateDirect((int) chunkSize).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+
+		long getLong(long address){
+			return chunks[(int) (address >>> CHUNK_BITS)].getLong((int) (address & CHUNK_MASK));
+		}
+
+		int getInt(long address){
+			return chunks[(int) (address >>> CHUNK_BITS)].getInt((int) (address & CHUNK_MASK));
+		}
+
+		void putLong(long address, long value){
+			chunks[(int) (address >>> CHUNK_BITS)].putLong((int) (address & CHUNK_MASK), value);
+		}
+
+		void putInt(long address, int value){
+			chunks[(int) (address >>> CHUNK_BITS)].putInt((int) (address & CHUNK_MASK), value);
+		}
+
+		/**
+		 * Give the memory back now instead of when the buffers are collected
+		 */
+		void free(){
+			for (ByteBuffer chunk : chunks){
+				freeDirect(chunk);
+			}
+		}
+	}
+
+	/**
+	 * Copy counts into direct memory
+	 * @param counts
+	 */
+	public OffHeapBigramCounts(BigramCounts counts){
+		this(counts.getWordIndex().size(), counts.getVocabularySize(), countBigrams(counts),
+				(long) counts.getTotalNumWords(), copyWords(counts.getWordIndex()));
+		Memory m = new Memory(memorySize(numWords, numBigrams));
+		m.putInt(0, MAGIC);
+		m.putInt(4, VERSION);
+		m.putInt(8, numWords);
+		m.putInt(12, vocabularySize);
+		m.putLong(16, numBigrams);
+		m.putLong(24, totalNumWords);
+		m.putLong(32, capacity);
+
+		long position = 0;
+		for (int first = 0; first < numWords; first++){
+			m.putLong(unigramStart + (long) first * Long.BYTES, (long) counts.getUnigramCount(first));
+			m.putLong(totalStart + (long) first * Long.BYTES, (long) counts.getBigramTotal(first));
+			m.putLong(prunedStart + (long) first * Long.BYTES, (long) counts.getPrunedCount(first));
+			m.putInt(successorStartStart + (long) first * Integer.BYTES, (int) position);
+			for (int k = 0; k < counts.getNumSuccessors(first); k++){
+				int second = counts.getSuccessor(first, k);
+				int count = (int) counts.getSuccessorCount(first, k);
+				m.putInt(successorIdStart + position * Integer.BYTES, second);
+				m.putInt(successorCountStart + position * Integer.BYTES, count);
+				insert(m, BigramCountTable.key(first, second), count);
+				position++;
+			}
+		}
+		m.putInt(successorStartStart + (long) numWords * Integer.BYTES, (int) position);
+		memory = m;
+	}
+
+	/**
+	 * Work out where the sections go, the memory is set by the caller
+	 */
+	private OffHeapBigramCounts(int numWords, int vocabularySize, long numBigrams, long totalNumWords, WordIndex index){
+		this.index = index;
+		this.numWords = numWords;
+		this.vocabularySize = vocabularySize;
+		this.numBigrams = numBigrams;
+		this.totalNumWords = totalNumWords;
+		capacity = tableSizeFor(numBigrams);
+		mask = capacity - 1;
+
+		unigramStart = HEADER_BYTES;
+		totalStart = unigramStart + align((long) numWords * Long.BYTES);
+		prunedStart = totalStart + align((long) numWords * Long.BYTES);
+		successorStartStart = prunedStart + align((long) numWords * Long.BYTES);
+		successorIdStart = successorStartStart + align((long) (numWords + 1) * Integer.BYTES);
+		successorCountStart = successorIdStart + align(numBigrams * Integer.BYTES);
+		tableStart = successorCountStart + align(numBigrams * Integer.BYTES);
+	}
+
+	/**
+	 * @param numWords
+	 * @param numBigrams
+	 * @return bytes of memory for the header, the sections and the table
+	 */
+	private static long memorySize(int numWords, long numBigrams){
+		long sections = 3 * align((long) numWords * Long.BYTES) + align((long) (numWords + 1) * Integer.BYTES)
+				+ 2 * align(numBigrams * Integer.BYTES);
+		return align(HEADER_BYTES + sections + tableSizeFor(numBigrams) * SLOT_BYTES);
+	}
+
+	private static long countBigrams(BigramCounts counts){
+		long numBigrams = 0;
+		for (int id = 0; id < counts.getWordIndex().size(); id++){
+			numBigrams += counts.getNumSuccessors(id);
+		}
+		return numBigrams;
+	}
+
+	/**
+	 * The special tokens already have IDs 0-2 in a new WordIndex
+	 */
+	private static WordIndex copyWords(WordIndex source){
+		WordIndex index = new WordIndex();
+		for (int id = WordIndex.END + 1; id < source.size(); id++){
+			index.add(source.getWord(id));
+		}
+		return index;
+	}
+
+	private void insert(Memory m, long key, int count){
+		for (long slot = BigramCountTable.hash(key) & mask; ; slot = (slot + 1) & mask){
+			long address = tableStart + slot * SLOT_BYTES;
+			if (m.getInt(address + Long.BYTES) == 0){
+				m.putLong(address, key);
+				m.putInt(address + Long.BYTES, count);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write the counts to a file that load() reads back
+	 * The file is the memory as it is, followed by the words
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void save(String filename) throws IOException {
+		Memory m = getMemory();
+		byte[][] words = new byte[numWords][];
+		long wordBytes = 0;
+		for (int id = 0; id < numWords; id++){
+			words[id] = index.getWord(id).getBytes(StandardCharsets.UTF_8);
+			wordBytes += words[id].length;
+		}
+
+		RandomAccessFile file = new RandomAccessFile(filename, "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			for (ByteBuffer chunk : m.chunks){
+				ByteBuffer all = chunk.duplicate();
+				all.clear();
+				while (all.hasRemaining()){
+					channel.write(all);
+				}
+			}
+
+			// word offsets, then the UTF-8 bytes of the words
+			ByteBuffer wordSection = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8, (numWords + 1L) * Integer.BYTES + wordBytes))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			int offset = 0;
+			wordSection.putInt(offset);
+			for (int id = 0; id < numWords; id++){
+				offset += words[id].length;
+				wordSection.putInt(offset);
+			}
+			for (int id = 0; id < numWords; id++){
+				wordSection.put(words[id]);
+			}
+			wordSection.flip();
+			while (wordSection.hasRemaining()){
+				channel.write(wordSection);
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Read a file written by save() into direct memory
+	 * @param filename
+	 * @return the counts, to be closed when they are not needed anymore
+	 * @throws IOException if the file is not a file of this version
+	 */
+	public static OffHeapBigramCounts load(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		Memory m = null;
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0){
+			}
+			if (header.getInt(0) != MAGIC){
+				throw new IOException(filename + " is not an off-heap count file");
+			}
+			if (header.getInt(4) != VERSION){
+				throw new IOException(filename + " has version " + header.getInt(4) + ", expected " + VERSION);
+			}
+			int numWords = header.getInt(8);
+			long numBigrams = header.getLong(16);
+			if (header.getLong(32) != tableSizeFor(numBigrams)){
+				throw new IOException(filename + " has a table of the wrong size");
+			}
+			long size = memorySize(numWords, numBigrams);
+
+			m = new Memory(size);
+			long position = 0;
+			for (ByteBuffer chunk : m.chunks){
+				ByteBuffer all = chunk.duplicate();
+				all.clear();
+				while (all.hasRemaining()){
+					if (channel.read(all, position + all.position()) < 0){
+						throw new IOException(filename + " is cut short");
+					}
+				}
+				position += chunk.capacity();
+			}
+
+			ByteBuffer words = ByteBuffer.allocate((int) (channel.size() - size)).order(ByteOrder.LITTLE_ENDIAN);
+			while (words.hasRemaining() && channel.read(words, size + words.position()) > 0){
+			}
+			int bytesStart = (numWords + 1) * Integer.BYTES;
+			WordIndex index = new WordIndex();
+			for (int id = WordIndex.END + 1; id < numWords; id++){
+				int from = words.getInt(id * Integer.BYTES);
+				int to = words.getInt((id + 1) * Integer.BYTES);
+				index.add(new String(words.array(), bytesStart + from, to - from, StandardCharsets.UTF_8));
+			}
+			OffHeapBigramCounts counts = new OffHeapBigramCounts(numWords, header.getInt(12), numBigrams, header.getLong(24), index);
+			counts.memory = m;
+			m = null;
+			return counts;
+		} finally {
+			// free the memory if reading failed half way
+			if (m != null){
+				m.free();
+			}
+			file.close();
+		}
+	}
+
+	/**
+	 * Free the direct memory now
+	 */
+	@Override
+	public synchronized void close(){
+		Memory m = memory;
+		if (m != null){
+			memory = null;
+			m.free();
+		}
+	}
+
+	/**
+	 * @return true once close() was called
+	 */
+	public boolean isClosed(){
+		return memory == null;
+	}
+
+	/**
+	 * @return bytes of direct memory held
+	 */
+	public long memoryBytes(){
+		Memory m = memory;
+		return m != null ? m.size : 0;
+	}
+
+	private Memory getMemory(){
+		Memory m = memory;
+		if (m == null){
+			throw new IllegalStateException("the off-heap counts are closed");
+		}
+		return m;
+	}
+
+	@Override
+	public WordIndex getWordIndex() {
+		return index;
+	}
+
+	@Override
+	public double getTotalNumWords() {
+		return totalNumWords;
+	}
+
+	@Override
+	public int getVocabularySize() {
+		return vocabularySize;
+	}
+
+	@Override
+	public boolean isInVocabulary(int id) {
+		return id >= 0 && id < numWords && (id <= WordIndex.END || getMemory().getLong(unigramStart + (long) id * Long.BYTES) > 0);
+	}
+
+	@Override
+	public double getUnigramCount(int id) {
+		return id < 0 || id >= numWords ? 0 : getMemory().getLong(unigramStart + (long) id * Long.BYTES);
+	}
+
+	@Override
+	public double getBigramTotal(int first) {
+		return first < 0 || first >= numWords ? 0 : getMemory().getLong(totalStart + (long) first * Long.BYTES);
+	}
+
+	@Override
+	public double getBigramCount(int first, int second) {
+		if (first < 0 || first >= numWords || second < 0){
+			return 0;
+		}
+		Memory m = getMemory();
+		long key = BigramCountTable.key(first, second);
+		for (long slot = BigramCountTable.hash(key) & mask; ; slot = (slot + 1) & mask){
+			long address = tableStart + slot * SLOT_BYTES;
+			int count = m.getInt(address + Long.BYTES);
+			if (count == 0){
+				return 0;
+			}
+			if (m.getLong(address) == key){
+				return count;
+			}
+		}
+	}
+
+	@Override
+	public double getPrunedCount(int first) {
+		return first < 0 || first >= numWords ? 0 : getMemory().getLong(prunedStart + (long) first * Long.BYTES);
+	}
+
+	@Override
+	public int getNumSuccessors(int first) {
+		if (first < 0 || first >= numWords){
+			return 0;
+		}
+		Memory m = getMemory();
+		long address = successorStartStart + (long) first * Integer.BYTES;
+		return m.getInt(address + Integer.BYTES) - m.getInt(address);
+	}
+
+	@Override
+	public int getSuccessor(int first, int k) {
+		Memory m = getMemory();
+		long position = m.getInt(successorStartStart + (long) first * Integer.BYTES) + k;
+		return m.getInt(successorIdStart + position * Integer.BYTES);
+	}
+
+	@Override
+	public double getSuccessorCount(int first, int k) {
+		Memory m = getMemory();
+		long position = m.getInt(successorStartStart + (long) first * Integer.BYTES) + k;
+		return m.getInt(successorCountStart + position * Integer.BYTES);
+	}
+
+	/**
+	 * @param numBigrams
+	 * @return a power of 2 with room for numBigrams at MAX_LOAD
+	 */
+	private static long tableSizeFor(long numBigrams){
+		long size = 16;
+		while (size * MAX_LOAD < numBigrams){
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * @param size
+	 * @return size rounded up to a multiple of 8
+	 */
+	private static long align(long size){
+		return (size + 7) & ~7L;
+	}
+
+	/**
+	 * Run the cleaner of a direct buffer, which Java only offers through internal classes
+	 * (sun.misc.Unsafe.invokeCleaner since Java 9, DirectBuffer.cleaner() before). If neither
+	 * is there the buffer is left to the garbage collector.
+	 * @param buffer
+	 */
+	private static void freeDirect(ByteBuffer buffer){
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (NoSuchMethodException e) {
+			try {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null){
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			} catch (ReflectiveOperationException | RuntimeException e2) {
+				// left to the garbage collector
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// left to the garbage collector
+		}
+	}
+}
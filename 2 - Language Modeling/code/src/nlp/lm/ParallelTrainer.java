@@ -0,0 +1,311 @@
+package nlp.lm;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts a training file on several threads
+ *
+ * The file is split into byte ranges (shards) that start right after a newline.
+ * Counting then takes two passes over the shards on a fork/join pool:
+ * 1. every shard lists its distinct words in order of first occurrence. Walking these
+ *    lists in shard order gives the global first-occurrence order, so the words get
+ *    the same IDs as in serial training and we know which shard holds the first
+ *    occurrence of each word.
+ * 2. every shard counts its unigrams and bigrams into its own IdBigramCounts, turning
+ *    a word into <unk> only if this is its first occurrence in the shard that owns it.
+ *    The partial counts are merged pairwise as the fork/join tasks finish.
+ *
+ * The file is read as UTF-8 (lines may end in \n or \r\n), like CorpusReader does, so the
+ * result is identical to LMBase.trainModel(filename, true).
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class ParallelTrainer {
+
+	// shards per thread, so a slow shard does not hold up the others
+	private static final int SHARDS_PER_THREAD = 4;
+
+	// largest shard we map at once
+	private static final long MAX_SHARD_BYTES = 1L << 30;
+
+	private final String filename;
+	private final long[] shardStart;
+	private final int numShards;
+
+	// results of the vocabulary pass: distinct words of each shard, in order of first occurrence
+	private final ArrayList<LinkedHashSet<String>> shardWords;
+
+	// results of the merge of the vocabulary pass
+	private WordIndex index;
+	private int[] ownerShard;
+
+	private ParallelTrainer(String filename, int threads) throws IOException {
+		this.filename = filename;
+		this.shardStart = splitFile(filename, threads * SHARDS_PER_THREAD);
+		this.numShards = shardStart.length - 1;
+		this.shardWords = new ArrayList<LinkedHashSet<String>>();
+		for (int s = 0; s < numShards; s++){
+			shardWords.add(null);
+		}
+	}
+
+	/**
+	 * Count the file using the given number of threads
+	 * @param filename
+	 * @param threads
+	 * @return finished counts
+	 * @throws IOException
+	 */
+	public static IdBigramCounts count(String filename, int threads) throws IOException {
+		ParallelTrainer trainer = new ParallelTrainer(filename, threads);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			// pass 1: global vocabulary in first-occurrence order
+			pool.invoke(trainer.new VocabularyTask(0, trainer.numShards));
+			trainer.buildIndex();
+
+			// pass 2: count every shard and merge
+			IdBigramCounts counts = pool.invoke(trainer.new CountTask(0, trainer.numShards));
+			counts.finish();
+			return counts;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Walk the shard word lists in order and give every word its ID
+	 * The first shard that lists a word owns its first occurrence
+	 */
+	private void buildIndex(){
+		index = new WordIndex();
+		ArrayList<Integer> owners = new ArrayList<Integer>();
+		for (int s = 0; s < numShards; s++){
+			for (String word : shardWords.get(s)){
+				if (index.getId(word) == WordIndex.NO_ID){
+					index.add(word);
+					owners.add(s);
+				}
+			}
+			// no longer needed
+			shardWords.set(s, null);
+		}
+
+		// the special tokens are never turned into <unk>
+		ownerShard = new int[index.size()];
+		Arrays.fill(ownerShard, -1);
+		for (int i = 0; i < owners.size(); i++){
+			ownerShard[WordIndex.END + 1 + i] = owners.get(i);
+		}
+	}
+
+	/**
+	 * Pass 1: collect the distinct words of each shard in order of first occurrence
+	 */
+	private class VocabularyTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int low;
+		private final int high;
+
+		VocabularyTask(int low, int high){
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		protected void compute() {
+			if (high - low > 1){
+				int mid = (low + high) >>> 1;
+				invokeAll(new VocabularyTask(low, mid), new VocabularyTask(mid, high));
+				return;
+			}
+			final LinkedHashSet<String> words = new LinkedHashSet<String>();
+			readShard(low, new LineVisitor(){
+				@Override
+				void visit(String sentence) {
+					String[] tokens = ("<s> " + sentence + " </s>").split(" ");
+					for (int i = 1; i < tokens.length - 1; i++){
+						words.add(tokens[i]);
+					}
+				}
+			});
+			shardWords.set(low, words);
+		}
+	}
+
+	/**
+	 * Pass 2: count the shards and merge the partial counts
+	 */
+	private class CountTask extends RecursiveTask<IdBigramCounts> {
+		private static final long serialVersionUID = 1L;
+		private final int low;
+		private final int high;
+
+		CountTask(int low, int high){
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		protected IdBigramCounts compute() {
+			if (high - low > 1){
+				int mid = (low + high) >>> 1;
+				CountTask left = new CountTask(low, mid);
+				left.fork();
+				IdBigramCounts right = new CountTask(mid, high).compute();
+				IdBigramCounts counts = left.join();
+				counts.merge(right);
+				return counts;
+			}
+
+			final int shard = low;
+			final IdBigramCounts counts = new IdBigramCounts(index);
+			final BitSet seen = new BitSet(index.size());
+			readShard(shard, new LineVisitor(){
+				int[] ids = new int[64];
+
+				@Override
+				void visit(String sentence) {
+					String[] tokens = ("<s> " + sentence + " </s>").split(" ");
+					if (ids.length < tokens.length){
+						ids = new int[tokens.length * 2];
+					}
+					ids[0] = WordIndex.START;
+					ids[tokens.length - 1] = WordIndex.END;
+					for (int i = 1; i < tokens.length - 1; i++){
+						int id = index.getId(tokens[i]);
+
+						// the global first occurrence of the word turns to <unk>
+						if (ownerShard[id] == shard && !seen.get(id)){
+							seen.set(id);
+							ids[i] = WordIndex.UNK;
+						}
+						else {
+							ids[i] = id;
+						}
+					}
+					counts.addIds(ids, tokens.length);
+				}
+			});
+			return counts;
+		}
+	}
+
+	/**
+	 * Called for every line of a shard
+	 */
+	private static abstract class LineVisitor {
+		abstract void visit(String sentence);
+	}
+
+	/**
+	 * Map a shard and pass each of its lines (without the line ending) to the visitor
+	 * @param shard
+	 * @param visitor
+	 */
+	private void readShard(int shard, LineVisitor visitor){
+		try {
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			ByteBuffer buffer;
+			try {
+				long start = shardStart[shard];
+				buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, shardStart[shard + 1] - start);
+			} finally {
+				file.close();
+			}
+
+			byte[] line = new byte[256];
+			int length = 0;
+			while (buffer.hasRemaining()){
+				byte b = buffer.get();
+				if (b == '\n'){
+					visitor.visit(decode(line, length));
+					length = 0;
+				}
+				else {
+					if (length == line.length){
+						byte[] bigger = new byte[line.length * 2];
+						System.arraycopy(line, 0, bigger, 0, length);
+						line = bigger;
+					}
+					line[length++] = b;
+				}
+			}
+			// last line of the file may not end with a newline
+			if (length > 0){
+				visitor.visit(decode(line, length));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param line
+	 * @param length
+	 * @return the line as a String, without a trailing \r
+	 */
+	private static String decode(byte[] line, int length){
+		if (length > 0 && line[length - 1] == '\r'){
+			length--;
+		}
+		return new String(line, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Split the file into byte ranges that each start right after a newline
+	 * @param filename
+	 * @param numShards number of shards wanted (more are used if a shard would be too large to map)
+	 * @return shard boundaries, shard s is [start[s], start[s+1])
+	 * @throws IOException
+	 */
+	static long[] splitFile(String filename, int numShards) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			long size = file.length();
+			numShards = (int) Math.max(numShards, size / MAX_SHARD_BYTES + 1);
+
+			ArrayList<Long> starts = new ArrayList<Long>();
+			starts.add(0L);
+			for (int s = 1; s < numShards; s++){
+				long position = Math.max(size * s / numShards, starts.get(starts.size() - 1));
+
+				// move to just after the next newline
+				file.seek(position);
+				int b = position == 0 ? '\n' : file.read();
+				while (b != '\n' && b != -1){
+					b = file.read();
+				}
+				long start = file.getFilePointer();
+				if (start < size && start > starts.get(starts.size() - 1)){
+					starts.add(start);
+				}
+			}
+			starts.add(size);
+
+			long[] boundaries = new long[starts.size()];
+			for (int i = 0; i < boundaries.length; i++){
+				boundaries[i] = starts.get(i);
+			}
+			return boundaries;
+		} finally {
+			file.close();
+		}
+	}
+}
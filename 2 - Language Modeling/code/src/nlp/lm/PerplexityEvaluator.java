@@ -0,0 +1,402 @@
+package nlp.lm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Calculates the perplexity of a file on several threads
+ *
+ * Sentences are split into fixed-size chunks that are scored in parallel. Each chunk
+ * tokenizes its sentences straight into a reusable buffer of word IDs (no ArrayList,
+ * no <s>/</s> concatenation, no regex split) and scores them with getBigramProb(int, int).
+ * Log probabilities are added with compensated summation, first within a chunk and then
+ * over the chunks in file order, so the result does not depend on the number of threads.
+ * A file is read one chunk at a time, with at most twice as many chunks as threads in memory.
+ * A memory-mapped file can also be scored without making any Strings (see ByteTokenizer).
+ *
+ * A model trained with the HashMaps is scored through getBigramProb(String, String), so
+ * evaluating it does not move it onto word IDs (only evaluate(ByteBuffer) does that).
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class PerplexityEvaluator {
+
+	// sentences per chunk, fixed so the summation order never changes
+	static final int CHUNK_SIZE = 1024;
+
+	// multiply probabilities together until the product gets this small, then take one log
+	static final double MIN_PRODUCT = 1e-200;
+
+	private final LMBase model;
+	private final int threads;
+
+	// null for a model trained with the HashMaps
+	private final BigramCounts counts;
+
+	/**
+	 * The perplexity of a file along with the counts it was computed from
+	 */
+	public static class Result {
+		public final double perplexity;
+		public final double logProb;
+
+		// number of scored words (every word of a sentence and </s>)
+		public final long numTokens;
+
+		// number of words that were not in the vocabulary and scored as <unk>
+		public final long numOov;
+		public final long numSentences;
+
+		Result(double logProb, long numTokens, long numOov, long numSentences){
+			this.logProb = logProb;
+			this.numTokens = numTokens;
+			this.numOov = numOov;
+			this.numSentences = numSentences;
+			this.perplexity = Math.pow(10, -logProb/numTokens);
+		}
+
+		@Override
+		public String toString(){
+			return "Perplexity: " + perplexity + " (LogProb: " + logProb + ", tokens: " + numTokens
+					+ ", OOV: " + numOov + ", sentences: " + numSentences + ")";
+		}
+	}
+
+	/**
+	 * @param model
+	 * @param threads number of threads to score on
+	 */
+	public PerplexityEvaluator(LMBase model, int threads){
+		this.model = model;
+		this.counts = model.idCounts;
+		this.threads = threads;
+	}
+
+	/**
+	 * Scores the chunks of a file on the pool and adds them up on the calling thread
+	 * @param <C> a scored chunk
+	 */
+	interface ChunkScorer<C> {
+		/**
+		 * Called on the pool threads
+		 * @param sentences lines of one chunk
+		 * @return the scored chunk
+		 */
+		C score(List<String> sentences);
+
+		/**
+		 * Called on the calling thread, with the chunks in file order
+		 * @param chunk
+		 */
+		void add(C chunk);
+	}
+
+	/**
+	 * Read the file (any corpus CorpusReader reads) in chunks of CHUNK_SIZE lines and score them
+	 * on several threads. At most twice as many chunks as threads are read and not yet added,
+	 * so memory does not grow with the file.
+	 * @param filename
+	 * @param threads
+	 * @param scorer
+	 * @throws IOException
+	 */
+	static <C> void scoreFile(String filename, int threads, final ChunkScorer<C> scorer) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CorpusReader reader = CorpusReader.open(filename);
+		try {
+			ArrayDeque<Future<C>> pending = new ArrayDeque<Future<C>>();
+			String sentence = reader.readLine();
+			while (sentence != null){
+				final ArrayList<String> sentences = new ArrayList<String>(CHUNK_SIZE);
+				while (sentence != null && sentences.size() < CHUNK_SIZE){
+					sentences.add(sentence);
+					sentence = reader.readLine();
+				}
+				if (pending.size() == 2 * threads){
+					scorer.add(await(pending.poll()));
+				}
+				pending.add(pool.submit(new Callable<C>(){
+					@Override
+					public C call() {
+						return scorer.score(sentences);
+					}
+				}));
+			}
+			while (!pending.isEmpty()){
+				scorer.add(await(pending.poll()));
+			}
+		} finally {
+			pool.shutdownNow();
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param chunk
+	 * @return the chunk once it is scored
+	 * @throws IOException if scoring was interrupted
+	 */
+	private static <C> C await(Future<C> chunk) throws IOException {
+		try {
+			return chunk.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while scoring");
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Calculate the perplexity of a file of sentences (WITHOUT <s> or </s>)
+	 * @param filename
+	 * @return result
+	 * @throws IOException
+	 */
+	public Result evaluate(String filename) throws IOException {
+		final Total total = new Total();
+		scoreFile(filename, threads, new ChunkScorer<Chunk>(){
+			@Override
+			public Chunk score(List<String> sentences) {
+				Chunk chunk = new Chunk();
+				for (String sentence : sentences){
+					chunk.score(sentence);
+				}
+				return chunk;
+			}
+
+			@Override
+			public void add(Chunk chunk) {
+				total.add(chunk);
+			}
+		});
+		return total.result();
+	}
+
+	/**
+	 * Calculate the perplexity of a list of sentences (WITHOUT <s> or </s>)
+	 * @param sentences
+	 * @return result
+	 */
+	public Result evaluate(final List<String> sentences){
+		ArrayList<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+		for (int from = 0; from < sentences.size(); from += CHUNK_SIZE){
+			final int start = from;
+			final int end = Math.min(from + CHUNK_SIZE, sentences.size());
+			tasks.add(new Callable<Chunk>(){
+				@Override
+				public Chunk call() {
+					Chunk chunk = new Chunk();
+					for (int i = start; i < end; i++){
+						chunk.score(sentences.get(i));
+					}
+					return chunk;
+				}
+			});
+		}
+		return run(tasks);
+	}
+
+	/**
+	 * Calculate the perplexity of the lines of UTF-8 text in a buffer (WITHOUT <s> or </s>),
+	 * tokenized in place (see ByteTokenizer)
+	 * The chunks are the same CHUNK_SIZE lines as for a list of sentences, so the result is the
+	 * same as evaluate(List) on the same lines
+	 * The bytes are looked up by word ID, so a model trained with the HashMaps is moved onto
+	 * word IDs first (see LMBase.getIdCounts)
+	 * @param buffer
+	 * @return result
+	 */
+	public Result evaluate(final ByteBuffer buffer){
+		final BigramCounts counts = model.getIdCounts();
+		final ByteWordTable table = new ByteWordTable(counts.getWordIndex());
+		int[] starts = ByteTokenizer.splitLines(buffer, CHUNK_SIZE);
+		ArrayList<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+		for (int c = 0; c < starts.length - 1; c++){
+			final int start = starts[c];
+			final int end = starts[c + 1];
+			tasks.add(new Callable<Chunk>(){
+				@Override
+				public Chunk call() {
+					Chunk chunk = new Chunk(counts);
+					ByteTokenizer tokenizer = new ByteTokenizer(table);
+					tokenizer.reset(buffer.duplicate(), start, end);
+					while (tokenizer.next()){
+						tokenizer.toVocabulary(counts);
+						chunk.score(tokenizer.ids, tokenizer.length);
+					}
+					chunk.numOov = tokenizer.numOov;
+					return chunk;
+				}
+			});
+		}
+		return run(tasks);
+	}
+
+	/**
+	 * Memory-map the file and calculate its perplexity with evaluate(ByteBuffer)
+	 * (which moves a model trained with the HashMaps onto word IDs)
+	 * @param filename
+	 * @return result
+	 * @throws IOException
+	 */
+	public Result evaluateMapped(String filename) throws IOException {
+		return evaluate(ByteTokenizer.map(filename));
+	}
+
+	/**
+	 * Score the chunks on the thread pool and add them up in order
+	 * @param tasks
+	 * @return result
+	 */
+	private Result run(List<Callable<Chunk>> tasks){
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Chunk>> chunks = new ArrayList<Future<Chunk>>();
+			for (Callable<Chunk> task : tasks){
+				chunks.add(pool.submit(task));
+			}
+
+			// add up the chunks in order
+			Total total = new Total();
+			for (Future<Chunk> future : chunks){
+				total.add(future.get());
+			}
+			return total.result();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Sum of the chunks, added in file order
+	 */
+	private static class Total {
+		private final CompensatedSum logProb = new CompensatedSum();
+		private long numTokens;
+		private long numOov;
+		private long numSentences;
+
+		void add(Chunk chunk){
+			logProb.add(chunk.logProb);
+			numTokens += chunk.numTokens;
+			numOov += chunk.numOov;
+			numSentences += chunk.numSentences;
+		}
+
+		Result result(){
+			return new Result(logProb.value(), numTokens, numOov, numSentences);
+		}
+	}
+
+	/**
+	 * Scores the sentences of one chunk, reusing a single ID buffer
+	 */
+	private class Chunk {
+		// null when the model is scored through the word strings
+		private final SentenceTokenizer tokenizer;
+		private final CompensatedSum logProb = new CompensatedSum();
+		private long numTokens;
+		private long numOov;
+		private long numSentences;
+
+		Chunk(){
+			this(counts);
+		}
+
+		/**
+		 * @param counts counts to tokenize with, or null to score the word strings
+		 */
+		Chunk(BigramCounts counts){
+			tokenizer = counts == null ? null : new SentenceTokenizer(counts);
+		}
+
+		/**
+		 * Add the log probability of a sentence to the chunk
+		 * @param sentence
+		 */
+		void score(String sentence){
+			if (tokenizer == null){
+				scoreWords(sentence);
+				return;
+			}
+			int length = tokenizer.tokenize(sentence);
+			numOov = tokenizer.numOov;
+			score(tokenizer.ids, length);
+		}
+
+		/**
+		 * Score a sentence of a model trained with the HashMaps, split like the training
+		 * sentences, with the words that are not in the vocabulary as <unk>
+		 * @param sentence
+		 */
+		private void scoreWords(String sentence){
+			String[] words = (model.start + " " + sentence + " " + model.end).split(" ");
+			for (int i = 1; i < words.length - 1; i++){
+				if (!model.isInVocabulary(words[i])){
+					words[i] = model.unk;
+					numOov++;
+				}
+			}
+			numTokens += words.length - 1;
+			numSentences++;
+
+			double product = 1.0;
+			for (int i = 0; i < words.length - 1; i++){
+				product = multiply(product, model.getBigramProb(words[i], words[i+1]));
+			}
+			logProb.add(Math.log10(product));
+		}
+
+		/**
+		 * Add the log probability of a tokenized sentence to the chunk
+		 * @param ids word IDs starting with <s> and ending with </s>
+		 * @param length
+		 */
+		void score(int[] ids, int length){
+			numTokens += length - 1;
+			numSentences++;
+
+			// take the log of the product of several probabilities at once
+			double product = 1.0;
+			for (int i = 0; i < length - 1; i++){
+				product = multiply(product, model.getBigramProb(ids[i], ids[i+1]));
+			}
+			logProb.add(Math.log10(product));
+		}
+
+		/**
+		 * @param product
+		 * @param prob
+		 * @return the product times prob, or 1 once its log has been added
+		 */
+		private double multiply(double product, double prob){
+			if (prob < MIN_PRODUCT){
+				logProb.add(Math.log10(prob));
+				return product;
+			}
+			product *= prob;
+			if (product < MIN_PRODUCT){
+				logProb.add(Math.log10(product));
+				return 1.0;
+			}
+			return product;
+		}
+	}
+}
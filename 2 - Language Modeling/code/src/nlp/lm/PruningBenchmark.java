@@ -0,0 +1,60 @@
+package nlp.lm;
+
+import java.io.IOException;
+
+/**
+ * Memory and perplexity of the counts for a few count cutoffs and memory budgets
+ * (see IdBigramCounts.prune and IdBigramCounts.pruneToFit)
+ *
+ * The mass of the pruned bigrams goes to the unseen words, so the average sum of
+ * P(w | context) over some contexts is printed as well and should stay at 1.
+ * A unigram cutoff turns more test words into <unk>, which lowers the perplexity without
+ * making the model better, so only perplexities with the same unigram cutoff compare.
+ *
+ * Usage: PruningBenchmark [training file] [test file]
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class PruningBenchmark {
+
+	/**
+	 * Print the memory and the perplexity of both models on the counts
+	 * @param name
+	 * @param counts
+	 * @param testing
+	 * @throws IOException
+	 */
+	private static void report(String name, IdBigramCounts counts, String testing) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		LambdaLMModel lambda = new LambdaLMModel(counts, 0.01);
+		DiscountLMModel discount = new DiscountLMModel(counts, 0.5);
+		discount.compile();
+
+		System.out.println(String.format("%-22s %6d KB %6d words   lambda = 0.01: %8.2f (sum %.3f)   discount = 0.5: %8.2f (sum %.3f)",
+				name, counts.memoryBytes() / 1024, counts.getVocabularySize(),
+				lambda.evaluatePerplexity(testing, threads).perplexity, SketchBenchmark.averageSum(lambda, counts),
+				discount.evaluatePerplexity(testing, threads).perplexity, SketchBenchmark.averageSum(discount, counts)));
+	}
+
+	public static void main(String[] args) throws IOException {
+		String training = args.length > 0 ? args[0] : "src/sentences.development";
+		String testing = args.length > 1 ? args[1] : "src/sentences.testing";
+
+		IdBigramCounts counts = LMBase.trainCounts(training);
+		System.out.println("Training on " + training + ", perplexity on " + testing);
+		report("no cutoffs", counts, testing);
+
+		int[][] cutoffs = {{1, 2}, {2, 2}, {1, 3}, {3, 3}, {5, 5}};
+		for (int[] cutoff : cutoffs){
+			report("cutoffs " + cutoff[0] + "/" + cutoff[1], counts.prune(cutoff[0], cutoff[1]), testing);
+		}
+
+		// the per word arrays do not shrink, so much smaller budgets cannot be met
+		for (int fraction = 2; fraction <= 4; fraction++){
+			long budget = counts.memoryBytes() / fraction;
+			report("fit in " + budget / 1024 + " KB", counts.pruneToFit(budget), testing);
+		}
+	}
+}
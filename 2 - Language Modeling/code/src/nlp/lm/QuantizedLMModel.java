@@ -0,0 +1,418 @@
+package nlp.lm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Frozen copy of a trained LambdaLMModel or DiscountLMModel for serving, with every
+ * probability stored as an 8 or 16 bit code instead of a double
+ *
+ * Both models have a backoff form, so the copy stores
+ * - the log probability of every seen bigram, in a sorted successor list per context word
+ * - the log backoff weight of every context word
+ * - the log backoff probability of every word
+ * and unseen bigrams get weight(first) * prob(second) as in the original model.
+ * Each of the three has its own codebook (see LogProbCodebook), so a seen bigram costs
+ * 4 bytes for the successor ID plus 1 or 2 bytes for the code, instead of the 8 byte double.
+ *
+ * The bigram counts of the original model are not kept. The copy only keeps the word index
+ * (shared with the original model), the vocabulary as a bitset and the per-word totals, and
+ * serves them together with the successor lists as its counts (see ServingCounts), so
+ * tokenizing, logProb, the batch methods and the generators all work as before. What needs the
+ * bigram counts themselves (saveCounts, training, update, SmoothingSweep, SmoothingTuner)
+ * throws IllegalStateException / IllegalArgumentException; use the original model for those.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class QuantizedLMModel extends LMBase implements LMModel {
+
+	private final int bits;
+	private final int numWords;
+
+	// successors of word w are successorIds[successorStart[w] .. successorStart[w+1]-1], sorted
+	private final int[] successorStart;
+	private final int[] successorIds;
+
+	private final LogProbCodebook seenCodebook;
+	private final LogProbCodebook weightCodebook;
+	private final LogProbCodebook probCodebook;
+	private final Codes seenCodes;
+	private final Codes weightCodes;
+	private final Codes probCodes;
+
+	// the vocabulary and the seen bigrams, in place of the counts
+	private final ServingCounts serving;
+
+	/**
+	 * Codes of 8 or 16 bits, in a byte[] or a char[] (char because it is unsigned)
+	 */
+	private static class Codes {
+		private final byte[] bytes;
+		private final char[] chars;
+
+		Codes(int size, int bits){
+			bytes = bits == 8 ? new byte[size] : null;
+			chars = bits == 8 ? null : new char[size];
+		}
+
+		int get(int i){
+			return bytes != null ? bytes[i] & 0xFF : chars[i];
+		}
+
+		void set(int i, int code){
+			if (bytes != null){
+				bytes[i] = (byte) code;
+			}
+			else {
+				chars[i] = (char) code;
+			}
+		}
+
+		long memoryBytes(){
+			return bytes != null ? bytes.length : (long) chars.length * Character.BYTES;
+		}
+	}
+
+	/**
+	 * What the copy keeps of the counts: the word index, the vocabulary, the per-word totals
+	 * (O(vocabulary)) and which bigrams were seen. A seen bigram has a count of 1, the bigram
+	 * counts themselves are gone.
+	 */
+	static class ServingCounts implements BigramCounts {
+		private final WordIndex index;
+		private final BitSet vocabulary;
+		private final int vocabularySize;
+		private final double totalNumWords;
+		private final long[] unigramCounts;
+		private final long[] bigramTotals;
+
+		// null if nothing was pruned
+		private final long[] prunedCounts;
+		private final int[] successorStart;
+		private final int[] successorIds;
+
+		ServingCounts(BigramCounts counts, int[] successorStart, int[] successorIds){
+			index = counts.getWordIndex();
+			int numWords = successorStart.length - 1;
+			vocabulary = new BitSet(numWords);
+			unigramCounts = new long[numWords];
+			bigramTotals = new long[numWords];
+			long[] pruned = new long[numWords];
+			boolean anyPruned = false;
+			for (int id = 0; id < numWords; id++){
+				if (counts.isInVocabulary(id)){
+					vocabulary.set(id);
+				}
+				unigramCounts[id] = (long) counts.getUnigramCount(id);
+				bigramTotals[id] = (long) counts.getBigramTotal(id);
+				pruned[id] = (long) counts.getPrunedCount(id);
+				anyPruned |= pruned[id] > 0;
+			}
+			prunedCounts = anyPruned ? pruned : null;
+			vocabularySize = counts.getVocabularySize();
+			totalNumWords = counts.getTotalNumWords();
+			this.successorStart = successorStart;
+			this.successorIds = successorIds;
+		}
+
+		/**
+		 * @param first
+		 * @param second
+		 * @return position of the bigram in successorIds, negative if it was not seen
+		 */
+		int find(int first, int second){
+			if (first < 0 || second < 0 || first >= successorStart.length - 1){
+				return -1;
+			}
+			return Arrays.binarySearch(successorIds, successorStart[first], successorStart[first + 1], second);
+		}
+
+		long memoryBytes(){
+			long bytes = vocabulary.size() / Byte.SIZE;
+			bytes += (long) (unigramCounts.length + bigramTotals.length) * Long.BYTES;
+			return prunedCounts != null ? bytes + (long) prunedCounts.length * Long.BYTES : bytes;
+		}
+
+		@Override
+		public WordIndex getWordIndex() {
+			return index;
+		}
+
+		@Override
+		public double getTotalNumWords() {
+			return totalNumWords;
+		}
+
+		@Override
+		public int getVocabularySize() {
+			return vocabularySize;
+		}
+
+		@Override
+		public boolean isInVocabulary(int id) {
+			return id >= 0 && vocabulary.get(id);
+		}
+
+		@Override
+		public double getUnigramCount(int id) {
+			return id < 0 || id >= unigramCounts.length ? 0 : unigramCounts[id];
+		}
+
+		@Override
+		public double getBigramTotal(int first) {
+			return first < 0 || first >= bigramTotals.length ? 0 : bigramTotals[first];
+		}
+
+		/**
+		 * @return 1 if the bigram was seen, 0 if not
+		 */
+		@Override
+		public double getBigramCount(int first, int second) {
+			return find(first, second) >= 0 ? 1 : 0;
+		}
+
+		@Override
+		public double getPrunedCount(int first) {
+			return prunedCounts == null || first < 0 || first >= prunedCounts.length ? 0 : prunedCounts[first];
+		}
+
+		@Override
+		public int getNumSuccessors(int first) {
+			if (first < 0 || first >= successorStart.length - 1){
+				return 0;
+			}
+			return successorStart[first + 1] - successorStart[first];
+		}
+
+		@Override
+		public int getSuccessor(int first, int k) {
+			return successorIds[successorStart[first] + k];
+		}
+
+		/**
+		 * @return 1, the successors were all seen
+		 */
+		@Override
+		public double getSuccessorCount(int first, int k) {
+			return 1;
+		}
+	}
+
+	/**
+	 * Quantize a trained model
+	 * @param model a model with a backoff form (LambdaLMModel or DiscountLMModel)
+	 * @param bits 8 or 16
+	 */
+	public QuantizedLMModel(LMBase model, int bits){
+		if (bits != 8 && bits != 16){
+			throw new IllegalArgumentException("bits must be 8 or 16, not " + bits);
+		}
+		if (!model.hasBackoffForm()){
+			throw new IllegalArgumentException(model.getClass().getSimpleName() + " has no backoff form");
+		}
+		this.bits = bits;
+		BigramCounts counts = model.getIdCounts();
+		numWords = counts.getWordIndex().size();
+
+		// sorted successor lists, so a lookup is a binary search
+		successorStart = new int[numWords + 1];
+		for (int first = 0; first < numWords; first++){
+			successorStart[first + 1] = successorStart[first] + counts.getNumSuccessors(first);
+		}
+		successorIds = new int[successorStart[numWords]];
+		for (int first = 0; first < numWords; first++){
+			int start = successorStart[first];
+			for (int k = 0; k < successorStart[first + 1] - start; k++){
+				successorIds[start + k] = counts.getSuccessor(first, k);
+			}
+			Arrays.sort(successorIds, start, successorStart[first + 1]);
+		}
+
+		// the log probabilities as the model has them, weighted by how often they were seen in training
+		double[] seenLogProbs = new double[successorIds.length];
+		double[] seenWeights = new double[successorIds.length];
+		double[] weightLogProbs = new double[numWords];
+		double[] weightWeights = new double[numWords];
+		double[] probLogProbs = new double[numWords];
+		double[] probWeights = new double[numWords];
+		for (int first = 0; first < numWords; first++){
+			for (int i = successorStart[first]; i < successorStart[first + 1]; i++){
+				seenLogProbs[i] = Math.log10(model.getBigramProb(first, successorIds[i]));
+				seenWeights[i] = counts.getBigramCount(first, successorIds[i]);
+			}
+			weightLogProbs[first] = Math.log10(model.getBackoffWeight(first));
+			weightWeights[first] = counts.getBigramTotal(first) + 1;
+			probLogProbs[first] = Math.log10(model.getBackoffProb(first));
+			probWeights[first] = counts.getUnigramCount(first) + 1;
+		}
+
+		int numCodes = 1 << bits;
+		seenCodebook = LogProbCodebook.train(seenLogProbs, seenWeights, numCodes);
+		weightCodebook = LogProbCodebook.train(weightLogProbs, weightWeights, numCodes);
+		probCodebook = LogProbCodebook.train(probLogProbs, probWeights, numCodes);
+		seenCodes = encode(seenCodebook, seenLogProbs, bits);
+		weightCodes = encode(weightCodebook, weightLogProbs, bits);
+		probCodes = encode(probCodebook, probLogProbs, bits);
+
+		// serve without the original counts, the word sets are only used without counts
+		serving = new ServingCounts(counts, successorStart, successorIds);
+		useCounts(serving);
+		allWords = null;
+		vocabulary = null;
+	}
+
+	private static Codes encode(LogProbCodebook codebook, double[] logProbs, int bits){
+		Codes codes = new Codes(logProbs.length, bits);
+		for (int i = 0; i < logProbs.length; i++){
+			codes.set(i, codebook.encode(logProbs[i]));
+		}
+		return codes;
+	}
+
+	/**
+	 * Given a bigram, return its (quantized) probability
+	 * @param first
+	 * @param second
+	 * @return probability
+	 */
+	@Override
+	public double getBigramProb(String first, String second) {
+		WordIndex index = getWordIndex();
+		return getBigramProb(index.getId(first), index.getId(second));
+	}
+
+	/**
+	 * Same as getBigramProb(String, String) for word IDs
+	 * @param first
+	 * @param second
+	 * @return probability, 0 if either word has no ID
+	 */
+	@Override
+	public double getBigramProb(int first, int second) {
+		if (first < 0 || second < 0 || first >= numWords || second >= numWords){
+			return 0;
+		}
+		int position = serving.find(first, second);
+		LMMetrics.bigram(position >= 0);
+		if (position >= 0){
+			return seenCodebook.getProb(seenCodes.get(position));
+		}
+		return getBackoffWeight(first) * getBackoffProb(second);
+	}
+
+	@Override
+	public boolean hasBackoffForm(){
+		return true;
+	}
+
+	@Override
+	public double getBackoffWeight(int first){
+		return weightCodebook.getProb(weightCodes.get(first));
+	}
+
+	@Override
+	public double getBackoffProb(int second){
+		return probCodebook.getProb(probCodes.get(second));
+	}
+
+	/**
+	 * The quantized tables cannot take new counts, quantize the updated model again instead
+	 * @throws IllegalStateException always
+	 */
+	@Override
+	public void update(List<String> sentences){
+		throw new IllegalStateException("quantized models cannot be updated, update the original model and quantize it again");
+	}
+
+	/**
+	 * @throws IllegalStateException always, see update(List)
+	 */
+	@Override
+	public void update(String filename) throws IOException {
+		throw new IllegalStateException("quantized models cannot be updated, update the original model and quantize it again");
+	}
+
+	/**
+	 * The quantized tables belong to the model they were made from, quantize a newly trained model instead
+	 * @throws IllegalStateException always
+	 */
+	@Override
+	public void trainModel(String filename, boolean useIds){
+		throw new IllegalStateException("quantized models cannot be trained, quantize a trained model");
+	}
+
+	/**
+	 * @throws IllegalStateException always, see trainModel(String, boolean)
+	 */
+	@Override
+	public void trainModelParallel(String filename, int threads){
+		throw new IllegalStateException("quantized models cannot be trained, quantize a trained model");
+	}
+
+	/**
+	 * The bigram counts are not kept, so there is nothing to snapshot
+	 * @throws IllegalStateException always, save the counts of the original model instead
+	 */
+	@Override
+	public void saveCounts(String filename){
+		throw new IllegalStateException("quantized models do not keep the bigram counts, save the original model");
+	}
+
+	/**
+	 * @return number of bits per code
+	 */
+	public int getBits(){
+		return bits;
+	}
+
+	/**
+	 * @return approximate heap size of the model in bytes: the quantized tables and the vocabulary
+	 * (not including the word index, which is shared with the original model)
+	 */
+	public long memoryBytes(){
+		long bytes = (long) (successorStart.length + successorIds.length) * Integer.BYTES;
+		bytes += seenCodes.memoryBytes() + weightCodes.memoryBytes() + probCodes.memoryBytes();
+		bytes += seenCodebook.memoryBytes() + weightCodebook.memoryBytes() + probCodebook.memoryBytes();
+		return bytes + serving.memoryBytes();
+	}
+
+	/**
+	 * @return heap size of the same model with a double per probability instead of a code
+	 */
+	public long unquantizedMemoryBytes(){
+		long bytes = (long) (successorStart.length + successorIds.length) * Integer.BYTES;
+		return bytes + (long) (successorIds.length + 2 * numWords) * Double.BYTES + serving.memoryBytes();
+	}
+
+	/**
+	 * Memory and perplexity drift of 8 and 16 bit copies of both models
+	 * @param args [training file] [test file]
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		String training = args.length > 0 ? args[0] : "src/sentences.development";
+		String testing = args.length > 1 ? args[1] : "src/sentences.testing";
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		IdBigramCounts counts = trainCounts(training);
+		LMBase[] models = {new LambdaLMModel(counts, 0.01), new DiscountLMModel(counts, 0.5)};
+		String[] names = {"lambda = 0.01", "discount = 0.5"};
+		System.out.println("Training on " + training + ", perplexity on " + testing);
+
+		for (int m = 0; m < models.length; m++){
+			double perplexity = models[m].evaluatePerplexity(testing, threads).perplexity;
+			System.out.println(String.format("%-15s doubles: %8.4f", names[m], perplexity));
+			for (int bits = 8; bits <= 16; bits += 8){
+				QuantizedLMModel quantized = new QuantizedLMModel(models[m], bits);
+				double quantizedPerplexity = quantized.evaluatePerplexity(testing, threads).perplexity;
+				System.out.println(String.format("%-15s %2d bits: %8.4f (drift %+.4f%%)   %6d KB instead of %6d KB",
+						"", bits, quantizedPerplexity, 100 * (quantizedPerplexity - perplexity) / perplexity,
+						quantized.memoryBytes() / 1024, quantized.unquantizedMemoryBytes() / 1024));
+			}
+		}
+	}
+}
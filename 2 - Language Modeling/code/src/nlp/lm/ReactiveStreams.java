@@ -0,0 +1,86 @@
+package nlp.lm;
+
+/**
+ * The publisher / subscriber interfaces of Reactive Streams, the same as
+ * java.util.concurrent.Flow (which is not there before Java 9)
+ *
+ * A Subscriber gets nothing until it asks for it: the publisher sends at most as many
+ * onNext calls as the subscriber has request()ed, so a slow subscriber holds back a fast
+ * publisher (backpressure) instead of letting items pile up. After onComplete or onError
+ * nothing else is sent. Calls to one subscriber never overlap.
+ *
+ * Moving to Flow later is a matter of swapping the imports.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public final class ReactiveStreams {
+
+	private ReactiveStreams(){
+	}
+
+	/**
+	 * Produces items for the subscribers that ask for them
+	 * @param <T> item type
+	 */
+	public interface Publisher<T> {
+		/**
+		 * Start sending to the subscriber, beginning with subscriber.onSubscribe
+		 * @param subscriber
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receives items, at most as many as it requested
+	 * @param <T> item type
+	 */
+	public interface Subscriber<T> {
+		/**
+		 * Called once before anything else, nothing is sent until subscription.request is called
+		 * @param subscription
+		 */
+		void onSubscribe(Subscription subscription);
+
+		/**
+		 * @param item the next item
+		 */
+		void onNext(T item);
+
+		/**
+		 * The publisher failed, nothing more will be sent
+		 * @param throwable
+		 */
+		void onError(Throwable throwable);
+
+		/**
+		 * Every item has been sent
+		 */
+		void onComplete();
+	}
+
+	/**
+	 * The link between one publisher and one subscriber
+	 */
+	public interface Subscription {
+		/**
+		 * Allow n more onNext calls
+		 * @param n greater than 0 (Long.MAX_VALUE for no limit)
+		 */
+		void request(long n);
+
+		/**
+		 * Stop sending, items already on their way may still arrive
+		 */
+		void cancel();
+	}
+
+	/**
+	 * Subscriber of Ts that publishes Rs
+	 * @param <T> items it takes
+	 * @param <R> items it sends
+	 */
+	public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+	}
+}
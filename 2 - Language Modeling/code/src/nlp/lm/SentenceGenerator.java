@@ -0,0 +1,519 @@
+package nlp.lm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Generates sentences over word IDs: greedy, beam search, top-k and top-p (nucleus) sampling
+ *
+ * Every step walks the distribution of the context word from the most to the least likely
+ * word and stops as soon as it has what it needs (1 word for greedy, beamWidth words per
+ * beam, k words, or mass p), so it touches only the top candidates:
+ * - the seen successors of a context word are sorted by probability once and kept in an
+ *   LRU cache of bounded size
+ * - for models with a backoff form (LMBase.hasBackoffForm) every unseen word has probability
+ *   backoffWeight(context) * backoffProb(word), so one list of all words sorted by backoff
+ *   probability is shared by all contexts and merged with the seen successors
+ * Other models get one list over the whole vocabulary per context.
+ *
+ * <unk>, %NUMBER% and <s> are never generated, and every beam (or sampled sentence) keeps a
+ * set of its words so no word is used twice. Sentences end at </s> or after MAX_WORDS words.
+ * Beam search returns the finished sentence with the best log probability per word.
+ *
+ * A generator is not thread safe (the cache and the random are not locked), use one per
+ * thread or lock it.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class SentenceGenerator {
+
+	// default number of sorted context lists kept in the cache
+	public static final int DEFAULT_CACHE_SIZE = 4096;
+
+	// sentences stop at </s> or after this many words
+	private static final int MAX_WORDS = 30;
+
+	private final LMBase model;
+	private final BigramCounts counts;
+	private final SplittableRandom random;
+	private final WordIndex index;
+	private final int number;
+
+	// every word that may be generated by backoff probability, highest first (null without a backoff form)
+	private final int[] backoffOrder;
+	private final double[] backoffProbs;
+
+	// context ID -> sorted list, least recently used first
+	private final LinkedHashMap<Integer, SortedContext> cache;
+
+	/**
+	 * The words that may follow one context word, most likely first
+	 */
+	private static class SortedContext {
+		int[] words;
+		double[] probs;
+
+		// weight of the shared backoff list
+		double backoffWeight;
+	}
+
+	/**
+	 * Walks the distribution of a context word from the most to the least likely word,
+	 * merging the sorted seen successors with the shared backoff list
+	 */
+	private class Candidates {
+		private final int context;
+		private final SortedContext sorted;
+		private int seenPosition;
+		private int backoffPosition;
+
+		// the current word and its probability, set by next()
+		int word;
+		double prob;
+
+		Candidates(int context){
+			this.context = context;
+			sorted = getSorted(context);
+		}
+
+		/**
+		 * Move on to the next most likely word
+		 * @return false once no word with a positive probability is left
+		 */
+		boolean next(){
+			double seenProb = seenPosition < sorted.words.length ? sorted.probs[seenPosition] : 0;
+			double unseenProb = 0;
+			if (backoffOrder != null){
+				// the seen successors are in the sorted list already
+				while (backoffPosition < backoffOrder.length && counts.getBigramCount(context, backoffOrder[backoffPosition]) > 0){
+					backoffPosition++;
+				}
+				if (backoffPosition < backoffOrder.length){
+					unseenProb = weight(sorted.backoffWeight * backoffProbs[backoffPosition]);
+				}
+			}
+			if (seenProb <= 0 && unseenProb <= 0){
+				return false;
+			}
+			if (seenProb >= unseenProb){
+				word = sorted.words[seenPosition++];
+				prob = seenProb;
+			}
+			else {
+				word = backoffOrder[backoffPosition++];
+				prob = unseenProb;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Set of word IDs of one sentence, open addressing (0 is empty, IDs are stored + 1)
+	 * Sentences are at most MAX_WORDS long, so it never has to grow
+	 */
+	private static class WordSet {
+		private final int[] slots;
+
+		WordSet(){
+			slots = new int[Integer.highestOneBit(MAX_WORDS) * 4];
+		}
+
+		WordSet(WordSet other){
+			slots = other.slots.clone();
+		}
+
+		boolean contains(int id){
+			int mask = slots.length - 1;
+			for (int slot = BigramCountTable.hash(id) & mask; slots[slot] != 0; slot = (slot + 1) & mask){
+				if (slots[slot] == id + 1){
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void add(int id){
+			int mask = slots.length - 1;
+			int slot = BigramCountTable.hash(id) & mask;
+			while (slots[slot] != 0 && slots[slot] != id + 1){
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = id + 1;
+		}
+	}
+
+	/**
+	 * One partial sentence of the beam
+	 */
+	private static class Beam {
+		final int[] words;
+		final double logProb;
+		final WordSet used;
+
+		Beam(int[] words, double logProb, WordSet used){
+			this.words = words;
+			this.logProb = logProb;
+			this.used = used;
+		}
+
+		int last(){
+			return words[words.length - 1];
+		}
+
+		Beam extend(int word, double prob){
+			int[] longer = Arrays.copyOf(words, words.length + 1);
+			longer[words.length] = word;
+			WordSet set = new WordSet(used);
+			set.add(word);
+			return new Beam(longer, logProb + Math.log10(prob), set);
+		}
+
+		/**
+		 * @return log probability per generated word, including </s>
+		 */
+		double score(){
+			return logProb / (words.length - 1);
+		}
+	}
+
+	/**
+	 * @param model a trained model
+	 * @param seed seed of the random numbers, the same seed gives the same sentences
+	 */
+	public SentenceGenerator(LMBase model, long seed){
+		this(model, seed, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param model a trained model
+	 * @param seed seed of the random numbers, the same seed gives the same sentences
+	 * @param cacheSize maximum number of sorted context lists kept
+	 * @throws IllegalArgumentException for a model backed by approximate counts, which do not list
+	 * every seen bigram, so some would get neither the seen nor the backoff mass
+	 */
+	public SentenceGenerator(LMBase model, long seed, final int cacheSize){
+		this.model = model;
+		this.counts = model.getIdCounts();
+		if (counts instanceof SketchBigramCounts){
+			throw new IllegalArgumentException("approximate counts do not list every seen bigram");
+		}
+		this.random = new SplittableRandom(seed);
+		index = counts.getWordIndex();
+		number = index.getId("%NUMBER%");
+
+		if (model.hasBackoffForm()){
+			final int[] words = allowedWords();
+			final double[] probs = new double[words.length];
+			for (int i = 0; i < words.length; i++){
+				probs[i] = weight(model.getBackoffProb(words[i]));
+			}
+			Integer[] order = sortByProb(probs);
+			backoffOrder = new int[words.length];
+			backoffProbs = new double[words.length];
+			for (int i = 0; i < order.length; i++){
+				backoffOrder[i] = words[order[i]];
+				backoffProbs[i] = probs[order[i]];
+			}
+		}
+		else {
+			backoffOrder = null;
+			backoffProbs = null;
+		}
+
+		cache = new LinkedHashMap<Integer, SortedContext>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, SortedContext> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * The k most likely words after a context word (only words that may be generated)
+	 * @param context
+	 * @param k
+	 * @param words filled with the word IDs, most likely first (at least k long)
+	 * @param probs filled with their probabilities (at least k long)
+	 * @return number of words filled in, at most k
+	 */
+	public int nextWords(int context, int k, int[] words, double[] probs){
+		Candidates candidates = new Candidates(context);
+		int n = 0;
+		while (n < k && candidates.next()){
+			words[n] = candidates.word;
+			probs[n++] = candidates.prob;
+		}
+		return n;
+	}
+
+	/**
+	 * Take the most likely word at every step
+	 * @return sentence
+	 */
+	public String greedy(){
+		return beamSearch(1);
+	}
+
+	/**
+	 * Keep the beamWidth most likely partial sentences at every step
+	 * @param beamWidth
+	 * @return the finished sentence with the best log probability per word
+	 */
+	public String beamSearch(int beamWidth){
+		WordSet start = new WordSet();
+		ArrayList<Beam> beams = new ArrayList<Beam>();
+		beams.add(new Beam(new int[] {WordIndex.START}, 0, start));
+		Beam best = null;
+
+		for (int h = 0; h < MAX_WORDS && !beams.isEmpty(); h++){
+			// the beamWidth best words after every beam
+			ArrayList<Beam> expansions = new ArrayList<Beam>();
+			for (Beam beam : beams){
+				Candidates candidates = new Candidates(beam.last());
+				int taken = 0;
+				while (taken < beamWidth && candidates.next()){
+					if (!beam.used.contains(candidates.word)){
+						expansions.add(beam.extend(candidates.word, candidates.prob));
+						taken++;
+					}
+				}
+			}
+			Collections.sort(expansions, new Comparator<Beam>(){
+				@Override
+				public int compare(Beam a, Beam b) {
+					return Double.compare(b.logProb, a.logProb);
+				}
+			});
+
+			// finished sentences leave the beam
+			beams.clear();
+			for (int i = 0; i < Math.min(beamWidth, expansions.size()); i++){
+				Beam beam = expansions.get(i);
+				if (beam.last() != WordIndex.END){
+					beams.add(beam);
+				}
+				else if (best == null || beam.score() > best.score()){
+					best = beam;
+				}
+			}
+		}
+
+		// nothing finished within MAX_WORDS, so take the best partial sentence
+		if (best == null){
+			if (beams.isEmpty()){
+				return "";
+			}
+			best = beams.get(0);
+		}
+		return toSentence(best.words, best.words.length);
+	}
+
+	/**
+	 * Sample every word from the k most likely words
+	 * @param k
+	 * @return sentence
+	 */
+	public String sampleTopK(int k){
+		return sample(k, 1.0);
+	}
+
+	/**
+	 * Sample every word from the most likely words that together have probability p
+	 * @param p
+	 * @return sentence
+	 */
+	public String sampleTopP(double p){
+		return sample(Integer.MAX_VALUE, p);
+	}
+
+	/**
+	 * Sample every word from the most likely words, at most k of them and stopping
+	 * once they have mass p, in proportion to their probabilities
+	 * @param k
+	 * @param p
+	 * @return sentence
+	 */
+	private String sample(int k, double p){
+		int[] sentence = new int[MAX_WORDS + 1];
+		sentence[0] = WordIndex.START;
+		int length = 1;
+		WordSet used = new WordSet();
+
+		int[] topWords = new int[16];
+		double[] topProbs = new double[16];
+		while (length <= MAX_WORDS){
+			Candidates candidates = new Candidates(sentence[length - 1]);
+			int n = 0;
+			double mass = 0;
+			while (n < k && mass < p && candidates.next()){
+				if (used.contains(candidates.word)){
+					continue;
+				}
+				if (n == topWords.length){
+					topWords = Arrays.copyOf(topWords, n * 2);
+					topProbs = Arrays.copyOf(topProbs, n * 2);
+				}
+				topWords[n] = candidates.word;
+				topProbs[n] = candidates.prob;
+				mass += candidates.prob;
+				n++;
+			}
+			if (n == 0){
+				break;
+			}
+
+			double u = random.nextDouble() * mass;
+			int choice = 0;
+			while (choice < n - 1 && u >= topProbs[choice]){
+				u -= topProbs[choice];
+				choice++;
+			}
+			int word = topWords[choice];
+			sentence[length++] = word;
+			if (word == WordIndex.END){
+				break;
+			}
+			used.add(word);
+		}
+		return toSentence(sentence, length);
+	}
+
+	/**
+	 * @param words word IDs starting with <s>
+	 * @param length
+	 * @return the words without <s> and </s>, separated by spaces
+	 */
+	private String toSentence(int[] words, int length){
+		StringBuilder sentence = new StringBuilder();
+		for (int i = 1; i < length; i++){
+			if (words[i] == WordIndex.END){
+				break;
+			}
+			if (sentence.length() > 0){
+				sentence.append(' ');
+			}
+			sentence.append(index.getWord(words[i]));
+		}
+		return sentence.toString();
+	}
+
+	/**
+	 * @return number of sorted context lists in the cache
+	 */
+	public int cacheSize(){
+		return cache.size();
+	}
+
+	/**
+	 * Get the sorted list of a context word from the cache, building it if needed
+	 * @param context
+	 * @return sorted list
+	 */
+	private SortedContext getSorted(int context){
+		SortedContext sorted = cache.get(context);
+		if (sorted == null){
+			sorted = model.hasBackoffForm() ? sortSuccessors(context) : sortVocabulary(context);
+			cache.put(context, sorted);
+		}
+		return sorted;
+	}
+
+	/**
+	 * The seen successors that may be generated, by probability
+	 */
+	private SortedContext sortSuccessors(int context){
+		int numSuccessors = counts.getNumSuccessors(context);
+		int[] words = new int[numSuccessors];
+		int n = 0;
+		for (int k = 0; k < numSuccessors; k++){
+			int word = counts.getSuccessor(context, k);
+			if (isAllowed(word)){
+				words[n++] = word;
+			}
+		}
+		SortedContext sorted = sort(context, Arrays.copyOf(words, n));
+		sorted.backoffWeight = weight(model.getBackoffWeight(context));
+		return sorted;
+	}
+
+	/**
+	 * Every word that may be generated, by probability, O(V log V)
+	 */
+	private SortedContext sortVocabulary(int context){
+		return sort(context, allowedWords());
+	}
+
+	private SortedContext sort(int context, int[] words){
+		double[] probs = new double[words.length];
+		for (int i = 0; i < words.length; i++){
+			probs[i] = weight(model.getBigramProb(context, words[i]));
+		}
+		Integer[] order = sortByProb(probs);
+		SortedContext sorted = new SortedContext();
+		sorted.words = new int[words.length];
+		sorted.probs = new double[words.length];
+		for (int i = 0; i < order.length; i++){
+			sorted.words[i] = words[order[i]];
+			sorted.probs[i] = probs[order[i]];
+		}
+		return sorted;
+	}
+
+	/**
+	 * @param probs
+	 * @return the positions of probs, highest probability first
+	 */
+	private static Integer[] sortByProb(final double[] probs){
+		Integer[] order = new Integer[probs.length];
+		for (int i = 0; i < order.length; i++){
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>(){
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(probs[b], probs[a]);
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * @return every word that may be generated, including </s>
+	 */
+	private int[] allowedWords(){
+		int[] words = new int[index.size()];
+		int n = 0;
+		for (int id = 0; id < index.size(); id++){
+			if (isAllowed(id)){
+				words[n++] = id;
+			}
+		}
+		return Arrays.copyOf(words, n);
+	}
+
+	/**
+	 * @param id
+	 * @return true if the word may be generated
+	 */
+	private boolean isAllowed(int id){
+		return id >= WordIndex.END && counts.isInVocabulary(id) && id != number;
+	}
+
+	/**
+	 * A NaN or negative probability is never generated
+	 * @param prob
+	 * @return prob, or 0
+	 */
+	private static double weight(double prob){
+		return prob > 0 ? prob : 0;
+	}
+}
@@ -0,0 +1,67 @@
+package nlp.lm;
+
+/**
+ * Turns a sentence into word IDs between <s> and </s> in a reusable buffer
+ *
+ * Words are split on single spaces like String.split(" ") and words that are not in
+ * the vocabulary of the counts become <unk>. Used by the perplexity evaluator and the
+ * smoothing sweep so both score exactly the same tokens.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+class SentenceTokenizer {
+
+	private final BigramCounts counts;
+	private final WordIndex index;
+
+	// IDs of the last sentence, valid up to the length returned by tokenize
+	int[] ids = new int[64];
+
+	// number of words that were not in the vocabulary, over all sentences so far
+	long numOov;
+
+	SentenceTokenizer(BigramCounts counts){
+		this.counts = counts;
+		this.index = counts.getWordIndex();
+	}
+
+	/**
+	 * Turn the sentence into word IDs between <s> and </s>, with <unk> for words
+	 * not in the vocabulary
+	 * @param sentence
+	 * @return number of IDs in the buffer
+	 */
+	int tokenize(String sentence){
+		int length = 0;
+		ids[length++] = WordIndex.START;
+
+		int from = 0;
+		while (true){
+			int to = sentence.indexOf(' ', from);
+			if (to < 0){
+				to = sentence.length();
+			}
+			int id = index.getId(sentence.substring(from, to));
+			if (!counts.isInVocabulary(id)){
+				id = WordIndex.UNK;
+				numOov++;
+			}
+			if (length + 1 >= ids.length){
+				int[] bigger = new int[ids.length * 2];
+				System.arraycopy(ids, 0, bigger, 0, length);
+				ids = bigger;
+			}
+			ids[length++] = id;
+
+			if (to == sentence.length()){
+				break;
+			}
+			from = to + 1;
+		}
+
+		ids[length++] = WordIndex.END;
+		return length;
+	}
+}
@@ -0,0 +1,80 @@
+package nlp.lm;
+
+import java.io.IOException;
+
+/**
+ * Compares the approximate counts (SketchBigramCounts) with the exact counts (IdBigramCounts)
+ * for bigram memory and perplexity, at budgets of 1/2 down to 1/32 of the exact bigram memory
+ *
+ * Overestimated counts make the distributions sum to more than 1, which lowers the perplexity
+ * without making the model better, so the average sum of P(w | context) over some contexts
+ * is printed as well.
+ *
+ * Usage: SketchBenchmark [training file] [test file]
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class SketchBenchmark {
+
+	/**
+	 * Print the memory and the perplexity of both models on the counts
+	 * @param name
+	 * @param counts
+	 * @param bigramBytes
+	 * @param testing
+	 * @throws IOException
+	 */
+	private static void report(String name, BigramCounts counts, long bigramBytes, String testing) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		LambdaLMModel lambda = new LambdaLMModel(counts, 0.01);
+		DiscountLMModel discount = new DiscountLMModel(counts, 0.5);
+		discount.compile();
+
+		System.out.println(String.format("%-26s %6d KB   lambda = 0.01: %8.2f (sum %.3f)   discount = 0.5: %8.2f (sum %.3f)",
+				name, bigramBytes / 1024,
+				lambda.evaluatePerplexity(testing, threads).perplexity, averageSum(lambda, counts),
+				discount.evaluatePerplexity(testing, threads).perplexity, averageSum(discount, counts)));
+	}
+
+	/**
+	 * @param model
+	 * @param counts
+	 * @return average over the first 50 context words of the sum of P(w | context) over the vocabulary
+	 */
+	static double averageSum(LMBase model, BigramCounts counts){
+		int numWords = counts.getWordIndex().size();
+		int contexts = 0;
+		double sum = 0;
+		for (int first = 0; first < numWords && contexts < 50; first++){
+			if (counts.getBigramTotal(first) == 0){
+				continue;
+			}
+			for (int second = 0; second < numWords; second++){
+				if (counts.isInVocabulary(second)){
+					sum += model.getBigramProb(first, second);
+				}
+			}
+			contexts++;
+		}
+		return sum / contexts;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String training = args.length > 0 ? args[0] : "src/sentences.development";
+		String testing = args.length > 1 ? args[1] : "src/sentences.testing";
+
+		IdBigramCounts exact = LMBase.trainCounts(training);
+
+		// bigram table and successor lists, leaving out the per word arrays both backends have
+		long exactBytes = exact.memoryBytes() - 2L * exact.getWordIndex().size() * Long.BYTES;
+		System.out.println("Training on " + training + ", perplexity on " + testing);
+		report("exact", exact, exactBytes, testing);
+
+		for (int fraction = 2; fraction <= 32; fraction *= 2){
+			SketchBigramCounts sketch = SketchBigramCounts.train(training, exactBytes / fraction);
+			report("sketch 1/" + fraction + " (" + sketch.numHeavyHitters() + " heavy)", sketch, sketch.memoryBytes(), testing);
+		}
+	}
+}
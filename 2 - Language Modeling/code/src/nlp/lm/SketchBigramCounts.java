@@ -0,0 +1,436 @@
+package nlp.lm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Approximate bigram counts in a fixed amount of memory
+ *
+ * Unigram counts and bigram totals are exact (one entry per word, like IdBigramCounts).
+ * The bigrams are kept in a memory budget chosen up front, however many distinct bigrams
+ * the corpus has:
+ * - a Count-Min sketch (DEPTH rows of 16 bit counters) with conservative update: a bigram
+ *   only raises the counters that are at its current minimum, which keeps the overestimate
+ *   small. Its count is the smallest of its counters, never less than the true count.
+ * - a Bloom filter of the bigrams that were seen, so a bigram that was never seen gets a
+ *   count of 0 instead of the counts it collides with in the sketch (except for false positives)
+ * - an exact count for every heavy hitter: bigrams whose estimate reaches HEAVY_THRESHOLD
+ *   in the first pass become candidates (while there is room) and are counted exactly in
+ *   the second pass. Only the heavy hitters are listed as successors.
+ *
+ * The second pass also estimates, for every context word, the number of distinct successors
+ * and the unigram probability mass of its successors (what the discount backoff needs),
+ * counting a bigram when the Bloom filter has not seen it yet.
+ *
+ * Budget: 1/2 for the sketch, 1/4 for the Bloom filter and 1/4 for the heavy hitters.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class SketchBigramCounts implements BigramCounts {
+
+	// rows of the sketch, each with its own hash function
+	private static final int DEPTH = 4;
+
+	// a bigram becomes a heavy hitter candidate once its estimate reaches this
+	private static final int HEAVY_THRESHOLD = 3;
+
+	// hash functions of the Bloom filter
+	private static final int BLOOM_HASHES = 3;
+
+	// bytes per slot of a BigramCountTable (long key and int count)
+	private static final int SLOT_BYTES = Long.BYTES + Integer.BYTES;
+
+	private final WordIndex index = new WordIndex();
+	private long[] unigramCounts = new long[1024];
+	private long[] bigramTotals = new long[1024];
+	private long totalNumWords;
+	private int vocabularySize;
+
+	// DEPTH rows of width counters, row r starts at r * width
+	private final char[] sketch;
+	private final int widthMask;
+
+	// bigrams seen in the second pass
+	private final long[] bloom;
+	private final int bloomMask;
+
+	// heavy hitters, counted exactly (plus 1 for being a candidate until finish)
+	private final BigramCountTable heavy;
+	private final int heavyCapacity;
+
+	// estimates from the second pass, per context word
+	private int[] numDistinct;
+	private double[] successorMass;
+
+	// heavy successors of word w are successorIds[successorStart[w] .. successorStart[w+1]-1]
+	private int[] successorStart;
+	private int[] successorIds;
+	private int[] successorCounts;
+
+	/**
+	 * @param memoryBytes memory for the bigrams
+	 */
+	private SketchBigramCounts(long memoryBytes){
+		int width = Integer.highestOneBit((int) Math.max(1, Math.min(memoryBytes / 2 / DEPTH / Character.BYTES, 1 << 28)));
+		sketch = new char[DEPTH * width];
+		widthMask = width - 1;
+
+		int bloomWords = Integer.highestOneBit((int) Math.max(1, Math.min(memoryBytes / 4 / Long.BYTES, 1 << 26)));
+		bloom = new long[bloomWords];
+		bloomMask = bloomWords * Long.SIZE - 1;
+
+		// size the table so it never has to grow
+		int slots = Integer.highestOneBit((int) Math.max(16, Math.min(memoryBytes / 4 / SLOT_BYTES, 1 << 28)));
+		heavyCapacity = (int) (slots * 0.6);
+		heavy = new BigramCountTable(heavyCapacity);
+	}
+
+	/**
+	 * Count the bigrams of a corpus in the given amount of memory
+	 * The file is read twice. Sentences are turned into words as in LMBase.trainModel,
+	 * the first occurrence of every word counts as <unk>.
+	 * @param filename
+	 * @param memoryBytes memory for the bigrams (the per word counts come on top)
+	 * @return the counts
+	 * @throws IOException
+	 */
+	public static SketchBigramCounts train(String filename, long memoryBytes) throws IOException {
+		SketchBigramCounts counts = new SketchBigramCounts(memoryBytes);
+		counts.firstPass(filename);
+		counts.secondPass(filename);
+		counts.finish();
+		return counts;
+	}
+
+	/**
+	 * Count the words exactly and the bigrams in the sketch, picking heavy hitter candidates
+	 * @param filename
+	 * @throws IOException
+	 */
+	private void firstPass(String filename) throws IOException {
+		int[] ids = new int[64];
+		CorpusReader br = CorpusReader.open(filename);
+		try {
+			for (String sentence = br.readLine(); sentence != null; sentence = br.readLine()){
+				String[] words = ("<s> " + sentence + " </s>").split(" ");
+				if (ids.length < words.length){
+					ids = new int[words.length * 2];
+				}
+				ids[0] = WordIndex.START;
+				ids[words.length - 1] = WordIndex.END;
+				for (int i = 1; i < words.length - 1; i++){
+					int id = index.getId(words[i]);
+
+					// first time we see the word so it counts as <unk>
+					if (id == WordIndex.NO_ID){
+						id = index.add(words[i]);
+						if (id >= unigramCounts.length){
+							unigramCounts = Arrays.copyOf(unigramCounts, id * 2);
+							bigramTotals = Arrays.copyOf(bigramTotals, id * 2);
+						}
+						id = WordIndex.UNK;
+					}
+					ids[i] = id;
+				}
+
+				totalNumWords += words.length;
+				for (int i = 0; i < words.length; i++){
+					unigramCounts[ids[i]]++;
+				}
+				for (int i = 0; i < words.length - 1; i++){
+					bigramTotals[ids[i]]++;
+					long key = BigramCountTable.key(ids[i], ids[i + 1]);
+					if (heavy.get(ids[i], ids[i + 1]) > 0){
+						continue;
+					}
+					if (conservativeIncrement(key) >= HEAVY_THRESHOLD && heavy.size() < heavyCapacity){
+						heavy.add(key, 1);
+					}
+				}
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * Count the heavy hitters exactly, fill the Bloom filter and estimate the distinct
+	 * successors of every word
+	 * @param filename
+	 * @throws IOException
+	 */
+	private void secondPass(String filename) throws IOException {
+		int numWords = index.size();
+		numDistinct = new int[numWords];
+		successorMass = new double[numWords];
+
+		// the same IDs as the first pass: a word is <unk> the first time
+		BitSet seenWords = new BitSet(numWords);
+		int[] ids = new int[64];
+
+		CorpusReader br = CorpusReader.open(filename);
+		try {
+			for (String sentence = br.readLine(); sentence != null; sentence = br.readLine()){
+				String[] words = ("<s> " + sentence + " </s>").split(" ");
+				if (ids.length < words.length){
+					ids = new int[words.length * 2];
+				}
+				ids[0] = WordIndex.START;
+				ids[words.length - 1] = WordIndex.END;
+				for (int i = 1; i < words.length - 1; i++){
+					int id = index.getId(words[i]);
+					if (!seenWords.get(id)){
+						seenWords.set(id);
+						id = WordIndex.UNK;
+					}
+					ids[i] = id;
+				}
+
+				for (int i = 0; i < words.length - 1; i++){
+					int first = ids[i];
+					int second = ids[i + 1];
+					long key = BigramCountTable.key(first, second);
+					boolean isNew;
+					int heavyCount = heavy.get(first, second);
+					if (heavyCount > 0){
+						heavy.add(key, 1);
+						isNew = heavyCount == 1;
+					}
+					else {
+						// new unless all of its bits are already set
+						isNew = false;
+						for (int h = 0; h < BLOOM_HASHES; h++){
+							int bit = bloomBit(key, h);
+							if ((bloom[bit >>> 6] & (1L << bit)) == 0){
+								bloom[bit >>> 6] |= 1L << bit;
+								isNew = true;
+							}
+						}
+					}
+					if (isNew){
+						numDistinct[first]++;
+						successorMass[first] += unigramCounts[second]/(double) totalNumWords;
+					}
+				}
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * Take off the candidate marks and build the successor lists of the heavy hitters
+	 */
+	private void finish(){
+		int numWords = index.size();
+		unigramCounts = Arrays.copyOf(unigramCounts, numWords);
+		bigramTotals = Arrays.copyOf(bigramTotals, numWords);
+		vocabularySize = 0;
+		for (int id = 0; id < numWords; id++){
+			if (isInVocabulary(id)){
+				vocabularySize++;
+			}
+		}
+
+		long[] keys = new long[heavy.size()];
+		int k = 0;
+		for (int slot = 0; slot < heavy.capacity(); slot++){
+			if (heavy.isUsed(slot)){
+				keys[k++] = heavy.keyAt(slot);
+				heavy.add(heavy.keyAt(slot), -1);
+			}
+		}
+		Arrays.sort(keys);
+
+		successorStart = new int[numWords + 1];
+		successorIds = new int[keys.length];
+		successorCounts = new int[keys.length];
+		for (int i = 0; i < keys.length; i++){
+			int first = BigramCountTable.firstOf(keys[i]);
+			int second = BigramCountTable.secondOf(keys[i]);
+			successorStart[first + 1]++;
+			successorIds[i] = second;
+			successorCounts[i] = heavy.get(first, second);
+		}
+		for (int id = 0; id < numWords; id++){
+			successorStart[id + 1] += successorStart[id];
+		}
+	}
+
+	/**
+	 * Add one to the bigram, raising only the counters at the current minimum
+	 * Counters stop at Character.MAX_VALUE
+	 * @param key
+	 * @return the new estimate
+	 */
+	private int conservativeIncrement(long key){
+		int estimate = Math.min(estimate(key) + 1, Character.MAX_VALUE);
+		for (int row = 0; row < DEPTH; row++){
+			int cell = cell(key, row);
+			if (sketch[cell] < estimate){
+				sketch[cell] = (char) estimate;
+			}
+		}
+		return estimate;
+	}
+
+	/**
+	 * @param key
+	 * @return smallest counter of the bigram
+	 */
+	private int estimate(long key){
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++){
+			estimate = Math.min(estimate, sketch[cell(key, row)]);
+		}
+		return estimate;
+	}
+
+	private int cell(long key, int row){
+		return row * (widthMask + 1) + (BigramCountTable.hash(key ^ ((long) row << 59 | row)) & widthMask);
+	}
+
+	private int bloomBit(long key, int h){
+		return BigramCountTable.hash(key + h * 0x9E3779B97F4A7C15L) & bloomMask;
+	}
+
+	/**
+	 * @param key
+	 * @return true if the bigram was seen (or is a false positive of the Bloom filter)
+	 */
+	private boolean maybeSeen(long key){
+		for (int h = 0; h < BLOOM_HASHES; h++){
+			int bit = bloomBit(key, h);
+			if ((bloom[bit >>> 6] & (1L << bit)) == 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param first
+	 * @return estimated number of distinct words seen after first (all of them, not just heavy hitters)
+	 */
+	@Override
+	public int getNumDistinctSuccessors(int first){
+		if (first < 0 || first >= numDistinct.length || bigramTotals[first] == 0){
+			return 0;
+		}
+
+		// false positives of the Bloom filter can miss a context's only successor
+		return Math.max(numDistinct[first], 1);
+	}
+
+	/**
+	 * @param first
+	 * @return estimated sum of the unigram probabilities of all the words seen after first
+	 */
+	@Override
+	public double getSuccessorMass(int first){
+		return first < 0 || first >= successorMass.length ? 0 : successorMass[first];
+	}
+
+	/**
+	 * @return heap size of the bigram structures in bytes (sketch, Bloom filter, heavy hitters and their successor lists)
+	 */
+	public long memoryBytes(){
+		return (long) sketch.length * Character.BYTES + (long) bloom.length * Long.BYTES + heavy.memoryBytes()
+				+ (long) (successorStart.length + successorIds.length + successorCounts.length) * Integer.BYTES;
+	}
+
+	/**
+	 * @return heap size of the per word counts and estimates in bytes
+	 */
+	public long wordMemoryBytes(){
+		return (long) (unigramCounts.length + bigramTotals.length) * Long.BYTES
+				+ (long) numDistinct.length * Integer.BYTES + (long) successorMass.length * Double.BYTES;
+	}
+
+	/**
+	 * @return number of bigrams counted exactly
+	 */
+	public int numHeavyHitters(){
+		return heavy.size();
+	}
+
+	@Override
+	public WordIndex getWordIndex() {
+		return index;
+	}
+
+	@Override
+	public double getTotalNumWords() {
+		return totalNumWords;
+	}
+
+	@Override
+	public int getVocabularySize() {
+		return vocabularySize;
+	}
+
+	@Override
+	public boolean isInVocabulary(int id) {
+		return id >= 0 && id < unigramCounts.length && (id <= WordIndex.END || unigramCounts[id] > 0);
+	}
+
+	@Override
+	public double getUnigramCount(int id) {
+		return id < 0 || id >= unigramCounts.length ? 0 : unigramCounts[id];
+	}
+
+	@Override
+	public double getBigramTotal(int first) {
+		return first < 0 || first >= bigramTotals.length ? 0 : bigramTotals[first];
+	}
+
+	/**
+	 * Exact for heavy hitters, 0 if the Bloom filter never saw the bigram, otherwise the
+	 * sketch estimate (never below the true count, and never above the total of first)
+	 */
+	@Override
+	public double getBigramCount(int first, int second) {
+		if (first < 0 || second < 0 || first >= bigramTotals.length || second >= bigramTotals.length){
+			return 0;
+		}
+		int count = heavy.get(first, second);
+		if (count > 0){
+			return count;
+		}
+		long key = BigramCountTable.key(first, second);
+		if (!maybeSeen(key)){
+			return 0;
+		}
+		return Math.min(estimate(key), bigramTotals[first]);
+	}
+
+	/**
+	 * Nothing is pruned, the bigrams that are not listed are still in the sketch
+	 * (see getNumDistinctSuccessors and getSuccessorMass)
+	 */
+	@Override
+	public double getPrunedCount(int first) {
+		return 0;
+	}
+
+	@Override
+	public int getNumSuccessors(int first) {
+		if (first < 0 || first >= bigramTotals.length){
+			return 0;
+		}
+		return successorStart[first + 1] - successorStart[first];
+	}
+
+	@Override
+	public int getSuccessor(int first, int k) {
+		return successorIds[successorStart[first] + k];
+	}
+
+	@Override
+	public double getSuccessorCount(int first, int k) {
+		return successorCounts[successorStart[first] + k];
+	}
+}
@@ -0,0 +1,105 @@
+package nlp.lm;
+
+/**
+ * The lambda and absolute discount formulas, in one place
+ *
+ * LambdaLMModel, DiscountLMModel, DiscountScoreTable, SmoothingSweep and SmoothingTuner
+ * all score with these, so they cannot drift apart:
+ * lambda:   P(second | first) = (C(first second) + lambda)/(C(first .) + lambda * V)
+ *           where an unseen bigram counts as the pruned share of first
+ * discount: seen   P(second | first) = (C(first second) - D)/C(first .)
+ *           unseen P(second | first) = reservedMass(first)/unseenMass(first) * P(second)
+ * Pruned bigrams (see IdBigramCounts.pruneToFit) still count in the total of their context
+ * word, so their mass goes to the unseen words: shared equally for lambda, and added to the
+ * reserved mass for the discount. For approximate counts the number of successors and their
+ * mass come from BigramCounts.getNumDistinctSuccessors and getSuccessorMass.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+final class SmoothingFormulas {
+
+	private SmoothingFormulas(){
+	}
+
+	/**
+	 * @param count count of the bigram, or the pruned share if it was not seen
+	 * @param total number of bigrams starting with the first word
+	 * @param lambda
+	 * @param vocabularySize
+	 * @return the lambda smoothed probability
+	 */
+	static double lambdaProb(double count, double total, double lambda, double vocabularySize){
+		return (count + lambda)/(total + lambda * vocabularySize);
+	}
+
+	/**
+	 * The mass of the pruned bigrams of a word is shared equally by all the words not seen after it
+	 * @param prunedCount
+	 * @param vocabularySize
+	 * @param numSuccessors
+	 * @return the count each unseen word gets on top of lambda
+	 */
+	static double prunedShare(double prunedCount, double vocabularySize, double numSuccessors){
+		return prunedCount > 0 ? prunedCount/(vocabularySize - numSuccessors) : 0;
+	}
+
+	/**
+	 * @param counts
+	 * @param first
+	 * @return the count each word not seen after first gets on top of lambda
+	 */
+	static double prunedShare(BigramCounts counts, int first){
+		return prunedShare(counts.getPrunedCount(first), counts.getVocabularySize(), counts.getNumSuccessors(first));
+	}
+
+	/**
+	 * @param count count of a seen bigram
+	 * @param total number of bigrams starting with the first word
+	 * @param discount
+	 * @return the discounted probability
+	 */
+	static double discountProb(double count, double total, double discount){
+		return (count - discount)/total;
+	}
+
+	/**
+	 * @param numSuccessors number of distinct words seen after the first word
+	 * @param prunedCount count mass of the pruned bigrams of the first word
+	 * @param total number of bigrams starting with the first word
+	 * @param discount
+	 * @return probability mass taken off the seen bigrams (and the pruned ones) for the unseen words
+	 */
+	static double reservedMass(double numSuccessors, double prunedCount, double total, double discount){
+		return (numSuccessors*discount + prunedCount)/total;
+	}
+
+	/**
+	 * @param counts
+	 * @param first
+	 * @param discount
+	 * @return the reserved mass of first
+	 */
+	static double reservedMass(BigramCounts counts, int first, double discount){
+		return reservedMass(counts.getNumDistinctSuccessors(first), counts.getPrunedCount(first), counts.getBigramTotal(first), discount);
+	}
+
+	/**
+	 * @param counts
+	 * @param first
+	 * @return 1 - the unigram probabilities of the words seen after first, what alpha divides by
+	 */
+	static double unseenMass(BigramCounts counts, int first){
+		return 1 - counts.getSuccessorMass(first);
+	}
+
+	/**
+	 * @param counts
+	 * @param id
+	 * @return unigram probability of the word, the backoff distribution of the discount
+	 */
+	static double unigramProb(BigramCounts counts, int id){
+		return counts.getUnigramCount(id)/counts.getTotalNumWords();
+	}
+}
@@ -0,0 +1,214 @@
+package nlp.lm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Perplexity of a held-out file for many smoothing values at once
+ *
+ * The smoothing parameter only enters the probability formula, the counts are the same
+ * for every value. So the file is tokenized once, and for every bigram the counts are
+ * looked up once and then turned into one probability per lambda or discount.
+ * A sweep over N values costs one training and about one evaluation instead of N of each.
+ * The results are the same as PerplexityEvaluator on LambdaLMModel / DiscountLMModel
+ * views of the same counts, the formulas are shared with them (see SmoothingFormulas).
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class SmoothingSweep {
+
+	private final BigramCounts counts;
+	private final int threads;
+
+	/**
+	 * Turns the counts of one bigram into a probability for every smoothing value
+	 */
+	private interface Smoothing {
+		/**
+		 * @param first
+		 * @param second
+		 * @param probs one probability per smoothing value is written here
+		 */
+		void getBigramProbs(int first, int second, double[] probs);
+	}
+
+	/**
+	 * @param counts trained counts, shared by every smoothing value
+	 * @param threads number of threads to score on
+	 * @throws IllegalArgumentException for the counts of a QuantizedLMModel, which has no bigram counts
+	 */
+	public SmoothingSweep(BigramCounts counts, int threads){
+		if (counts instanceof QuantizedLMModel.ServingCounts){
+			throw new IllegalArgumentException("quantized models do not keep the bigram counts");
+		}
+		this.counts = counts;
+		this.threads = threads;
+	}
+
+	/**
+	 * Perplexity of the file for every lambda, as LambdaLMModel.getBigramProb(int, int)
+	 * @param filename sentences WITHOUT <s> or </s>
+	 * @param lambdas
+	 * @return one result per lambda
+	 * @throws IOException
+	 */
+	public PerplexityEvaluator.Result[] lambdas(String filename, final double... lambdas) throws IOException {
+		final double vocabularySize = counts.getVocabularySize();
+		return sweep(filename, lambdas.length, new Smoothing(){
+			@Override
+			public void getBigramProbs(int first, int second, double[] probs) {
+				double count = counts.getBigramCount(first, second);
+				double total = counts.getBigramTotal(first);
+
+				// as LambdaLMModel, the pruned mass is shared by the unseen words
+				if (count == 0){
+					count = SmoothingFormulas.prunedShare(counts, first);
+				}
+				for (int i = 0; i < lambdas.length; i++){
+					probs[i] = SmoothingFormulas.lambdaProb(count, total, lambdas[i], vocabularySize);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Perplexity of the file for every discount, as DiscountLMModel.getBigramProb(int, int)
+	 * @param filename sentences WITHOUT <s> or </s>
+	 * @param discounts
+	 * @return one result per discount
+	 * @throws IOException
+	 */
+	public PerplexityEvaluator.Result[] discounts(String filename, final double... discounts) throws IOException {
+		// alpha(first) = (successors * D + pruned)/total/(1 - sum of P(successor)), as
+		// DiscountLMModel.getBackoffWeight, only the discount D changes so the sum is computed
+		// once per context word (sketch counts give their estimates, see BigramCounts)
+		int numWords = counts.getWordIndex().size();
+		final double[] unseenMass = new double[numWords];
+		for (int first = 0; first < numWords; first++){
+			unseenMass[first] = SmoothingFormulas.unseenMass(counts, first);
+		}
+
+		return sweep(filename, discounts.length, new Smoothing(){
+			@Override
+			public void getBigramProbs(int first, int second, double[] probs) {
+				double count = counts.getBigramCount(first, second);
+				double total = counts.getBigramTotal(first);
+				if (count > 0){
+					for (int i = 0; i < discounts.length; i++){
+						probs[i] = SmoothingFormulas.discountProb(count, total, discounts[i]);
+					}
+					return;
+				}
+				double options = counts.getNumDistinctSuccessors(first);
+				double prunedCount = counts.getPrunedCount(first);
+				double unigramProb = SmoothingFormulas.unigramProb(counts, second);
+				for (int i = 0; i < discounts.length; i++){
+					double reserved_mass = SmoothingFormulas.reservedMass(options, prunedCount, total, discounts[i]);
+					probs[i] = reserved_mass/unseenMass[first] * unigramProb;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Score the file in chunks on the thread pool, like PerplexityEvaluator
+	 * @param filename
+	 * @param numValues number of smoothing values
+	 * @param smoothing
+	 * @return one result per smoothing value
+	 * @throws IOException
+	 */
+	private PerplexityEvaluator.Result[] sweep(String filename, final int numValues, final Smoothing smoothing) throws IOException {
+		final CompensatedSum[] logProbs = new CompensatedSum[numValues];
+		for (int v = 0; v < numValues; v++){
+			logProbs[v] = new CompensatedSum();
+		}
+		final long[] totals = new long[3];
+
+		// add up the chunks in order
+		PerplexityEvaluator.scoreFile(filename, threads, new PerplexityEvaluator.ChunkScorer<Chunk>(){
+			@Override
+			public Chunk score(List<String> sentences) {
+				Chunk chunk = new Chunk(numValues, smoothing);
+				for (String sentence : sentences){
+					chunk.score(sentence);
+				}
+				return chunk;
+			}
+
+			@Override
+			public void add(Chunk chunk) {
+				for (int v = 0; v < numValues; v++){
+					logProbs[v].add(chunk.logProbs[v]);
+				}
+				totals[0] += chunk.numTokens;
+				totals[1] += chunk.tokenizer.numOov;
+				totals[2] += chunk.numSentences;
+			}
+		});
+
+		PerplexityEvaluator.Result[] results = new PerplexityEvaluator.Result[numValues];
+		for (int v = 0; v < numValues; v++){
+			results[v] = new PerplexityEvaluator.Result(logProbs[v].value(), totals[0], totals[1], totals[2]);
+		}
+		return results;
+	}
+
+	/**
+	 * Scores the sentences of one chunk for every smoothing value
+	 */
+	private class Chunk {
+		private final SentenceTokenizer tokenizer = new SentenceTokenizer(counts);
+		private final Smoothing smoothing;
+		private final CompensatedSum[] logProbs;
+		private final double[] products;
+		private final double[] probs;
+		private long numTokens;
+		private long numSentences;
+
+		Chunk(int numValues, Smoothing smoothing){
+			this.smoothing = smoothing;
+			logProbs = new CompensatedSum[numValues];
+			products = new double[numValues];
+			probs = new double[numValues];
+			for (int v = 0; v < numValues; v++){
+				logProbs[v] = new CompensatedSum();
+			}
+		}
+
+		/**
+		 * Add the log probabilities of a sentence to the chunk
+		 * @param sentence
+		 */
+		void score(String sentence){
+			int length = tokenizer.tokenize(sentence);
+			int[] ids = tokenizer.ids;
+			numTokens += length - 1;
+			numSentences++;
+
+			// product-then-log as in PerplexityEvaluator, once per smoothing value
+			Arrays.fill(products, 1.0);
+			for (int i = 0; i < length - 1; i++){
+				smoothing.getBigramProbs(ids[i], ids[i+1], probs);
+				for (int v = 0; v < probs.length; v++){
+					double prob = probs[v];
+					if (prob < PerplexityEvaluator.MIN_PRODUCT){
+						logProbs[v].add(Math.log10(prob));
+						continue;
+					}
+					products[v] *= prob;
+					if (products[v] < PerplexityEvaluator.MIN_PRODUCT){
+						logProbs[v].add(Math.log10(products[v]));
+						products[v] = 1.0;
+					}
+				}
+			}
+			for (int v = 0; v < products.length; v++){
+				logProbs[v].add(Math.log10(products[v]));
+			}
+		}
+	}
+}
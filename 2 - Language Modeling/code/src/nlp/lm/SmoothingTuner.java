@@ -0,0 +1,343 @@
+package nlp.lm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the lambda or discount with the lowest perplexity on a held-out file
+ *
+ * The held-out file is read once and reduced to a histogram of its distinct bigrams
+ * (context, word) and how often each occurs. The log probability of the file is then
+ * sum over distinct bigrams of occurrences * log10 P(word | context), so a candidate value
+ * costs O(distinct bigrams) instead of O(tokens), and every count the formula needs is looked
+ * up once when the histogram is built. Perplexity is unimodal in the smoothing value, so a
+ * golden-section search needs about 30 candidates to pin it down, and every candidate it
+ * tried is kept in the trace.
+ *
+ * The perplexities are the same as PerplexityEvaluator / SmoothingSweep give for
+ * LambdaLMModel and DiscountLMModel on the same counts (up to rounding of the sums).
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class SmoothingTuner {
+
+	// 1/golden ratio
+	private static final double INVERSE_PHI = (Math.sqrt(5) - 1)/2;
+
+	// search ranges: lambda in log10 space, the discount must stay below the smallest count
+	private static final double MIN_LOG_LAMBDA = -6;
+	private static final double MAX_LOG_LAMBDA = 1;
+	private static final double MIN_DISCOUNT = 1e-6;
+	private static final double MAX_DISCOUNT = 1 - 1e-6;
+
+	// stop when the bracket is this narrow (in the searched coordinate)
+	private static final double TOLERANCE = 1e-5;
+	private static final int MAX_STEPS = 100;
+
+	private final BigramCounts counts;
+
+	// histogram of the held-out bigrams
+	private final int numBigrams;
+	private final double[] occurrences;
+	private final long numTokens;
+
+	// lambda: P = SmoothingFormulas.lambdaProb(lambdaCount, lambdaTotal, lambda, V)
+	private final double[] lambdaCount;
+	private final double[] lambdaTotal;
+
+	// discount: P = discountBase + D * discountSlope
+	private final double[] discountBase;
+	private final double[] discountSlope;
+
+	/**
+	 * One candidate the search tried
+	 */
+	public static class Step {
+		public final double parameter;
+		public final double perplexity;
+
+		// the bracket the optimum was known to be in after this step
+		public final double low;
+		public final double high;
+
+		Step(double parameter, double perplexity, double low, double high){
+			this.parameter = parameter;
+			this.perplexity = perplexity;
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("%.8f -> %.6f  [%.8f, %.8f]", parameter, perplexity, low, high);
+		}
+	}
+
+	/**
+	 * Outcome of a search
+	 * @param <M> LambdaLMModel or DiscountLMModel
+	 */
+	public static class Result<M extends LMBase> {
+		// model over the counts with the best value
+		public final M model;
+		public final double parameter;
+		public final double perplexity;
+
+		// every candidate, in the order they were tried
+		public final List<Step> trace;
+
+		Result(M model, double parameter, double perplexity, List<Step> trace){
+			this.model = model;
+			this.parameter = parameter;
+			this.perplexity = perplexity;
+			this.trace = Collections.unmodifiableList(trace);
+		}
+
+		@Override
+		public String toString(){
+			return "Best " + parameter + " Perplexity: " + perplexity + " (" + trace.size() + " candidates)";
+		}
+	}
+
+	/**
+	 * A function of one value to minimize (the perplexity for a smoothing value)
+	 */
+	private interface Objective {
+		double value(double x);
+	}
+
+	/**
+	 * Read the held-out file into the histogram
+	 * @param counts trained counts
+	 * @param filename held-out sentences WITHOUT <s> or </s> (a file, directory or glob, see CorpusReader)
+	 * @throws IOException
+	 * @throws IllegalArgumentException for the counts of a QuantizedLMModel, which has no bigram counts
+	 */
+	public SmoothingTuner(BigramCounts counts, String filename) throws IOException {
+		if (counts instanceof QuantizedLMModel.ServingCounts){
+			throw new IllegalArgumentException("quantized models do not keep the bigram counts");
+		}
+		this.counts = counts;
+
+		// count the distinct bigrams of the held-out file
+		SentenceTokenizer tokenizer = new SentenceTokenizer(counts);
+		BigramCountTable histogram = new BigramCountTable();
+		long tokens = 0;
+		CorpusReader br = CorpusReader.open(filename);
+		try {
+			for (String sentence = br.readLine(); sentence != null; sentence = br.readLine()){
+				int length = tokenizer.tokenize(sentence);
+				int[] ids = tokenizer.ids;
+				for (int i = 0; i < length - 1; i++){
+					histogram.increment(ids[i], ids[i+1]);
+				}
+				tokens += length - 1;
+			}
+		} finally {
+			br.close();
+		}
+		numTokens = tokens;
+
+		// alpha(first) = (successors * D + pruned)/total/(1 - sum of P(successor)), see SmoothingFormulas
+		int numWords = counts.getWordIndex().size();
+		double[] unseenMass = new double[numWords];
+		for (int first = 0; first < numWords; first++){
+			unseenMass[first] = SmoothingFormulas.unseenMass(counts, first);
+		}
+
+		// everything but the smoothing value, once per distinct bigram
+		numBigrams = histogram.size();
+		occurrences = new double[numBigrams];
+		lambdaCount = new double[numBigrams];
+		lambdaTotal = new double[numBigrams];
+		discountBase = new double[numBigrams];
+		discountSlope = new double[numBigrams];
+		int b = 0;
+		for (int slot = 0; slot < histogram.capacity(); slot++){
+			if (!histogram.isUsed(slot)){
+				continue;
+			}
+			int first = BigramCountTable.firstOf(histogram.keyAt(slot));
+			int second = BigramCountTable.secondOf(histogram.keyAt(slot));
+			occurrences[b] = histogram.valueAt(slot);
+
+			// both formulas are linear in the count terms, so they split into a part without
+			// the smoothing value and a part per unit of it
+			double count = counts.getBigramCount(first, second);
+			double total = counts.getBigramTotal(first);
+			lambdaTotal[b] = total;
+			if (count > 0){
+				lambdaCount[b] = count;
+				discountBase[b] = SmoothingFormulas.discountProb(count, total, 0);
+				discountSlope[b] = -1/total;
+			}
+			else {
+				// as LambdaLMModel, the pruned mass is shared by the unseen words
+				lambdaCount[b] = SmoothingFormulas.prunedShare(counts, first);
+				double unigramProb = SmoothingFormulas.unigramProb(counts, second);
+				double options = counts.getNumDistinctSuccessors(first);
+				discountBase[b] = SmoothingFormulas.reservedMass(options, counts.getPrunedCount(first), total, 0)/unseenMass[first] * unigramProb;
+				discountSlope[b] = SmoothingFormulas.reservedMass(options, 0, total, 1)/unseenMass[first] * unigramProb;
+			}
+			b++;
+		}
+	}
+
+	/**
+	 * @return number of distinct bigrams in the held-out file, the cost of one candidate
+	 */
+	public int getNumBigrams(){
+		return numBigrams;
+	}
+
+	/**
+	 * @param lambda
+	 * @return perplexity of the held-out file under LambdaLMModel(counts, lambda)
+	 */
+	public double lambdaPerplexity(double lambda){
+		double vocabularySize = counts.getVocabularySize();
+		CompensatedSum logProb = new CompensatedSum();
+		for (int b = 0; b < numBigrams; b++){
+			logProb.add(occurrences[b] * Math.log10(SmoothingFormulas.lambdaProb(lambdaCount[b], lambdaTotal[b], lambda, vocabularySize)));
+		}
+		return Math.pow(10, -logProb.value()/numTokens);
+	}
+
+	/**
+	 * @param discount
+	 * @return perplexity of the held-out file under DiscountLMModel(counts, discount)
+	 */
+	public double discountPerplexity(double discount){
+		CompensatedSum logProb = new CompensatedSum();
+		for (int b = 0; b < numBigrams; b++){
+			logProb.add(occurrences[b] * Math.log10(discountBase[b] + discount * discountSlope[b]));
+		}
+		return Math.pow(10, -logProb.value()/numTokens);
+	}
+
+	/**
+	 * Search lambda between 1e-6 and 10 (in log space)
+	 * @return the tuned model and the trace
+	 */
+	public Result<LambdaLMModel> tuneLambda(){
+		ArrayList<Step> trace = new ArrayList<Step>();
+		double logLambda = goldenSection(new Objective(){
+			@Override
+			public double value(double x) {
+				return lambdaPerplexity(Math.pow(10, x));
+			}
+		}, MIN_LOG_LAMBDA, MAX_LOG_LAMBDA, trace);
+
+		// report the trace in lambdas rather than log10 of them
+		ArrayList<Step> lambdaTrace = new ArrayList<Step>(trace.size());
+		for (Step step : trace){
+			lambdaTrace.add(new Step(Math.pow(10, step.parameter), step.perplexity, Math.pow(10, step.low), Math.pow(10, step.high)));
+		}
+		double lambda = Math.pow(10, logLambda);
+		return new Result<LambdaLMModel>(new LambdaLMModel(counts, lambda), lambda, lambdaPerplexity(lambda), lambdaTrace);
+	}
+
+	/**
+	 * Search the discount between 0 and 1
+	 * @return the tuned (compiled) model and the trace
+	 */
+	public Result<DiscountLMModel> tuneDiscount(){
+		ArrayList<Step> trace = new ArrayList<Step>();
+		double discount = goldenSection(new Objective(){
+			@Override
+			public double value(double x) {
+				return discountPerplexity(x);
+			}
+		}, MIN_DISCOUNT, MAX_DISCOUNT, trace);
+		DiscountLMModel model = new DiscountLMModel(counts, discount);
+		model.compile();
+		return new Result<DiscountLMModel>(model, discount, discountPerplexity(discount), trace);
+	}
+
+	/**
+	 * Golden-section search for the minimum of a unimodal function
+	 * Every iteration keeps one of the two inner points, so it costs one new evaluation
+	 * and shrinks the bracket by 1/phi
+	 * @param objective
+	 * @param low
+	 * @param high
+	 * @param trace every evaluation is added here
+	 * @return the best point found
+	 */
+	private static double goldenSection(Objective objective, double low, double high, List<Step> trace){
+		double left = high - INVERSE_PHI * (high - low);
+		double right = low + INVERSE_PHI * (high - low);
+		double leftValue = objective.value(left);
+		trace.add(new Step(left, leftValue, low, high));
+		double rightValue = objective.value(right);
+		trace.add(new Step(right, rightValue, low, high));
+
+		for (int step = 0; step < MAX_STEPS && high - low > TOLERANCE; step++){
+			// the minimum is not beyond the worse inner point
+			if (leftValue <= rightValue){
+				high = right;
+				right = left;
+				rightValue = leftValue;
+				left = high - INVERSE_PHI * (high - low);
+				leftValue = objective.value(left);
+				trace.add(new Step(left, leftValue, low, high));
+			}
+			else {
+				low = left;
+				left = right;
+				leftValue = rightValue;
+				right = low + INVERSE_PHI * (high - low);
+				rightValue = objective.value(right);
+				trace.add(new Step(right, rightValue, low, high));
+			}
+		}
+		return leftValue <= rightValue ? left : right;
+	}
+
+	/**
+	 * Tune lambda and discount for the training file on the development file
+	 * and check the tuned models on the test file
+	 * Usage: SmoothingTuner [training] [development] [testing]
+	 * @param args
+	 */
+	public static void main(String[] args){
+		String training = args.length > 0 ? args[0] : "src/sentences.training";
+		String development = args.length > 1 ? args[1] : "src/sentences.development";
+		String testing = args.length > 2 ? args[2] : "src/sentences.testing";
+
+		System.out.println("Training on " + training + " ...");
+		IdBigramCounts counts = LMBase.trainCounts(training);
+		try {
+			long start = System.nanoTime();
+			SmoothingTuner tuner = new SmoothingTuner(counts, development);
+			System.out.println(String.format("Histogram of %s: %d distinct bigrams for %d tokens (%.1f ms)", development,
+					tuner.getNumBigrams(), tuner.numTokens, (System.nanoTime() - start)/1e6));
+
+			start = System.nanoTime();
+			Result<LambdaLMModel> lambda = tuner.tuneLambda();
+			System.out.println(String.format("Lambda search (%.1f ms):", (System.nanoTime() - start)/1e6));
+			for (Step step : lambda.trace){
+				System.out.println("  " + step);
+			}
+			System.out.println("Lambda = " + lambda.parameter + " Perplexity: " + lambda.perplexity);
+
+			start = System.nanoTime();
+			Result<DiscountLMModel> discount = tuner.tuneDiscount();
+			System.out.println(String.format("Discount search (%.1f ms):", (System.nanoTime() - start)/1e6));
+			for (Step step : discount.trace){
+				System.out.println("  " + step);
+			}
+			System.out.println("Discount = " + discount.parameter + " Perplexity: " + discount.perplexity);
+
+			System.out.println("Test set " + testing + ":");
+			System.out.println("Lambda = " + lambda.parameter + " " + lambda.model.evaluatePerplexity(testing, 1));
+			System.out.println("Discount = " + discount.parameter + " " + discount.model.evaluatePerplexity(testing, 1));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
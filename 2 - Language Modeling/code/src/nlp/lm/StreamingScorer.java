@@ -0,0 +1,557 @@
+package nlp.lm;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Scores sentences as they arrive from a publisher and sends a SentenceScore for each one
+ * (see ReactiveStreams)
+ *
+ * Sentences are scored on a fixed pool of worker threads, in any order, and the scores go
+ * into a ring of maxInFlight slots indexed by sentence number. They are sent downstream in
+ * the order the sentences came in, as far as the subscriber has requested. The scorer asks
+ * upstream for maxInFlight sentences at the start and then for one more per score it sends,
+ * so at most maxInFlight sentences are being scored or waiting to be sent, and a subscriber
+ * that stops requesting soon stops the publisher too.
+ *
+ * The totals (log probability, tokens, OOV words and perplexity of everything sent so far)
+ * can be read at any time from any thread with getTotals(). Sentences are tokenized like
+ * PerplexityEvaluator does, so once the stream is done the perplexity is the one
+ * evaluatePerplexity gives for the same sentences (up to rounding).
+ *
+ * Usage: StreamingScorer [training file] [file to score]
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class StreamingScorer implements ReactiveStreams.Processor<String, StreamingScorer.SentenceScore> {
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+	private final LMBase model;
+	private final BigramCounts counts;
+	private final int maxInFlight;
+	private final ExecutorService workers;
+
+	// every worker tokenizes into its own buffer
+	private final ThreadLocal<SentenceTokenizer> tokenizers;
+
+	// scores waiting to be sent, sentence i goes in slot i % maxInFlight
+	private final AtomicReferenceArray<SentenceScore> ring;
+
+	private volatile ReactiveStreams.Subscription upstream;
+	private volatile ReactiveStreams.Subscriber<? super SentenceScore> downstream;
+
+	// onNext calls the subscriber still allows
+	private final AtomicLong demand = new AtomicLong();
+
+	// sentences taken from upstream and scores sent downstream
+	private volatile long received;
+	private volatile long sent;
+
+	private volatile boolean upstreamDone;
+	private volatile Throwable upstreamError;
+
+	// a sentence could not be scored, sent downstream right away
+	private volatile Throwable failure;
+	private volatile boolean cancelled;
+	private boolean terminated;
+
+	// makes sure only one thread at a time sends downstream (see drain)
+	private final AtomicInteger drainers = new AtomicInteger();
+
+	// running totals, only changed by drain
+	private final CompensatedSum logProb = new CompensatedSum();
+	private volatile Totals totals = new Totals(0, 0, 0, 0);
+
+	/**
+	 * The score of one sentence
+	 */
+	public static class SentenceScore {
+		// position of the sentence in the stream, from 0
+		public final long index;
+		public final String sentence;
+		public final double logProb;
+
+		// number of scored words (every word of the sentence and </s>)
+		public final int numTokens;
+
+		// number of words scored as <unk>
+		public final int numOov;
+		public final double perplexity;
+
+		SentenceScore(long index, String sentence, double logProb, int numTokens, int numOov){
+			this.index = index;
+			this.sentence = sentence;
+			this.logProb = logProb;
+			this.numTokens = numTokens;
+			this.numOov = numOov;
+			this.perplexity = Math.pow(10, -logProb/numTokens);
+		}
+
+		@Override
+		public String toString(){
+			return index + ": LogProb: " + logProb + " Perplexity: " + perplexity + " (tokens: " + numTokens
+					+ ", OOV: " + numOov + ") " + sentence;
+		}
+	}
+
+	/**
+	 * Totals over the scores sent so far
+	 */
+	public static class Totals {
+		public final long numSentences;
+		public final long numTokens;
+		public final long numOov;
+		public final double logProb;
+		public final double perplexity;
+
+		Totals(long numSentences, long numTokens, long numOov, double logProb){
+			this.numSentences = numSentences;
+			this.numTokens = numTokens;
+			this.numOov = numOov;
+			this.logProb = logProb;
+			this.perplexity = numTokens == 0 ? Double.NaN : Math.pow(10, -logProb/numTokens);
+		}
+
+		@Override
+		public String toString(){
+			return "Perplexity: " + perplexity + " (LogProb: " + logProb + ", tokens: " + numTokens
+					+ ", OOV: " + numOov + ", sentences: " + numSentences + ")";
+		}
+	}
+
+	/**
+	 * Scorer with a worker per core and DEFAULT_MAX_IN_FLIGHT sentences in flight
+	 * @param model
+	 */
+	public StreamingScorer(LMBase model){
+		this(model, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param model
+	 * @param threads number of worker threads
+	 * @param maxInFlight most sentences being scored or waiting to be sent at once
+	 */
+	public StreamingScorer(LMBase model, int threads, int maxInFlight){
+		if (threads < 1 || maxInFlight < 1){
+			throw new IllegalArgumentException("threads and maxInFlight must be at least 1");
+		}
+		this.model = model;
+		// move onto word IDs before the workers start reading the counts
+		this.counts = model.getIdCounts();
+		this.maxInFlight = maxInFlight;
+		this.ring = new AtomicReferenceArray<SentenceScore>(maxInFlight);
+		this.tokenizers = new ThreadLocal<SentenceTokenizer>(){
+			@Override
+			protected SentenceTokenizer initialValue(){
+				return new SentenceTokenizer(counts);
+			}
+		};
+		this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "StreamingScorer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return totals over the scores sent so far
+	 */
+	public Totals getTotals(){
+		return totals;
+	}
+
+	@Override
+	public void onSubscribe(ReactiveStreams.Subscription subscription) {
+		if (upstream != null){
+			subscription.cancel();
+			return;
+		}
+		upstream = subscription;
+		subscription.request(maxInFlight);
+	}
+
+	@Override
+	public void onNext(final String sentence) {
+		if (cancelled || failure != null){
+			return;
+		}
+		final long index = received;
+		if (index - sent >= maxInFlight){
+			fail(new IllegalStateException("got more sentences than were requested"));
+			return;
+		}
+		received = index + 1;
+		try {
+			workers.execute(new Runnable(){
+				@Override
+				public void run(){
+					try {
+						ring.set((int) (index % maxInFlight), score(index, sentence));
+					} catch (RuntimeException e) {
+						fail(e);
+						return;
+					}
+					drain();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// cancelled or failed while the sentence came in
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		upstreamError = throwable;
+		upstreamDone = true;
+		drain();
+	}
+
+	@Override
+	public void onComplete() {
+		upstreamDone = true;
+		drain();
+	}
+
+	/**
+	 * Send the scores to the subscriber, which may only be one
+	 * @param subscriber
+	 */
+	@Override
+	public void subscribe(final ReactiveStreams.Subscriber<? super SentenceScore> subscriber) {
+		synchronized (this){
+			if (downstream != null){
+				subscriber.onSubscribe(new ReactiveStreams.Subscription(){
+					@Override
+					public void request(long n) {
+					}
+
+					@Override
+					public void cancel() {
+					}
+				});
+				subscriber.onError(new IllegalStateException("StreamingScorer takes only one subscriber"));
+				return;
+			}
+			downstream = subscriber;
+		}
+		subscriber.onSubscribe(new ReactiveStreams.Subscription(){
+			@Override
+			public void request(long n) {
+				if (n <= 0){
+					fail(new IllegalArgumentException("request(" + n + "), must be greater than 0"));
+					return;
+				}
+				// add to the demand, Long.MAX_VALUE means no limit
+				long current;
+				long next;
+				do {
+					current = demand.get();
+					next = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while (!demand.compareAndSet(current, next));
+				drain();
+			}
+
+			@Override
+			public void cancel() {
+				cancelled = true;
+				ReactiveStreams.Subscription subscription = upstream;
+				if (subscription != null){
+					subscription.cancel();
+				}
+				workers.shutdownNow();
+			}
+		});
+		drain();
+	}
+
+	/**
+	 * Score one sentence (on a worker thread)
+	 * @param index
+	 * @param sentence
+	 * @return the score
+	 */
+	private SentenceScore score(long index, String sentence){
+		SentenceTokenizer tokenizer = tokenizers.get();
+		long oovBefore = tokenizer.numOov;
+		int length = tokenizer.tokenize(sentence);
+		double logProb = model.logProb(tokenizer.ids, 1, length - 1);
+		return new SentenceScore(index, sentence, logProb, length - 1, (int) (tokenizer.numOov - oovBefore));
+	}
+
+	/**
+	 * A sentence could not be scored: stop the stream and tell the subscriber
+	 * @param throwable
+	 */
+	private void fail(Throwable throwable){
+		failure = throwable;
+		ReactiveStreams.Subscription subscription = upstream;
+		if (subscription != null){
+			subscription.cancel();
+		}
+		drain();
+	}
+
+	/**
+	 * Send every score that is next in line while the subscriber allows it, then complete
+	 * if upstream is done and everything was sent
+	 * Any thread may call this: the first one in does the sending and loops again if
+	 * others came by in the meantime, so the subscriber is never called from two threads at once
+	 */
+	private void drain(){
+		if (drainers.getAndIncrement() != 0){
+			return;
+		}
+		int missed = 1;
+		do {
+			ReactiveStreams.Subscriber<? super SentenceScore> subscriber = downstream;
+			if (subscriber != null && !terminated && !cancelled){
+				if (failure != null){
+					finish(subscriber, failure);
+				}
+				else {
+					long requested = demand.get();
+					long count = 0;
+					while (count != requested){
+						int slot = (int) (sent % maxInFlight);
+						SentenceScore score = ring.get(slot);
+						if (score == null){
+							break;
+						}
+						ring.set(slot, null);
+						sent++;
+						count++;
+						logProb.add(score.logProb);
+						Totals before = totals;
+						totals = new Totals(before.numSentences + 1, before.numTokens + score.numTokens,
+								before.numOov + score.numOov, logProb.value());
+						subscriber.onNext(score);
+					}
+					if (count > 0){
+						if (requested != Long.MAX_VALUE){
+							demand.addAndGet(-count);
+						}
+						// room for as many new sentences as scores were sent
+						if (!upstreamDone){
+							upstream.request(count);
+						}
+					}
+
+					// upstreamDone is set after the last onNext, so received is final once it is seen
+					if (upstreamDone && sent == received){
+						finish(subscriber, upstreamError);
+					}
+				}
+			}
+			missed = drainers.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	/**
+	 * Send onComplete or onError and let the workers go
+	 * @param subscriber
+	 * @param error null to complete
+	 */
+	private void finish(ReactiveStreams.Subscriber<? super SentenceScore> subscriber, Throwable error){
+		terminated = true;
+		workers.shutdown();
+		if (error != null){
+			subscriber.onError(error);
+		}
+		else {
+			subscriber.onComplete();
+		}
+	}
+
+	/**
+	 * @param corpus a file, directory or glob of sentences (see CorpusReader)
+	 * @return publisher reading the lines of the corpus only as fast as they are requested,
+	 * from scratch for every subscriber
+	 */
+	public static ReactiveStreams.Publisher<String> lines(final String corpus){
+		return new ReactiveStreams.Publisher<String>(){
+			@Override
+			public void subscribe(ReactiveStreams.Subscriber<? super String> subscriber) {
+				new LineSubscription(corpus, subscriber).start();
+			}
+		};
+	}
+
+	/**
+	 * Sends the lines of a corpus to one subscriber, reading them on the thread that requests them
+	 */
+	private static class LineSubscription implements ReactiveStreams.Subscription {
+		private final String corpus;
+		private final ReactiveStreams.Subscriber<? super String> subscriber;
+		private final AtomicLong demand = new AtomicLong();
+		private final AtomicInteger drainers = new AtomicInteger();
+		private CorpusReader reader;
+		private volatile boolean cancelled;
+		private boolean done;
+
+		LineSubscription(String corpus, ReactiveStreams.Subscriber<? super String> subscriber){
+			this.corpus = corpus;
+			this.subscriber = subscriber;
+		}
+
+		void start(){
+			// counts as draining so lines requested inside onSubscribe wait until the reader is open
+			drainers.incrementAndGet();
+			subscriber.onSubscribe(this);
+			try {
+				reader = CorpusReader.open(corpus);
+			} catch (IOException e) {
+				done = true;
+				subscriber.onError(e);
+			}
+			drain(1);
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0){
+				cancel();
+				subscriber.onError(new IllegalArgumentException("request(" + n + "), must be greater than 0"));
+				return;
+			}
+			long current;
+			long next;
+			do {
+				current = demand.get();
+				next = current + n < 0 ? Long.MAX_VALUE : current + n;
+			} while (!demand.compareAndSet(current, next));
+			if (drainers.getAndIncrement() == 0){
+				drain(1);
+			}
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			if (drainers.getAndIncrement() == 0){
+				drain(1);
+			}
+		}
+
+		/**
+		 * Read and send lines while they are requested (the thread that got drainers from 0 does this)
+		 * @param missed
+		 */
+		private void drain(int missed){
+			do {
+				if (!done && cancelled){
+					done = true;
+					close();
+				}
+				while (!done && demand.get() > 0){
+					String line;
+					try {
+						line = reader.readLine();
+					} catch (IOException e) {
+						done = true;
+						close();
+						subscriber.onError(e);
+						break;
+					}
+					if (line == null){
+						done = true;
+						close();
+						subscriber.onComplete();
+						break;
+					}
+					if (demand.get() != Long.MAX_VALUE){
+						demand.decrementAndGet();
+					}
+					subscriber.onNext(line);
+					if (cancelled){
+						done = true;
+						close();
+					}
+				}
+				missed = drainers.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void close(){
+			try {
+				if (reader != null){
+					reader.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stream a file through the scorer, printing the first few scores and the totals along the way,
+	 * and compare the result with evaluatePerplexity
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		String training = args.length > 0 ? args[0] : "src/sentences.development";
+		String testing = args.length > 1 ? args[1] : "src/sentences.testing";
+
+		System.out.println("Training Discount Language Model with discount = .5 ...");
+		DiscountLMModel model = new DiscountLMModel(LMBase.trainCounts(training), 0.5);
+		model.compile();
+
+		final StreamingScorer scorer = new StreamingScorer(model);
+		final CountDownLatch finished = new CountDownLatch(1);
+		long start = System.nanoTime();
+		scorer.subscribe(new ReactiveStreams.Subscriber<SentenceScore>(){
+			private ReactiveStreams.Subscription subscription;
+			private int left;
+
+			@Override
+			public void onSubscribe(ReactiveStreams.Subscription subscription) {
+				this.subscription = subscription;
+				left = 100;
+				subscription.request(left);
+			}
+
+			@Override
+			public void onNext(SentenceScore score) {
+				if (score.index < 5){
+					System.out.println(score);
+				}
+				if (score.index % 2000 == 1999){
+					System.out.println("after " + (score.index + 1) + " sentences: " + scorer.getTotals());
+				}
+				// ask for the next hundred once these are used up
+				if (--left == 0){
+					left = 100;
+					subscription.request(left);
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				throwable.printStackTrace();
+				finished.countDown();
+			}
+
+			@Override
+			public void onComplete() {
+				finished.countDown();
+			}
+		});
+		lines(testing).subscribe(scorer);
+		finished.await();
+		System.out.println(String.format("Streamed in %.1f ms: %s", (System.nanoTime() - start)/1e6, scorer.getTotals()));
+		System.out.println("evaluatePerplexity: " + model.evaluatePerplexity(testing, Runtime.getRuntime().availableProcessors()));
+	}
+}
@@ -0,0 +1,91 @@
+package nlp.lm;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps every word seen in training to a dense integer ID (0, 1, 2, ...)
+ * so counts can be kept in primitive arrays instead of boxed maps
+ *
+ * The special tokens are always given the first IDs:
+ * <unk> = 0, <s> = 1, </s> = 2
+ *
+ * Lookups may run on other threads while words are added (see ConcurrentBigramCounts):
+ * adding is synchronized and a word is only put in the map once its ID can be looked up.
+ *
+ * @author Nolan McCafferty
+ * @author Daniel Rosenbaum
+ *
+ */
+public class WordIndex {
+
+	// IDs of the special tokens
+	public static final int UNK = 0;
+	public static final int START = 1;
+	public static final int END = 2;
+
+	// returned when a word has never been seen
+	public static final int NO_ID = -1;
+
+	private final ConcurrentHashMap<String, Integer> wordToId;
+
+	// idToWord is replaced by a bigger copy when it is full
+	private volatile String[] idToWord;
+	private volatile int size;
+
+	public WordIndex(){
+		wordToId = new ConcurrentHashMap<String, Integer>();
+		idToWord = new String[1024];
+
+		// reserve the IDs for the special tokens
+		add("<unk>");
+		add("<s>");
+		add("</s>");
+	}
+
+	/**
+	 * Return the ID of the word, giving it the next ID if it has not been seen
+	 * @param word
+	 * @return word ID
+	 */
+	public synchronized int add(String word){
+		Integer id = wordToId.get(word);
+		if (id == null){
+			id = size;
+			if (id == idToWord.length){
+				idToWord = Arrays.copyOf(idToWord, id * 2);
+			}
+			idToWord[id] = word;
+			size = id + 1;
+			wordToId.put(word, id);
+		}
+		return id;
+	}
+
+	/**
+	 * @param word
+	 * @return the ID of the word or NO_ID if it has never been seen
+	 */
+	public int getId(String word){
+		Integer id = wordToId.get(word);
+		return id == null ? NO_ID : id;
+	}
+
+	/**
+	 * @param id
+	 * @return the word with the given ID
+	 */
+	public String getWord(int id){
+		if (id < 0 || id >= size){
+			throw new IndexOutOfBoundsException("no word with ID " + id);
+		}
+		return idToWord[id];
+	}
+
+	/**
+	 * @return number of words (including the special tokens) with an ID
+	 */
+	public int size(){
+		return size;
+	}
+}
@@ -1,15 +1,28 @@
 package nlp.parser;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.NavigableMap;
 import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A class to construct PCFGs for given files
@@ -21,6 +34,9 @@ import java.util.TreeMap;
  */
 public class PCFG {
 
+	// sentences generated with one random when generating in bulk
+	public static final int BLOCK_SENTENCES = 1024;
+
 	// Data Structures
 	private HashMap<String, Double> constituentCounts; 	// number of times LHS is used
 	private HashMap<String, HashMap<ArrayList<String>, Double>> ruleCounts; // number of times each total rule is used
@@ -290,14 +306,9 @@ public class PCFG {
 	 */
 	public ArrayList<String> generateSentences(ArrayList<GrammarRule> grammar){
 		// go through the new grammar create the hashmaps with probs
-		grammarProbs = new HashMap<String, RandomCollection<ArrayList<String>>>();
+		buildGrammarProbs(grammar);
 
 		ArrayList<String> sentences = new ArrayList<String>();
-		for (GrammarRule rule: grammar){
-			RandomCollection<ArrayList<String>> newRule = grammarProbs.getOrDefault(rule.getLhs(), new RandomCollection<ArrayList<String>>());
-			newRule.add(rule.getWeight(), rule.getRhs());
-			grammarProbs.put(rule.getLhs(), newRule);
-		}
 		
 		// now that the grammar is stored in the HashMap data structure probabilistically construct the tree
 		// 10 sentences
@@ -341,6 +352,115 @@ public class PCFG {
 		return sentence;
 		
 	}
+
+	/**
+	 * EXTRA CREDIT
+	 * 
+	 * Given a grammar set, generate lots of sentences on several threads and write them to a file,
+	 * one per line, without keeping them in memory
+	 * 
+	 * The sentences are cut into blocks of BLOCK_SENTENCES and every block gets its own
+	 * SplittableRandom, split off SplittableRandom(seed) in block order. The blocks are generated
+	 * in any order by the threads but written in order, so the same seed gives the same file
+	 * whatever the number of threads.
+	 * 
+	 * @param grammar
+	 * @param numSentences
+	 * @param seed
+	 * @param threads number of worker threads
+	 * @param filename
+	 * @return number of sentences written
+	 * @throws IOException
+	 */
+	public long generateSentences(ArrayList<GrammarRule> grammar, long numSentences, long seed, int threads, String filename) throws IOException {
+		// the grammar is only read from now on, so the threads can share it
+		buildGrammarProbs(grammar);
+		final RandomCollection<ArrayList<String>> start = grammarProbs.get("S");
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			SplittableRandom master = new SplittableRandom(seed);
+			// blocks being generated or waiting to be written, in order
+			ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+			for (long first = 0; first < numSentences; first += BLOCK_SENTENCES){
+				// split here and not in the threads so block b always gets the same random
+				final SplittableRandom random = master.split();
+				final int size = (int) Math.min(BLOCK_SENTENCES, numSentences - first);
+				if (pending.size() == 2 * threads){
+					writer.write(awaitBlock(pending.poll()));
+				}
+				pending.add(pool.submit(new Callable<String>(){
+					@Override
+					public String call(){
+						StringBuilder block = new StringBuilder();
+						for (int i = 0; i < size; i++){
+							constructSentence(start, block, random);
+							block.append('\n');
+						}
+						return block.toString();
+					}
+				}));
+			}
+			while (!pending.isEmpty()){
+				writer.write(awaitBlock(pending.poll()));
+			}
+		} finally {
+			pool.shutdownNow();
+			writer.close();
+		}
+		return Math.max(0, numSentences);
+	}
+
+	/**
+	 * Same as constructSentence above, but appends to a StringBuilder and draws from the given
+	 * random, so several threads can generate at once
+	 * @param rules
+	 * @param sentence
+	 * @param random
+	 */
+	private void constructSentence(RandomCollection<ArrayList<String>> rules, StringBuilder sentence, SplittableRandom random){
+		ArrayList<String> nextRHS = rules.next(random);
+		for (String newLHS: nextRHS){
+			if (grammarProbs.containsKey(newLHS) && !newLHS.equals(".") && !newLHS.equals(",") && !newLHS.equals("$")){
+				constructSentence(grammarProbs.get(newLHS), sentence, random);
+			}
+			// we have reached a terminal so we add the word to our building sentence!
+			else {
+				sentence.append(newLHS).append(' ');
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Store the grammar in the grammarProbs HashMap so a RHS can be picked probabilistically
+	 * @param grammar
+	 */
+	private void buildGrammarProbs(ArrayList<GrammarRule> grammar){
+		grammarProbs = new HashMap<String, RandomCollection<ArrayList<String>>>();
+		for (GrammarRule rule: grammar){
+			RandomCollection<ArrayList<String>> newRule = grammarProbs.getOrDefault(rule.getLhs(), new RandomCollection<ArrayList<String>>());
+			newRule.add(rule.getWeight(), rule.getRhs());
+			grammarProbs.put(rule.getLhs(), newRule);
+		}
+	}
+
+	/**
+	 * @param block
+	 * @return the sentences of the block once they are generated
+	 * @throws IOException if generating was interrupted
+	 */
+	private static String awaitBlock(Future<String> block) throws IOException {
+		try {
+			return block.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while generating");
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
 	
 	
 	public static void main(String[] args){
@@ -368,6 +488,13 @@ public class PCFG {
 		ArrayList<String> genSentences = pcfg.generateSentences(binRules);
 		pcfg.createOutfile(genSentences, "output/example.random.sents");
 
+		// generate a lot more sentences on all the cores, the same ones every time
+		try {
+			pcfg.generateSentences(binRules, 100000, 159, Runtime.getRuntime().availableProcessors(), "output/example.bulk.sents");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 	}
 
 
@@ -400,7 +527,16 @@ public class PCFG {
 	    }
 	
 	    public E next() {
-	        double value = random.nextDouble() * total;
+	        return next(random.nextDouble());
+	    }
+	
+	    // draw with someone else's random numbers, so threads do not share the Random
+	    public E next(SplittableRandom random) {
+	        return next(random.nextDouble());
+	    }
+	
+	    private E next(double uniform) {
+	        double value = uniform * total;
 	        return map.higherEntry(value).getValue();
 	    }
 	}